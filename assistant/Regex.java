@@ -1,14 +1,181 @@
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Stream;
 
 /**
  * 正则表达式链式操作辅助类<br>
+ * 编译的Pattern保存在全局的LRU缓存中，对每个文档创建Regex对象不必重复编译<br>
  * 要求Java 8及以上支持
  */
 public class Regex {
+    /**
+     * 按(正则表达式, 标志)缓存编译结果的有界LRU缓存，线程安全。<br>
+     * 分为多个段，每段各自加锁并按访问顺序淘汰，并发查找不会都竞争同一把锁
+     */
+    public static final class PatternCache {
+        private static final int SEGMENTS = 16;
+
+        private static final class Key {
+            private final String regex;
+            private final int flags;
+            private final int hash;
+
+            private Key(String regex, int flags) {
+                this.regex = regex;
+                this.flags = flags;
+                this.hash = regex.hashCode() * 31 + flags;
+            }
+
+            @Override
+            public boolean equals(Object o) {
+                if (!(o instanceof Key)) return false;
+                Key key = (Key) o;
+                return this.flags == key.flags && this.regex.equals(key.regex);
+            }
+
+            @Override
+            public int hashCode() {
+                return this.hash;
+            }
+        }
+
+        /**
+         * 按访问顺序淘汰的一段，用具体类型避免泛型数组
+         */
+        private static final class Segment extends LinkedHashMap<Key, Pattern> {
+            private static final long serialVersionUID = 1L;
+
+            private final int capacity;
+
+            private Segment(int capacity) {
+                super(16, 0.75f, true);
+                this.capacity = capacity;
+            }
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Pattern> eldest) {
+                return this.size() > this.capacity;
+            }
+        }
+
+        private final Segment[] segments;
+        private final int segmentCapacity;
+        private final LongAdder hits;
+        private final LongAdder misses;
+
+        /**
+         * @param capacity 最多缓存的Pattern数，按段平均分配
+         */
+        public PatternCache(int capacity) {
+            if (capacity < 1) throw new IllegalArgumentException("capacity must be positive");
+            this.segmentCapacity = Math.max(1, (capacity + SEGMENTS - 1) / SEGMENTS);
+            this.segments = new Segment[SEGMENTS];
+            for (int i = 0; i < SEGMENTS; i++)
+                this.segments[i] = new Segment(this.segmentCapacity);
+            this.hits = new LongAdder();
+            this.misses = new LongAdder();
+        }
+
+        /**
+         * 获得编译的Pattern，未缓存时编译并缓存；编译在锁外进行，并发的未命中可能重复编译
+         *
+         * @param regex 正则表达式
+         * @param flags Pattern的标志
+         * @return 编译的Pattern
+         */
+        public Pattern get(String regex, int flags) {
+            Key key = new Key(regex, flags);
+            Segment segment = this.segments[(key.hash ^ (key.hash >>> 16)) & (SEGMENTS - 1)];
+            Pattern pattern;
+            synchronized (segment) {
+                pattern = segment.get(key);
+            }
+            if (pattern != null) {
+                this.hits.increment();
+                return pattern;
+            }
+            this.misses.increment();
+            pattern = Pattern.compile(regex, flags);
+            synchronized (segment) {
+                segment.put(key, pattern);
+            }
+            return pattern;
+        }
+
+        public long hits() {
+            return this.hits.sum();
+        }
+
+        public long misses() {
+            return this.misses.sum();
+        }
+
+        /**
+         * @return 命中率，没有查找时为0
+         */
+        public double hitRate() {
+            long hits = this.hits.sum(), total = hits + this.misses.sum();
+            return total == 0 ? 0 : (double) hits / total;
+        }
+
+        public int size() {
+            int size = 0;
+            for (Segment segment : this.segments) {
+                synchronized (segment) {
+                    size += segment.size();
+                }
+            }
+            return size;
+        }
+
+        public int capacity() {
+            return this.segmentCapacity * SEGMENTS;
+        }
+
+        /**
+         * 清空缓存与统计
+         */
+        public void clear() {
+            for (Segment segment : this.segments) {
+                synchronized (segment) {
+                    segment.clear();
+                }
+            }
+            this.hits.reset();
+            this.misses.reset();
+        }
+
+        @Override
+        public String toString() {
+            return String.format("size=%d/%d hits=%d misses=%d hitRate=%.3f", this.size(), this.capacity(), this.hits(), this.misses(), this.hitRate());
+        }
+    }
+
+    private static final PatternCache patternCache = new PatternCache(1024);
+
+    /**
+     * @return 全局的Pattern缓存，可查看命中率
+     */
+    public static PatternCache patternCache() {
+        return patternCache;
+    }
+
+    /**
+     * 从全局缓存中获得编译的Pattern
+     *
+     * @param regex 正则表达式
+     * @param flag  Pattern的标志
+     * @return 编译的Pattern
+     */
+    public static Pattern compile(String regex, int flag) {
+        return patternCache.get(regex, flag);
+    }
+
     @FunctionalInterface
     /**
      * 不迭代调用匹配结果的接口
@@ -57,7 +224,11 @@ public class Regex {
     }
 
     protected Regex(String regex, int flag) {
-        this.newPattern(regex, flag);
+        this(compile(regex, flag));
+    }
+
+    protected Regex(Pattern regex) {
+        this.regex = regex;
         this.innerResult = new ArrayList<>();
     }
 
@@ -74,6 +245,15 @@ public class Regex {
         return new Regex(regex, flag);
     }
 
+    /**
+     * 使用预编译的Pattern，不经过缓存
+     *
+     * @param regex 预编译的正则表达式
+     */
+    public static Regex newIns(Pattern regex) {
+        return new Regex(regex);
+    }
+
     /**
      * 修改正则表达式
      *
@@ -85,7 +265,12 @@ public class Regex {
     }
 
     public Regex newPattern(String regex, int flag) {
-        this.regex = Pattern.compile(regex, flag);
+        this.regex = compile(regex, flag);
+        return this;
+    }
+
+    public Regex newPattern(Pattern regex) {
+        this.regex = regex;
         return this;
     }
 
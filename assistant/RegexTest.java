@@ -5,6 +5,7 @@ import org.junit.Test;
 import java.util.List;
 import java.util.function.Consumer;
 import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import static org.junit.Assert.*;
 
@@ -78,4 +79,42 @@ public class RegexTest {
         );
     }
 
+    @Test
+    public void patternCache() throws Exception {
+        Regex.PatternCache cache = new Regex.PatternCache(64);
+        Pattern first = cache.get(keyValuePattern, 0);
+        assertSame(first, cache.get(keyValuePattern, 0));
+        assertNotSame(first, cache.get(keyValuePattern, Pattern.MULTILINE)); // 标志不同是不同的键
+        assertEquals(1, cache.hits());
+        assertEquals(2, cache.misses());
+
+        // 超出容量时淘汰最久未使用的，一直在使用的不会被淘汰
+        cache.clear();
+        Pattern keep = cache.get("keep", 0);
+        for (int i = 0; i < 1000; i++) {
+            assertSame(keep, cache.get("keep", 0));
+            cache.get("p" + i, 0);
+        }
+        assertTrue(cache.size() <= cache.capacity());
+        assertEquals(1000, cache.hits());
+        assertEquals(1001, cache.misses());
+        assertEquals(1000.0 / 2001, cache.hitRate(), 1e-9);
+    }
+
+    @Test
+    public void newInsPerDocument() throws Exception {
+        String[] documents = new String[2000];
+        for (int i = 0; i < documents.length; i++)
+            documents[i] = input.replace("v1", "v" + i);
+        Regex.PatternCache cache = Regex.patternCache();
+        cache.clear();
+        for (String document : documents)
+            assertEquals(5, Regex.newIns(keyValuePattern).match(document, (m, t) -> t.add(m.group(2))).result().count());
+        // 每个文档新建的Regex共用同一个编译好的模式，只在第一次编译
+        assertEquals(1, cache.misses());
+        assertEquals(documents.length - 1, cache.hits());
+        assertEquals(1, cache.size());
+        assertSame(Regex.compile(keyValuePattern, 0), Regex.compile(keyValuePattern, 0));
+        assertEquals(documents.length + 1, cache.hits());
+    }
 }
@@ -11,7 +11,7 @@ fun InputStream.toFile(targetFile: File, autoClose: Boolean = false): Boolean {
     }
     val outputStream = targetFile.outputStream()
     return try {
-        outputStream.write(this.readBytes())
+        this.copyTo(outputStream)
         true
     } catch (e: IOException) {
         false
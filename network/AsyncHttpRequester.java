@@ -0,0 +1,286 @@
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.CookieHandler;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.ProxySelector;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.Charset;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Supplier;
+
+/**
+ * Need JDK >= 11 <br/>
+ * 基于java.net.http.HttpClient的非阻塞请求，与HttpRequester的参数与返回值保持一致。<br/>
+ * 请求在HttpClient的selector线程上完成，数千个并发请求不需要数千个线程；
+ * 优先使用HTTP/2，服务器不支持时自动回退到HTTP/1.1。<br/>
+ * 注意：异步请求不参与HttpRequester按线程隔离的Cookie管理，需要Cookie时请传入CookieHandler。
+ */
+public class AsyncHttpRequester implements HttpRequester.Transport {
+    /**
+     * HttpClient不允许手动设置的请求头
+     */
+    private static final Set<String> RESTRICTED_HEADERS = new HashSet<>(Arrays.asList("connection", "content-length", "expect", "host", "upgrade"));
+
+    private static AsyncHttpRequester singleton;
+
+    static {
+        singleton = new AsyncHttpRequester(HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .connectTimeout(Duration.ofMillis(10000))
+                .build());
+    }
+
+    public static AsyncHttpRequester getSingleton() {
+        return singleton;
+    }
+
+    /**
+     * @param connectTimeout 连接超时
+     * @param proxy          代理服务器，仅支持HTTP代理，null则不使用代理
+     * @param cookieHandler  Cookie管理，null则不支持Cookie
+     * @return 新的请求对象，持有独立的HttpClient
+     */
+    public static AsyncHttpRequester newInstance(int connectTimeout, Proxy proxy, CookieHandler cookieHandler) {
+        HttpClient.Builder builder = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .connectTimeout(Duration.ofMillis(connectTimeout));
+        if (proxy != null && proxy.type() == Proxy.Type.HTTP)
+            builder.proxy(ProxySelector.of((InetSocketAddress) proxy.address()));
+        if (cookieHandler != null)
+            builder.cookieHandler(cookieHandler);
+        return new AsyncHttpRequester(builder.build());
+    }
+
+    /**
+     * @param client 自定义的HttpClient
+     * @return 新的请求对象
+     */
+    public static AsyncHttpRequester newInstance(HttpClient client) {
+        return new AsyncHttpRequester(client);
+    }
+
+    /**
+     * HTTP/2模式：同一源的并发请求复用一个连接，服务器不支持HTTP/2时回退到HTTP/1.1
+     *
+     * @param maxConcurrentStreams 同一源上最大的并发stream数，0则不限制
+     * @param connectTimeout       连接超时
+     * @return 新的请求对象
+     */
+    public static AsyncHttpRequester newHttp2Instance(int maxConcurrentStreams, int connectTimeout) {
+        AsyncHttpRequester requester = newInstance(connectTimeout, null, null);
+        requester.setMaxConcurrentStreams(maxConcurrentStreams);
+        return requester;
+    }
+
+    /**
+     * 同一源(scheme://host:port)上同时进行的请求数限制。
+     * HTTP/2下即为单个连接上并发的stream数，超出的请求排队，不占用线程。
+     */
+    private static class StreamLimiter {
+        private final int max;
+        private final ArrayDeque<Runnable> waiting;
+        private int active;
+
+        private StreamLimiter(int max) {
+            this.max = max;
+            this.waiting = new ArrayDeque<>();
+            this.active = 0;
+        }
+
+        private <T> CompletableFuture<T> submit(Supplier<CompletableFuture<T>> task) {
+            CompletableFuture<T> result = new CompletableFuture<>();
+            Runnable start = () -> {
+                CompletableFuture<T> future;
+                try {
+                    future = task.get();
+                } catch (RuntimeException e) {
+                    future = new CompletableFuture<>();
+                    future.completeExceptionally(e);
+                }
+                future.whenComplete((value, e) -> {
+                    this.release();
+                    if (e != null) result.completeExceptionally(e);
+                    else result.complete(value);
+                });
+            };
+
+            boolean runNow;
+            synchronized (this) {
+                runNow = this.active < this.max;
+                if (runNow) this.active++;
+                else this.waiting.add(start);
+            }
+            if (runNow) start.run();
+            return result;
+        }
+
+        private void release() {
+            Runnable next;
+            synchronized (this) {
+                next = this.waiting.poll();
+                if (next == null) this.active--;
+            }
+            if (next != null) next.run();
+        }
+    }
+
+    private final HttpClient client;
+    private final ConcurrentMap<String, StreamLimiter> limiters;
+    private volatile int maxConcurrentStreams;
+
+    private AsyncHttpRequester(HttpClient client) {
+        this.client = client;
+        this.limiters = new ConcurrentHashMap<>();
+        this.maxConcurrentStreams = 0;
+    }
+
+    public HttpClient getClient() {
+        return client;
+    }
+
+    /**
+     * 设置同一源上最大的并发stream数，仅对之后首次访问的源生效
+     *
+     * @param maxConcurrentStreams 0则不限制，交由服务器的SETTINGS_MAX_CONCURRENT_STREAMS约束
+     */
+    public void setMaxConcurrentStreams(int maxConcurrentStreams) {
+        this.maxConcurrentStreams = maxConcurrentStreams;
+        this.limiters.clear();
+    }
+
+    public int getMaxConcurrentStreams() {
+        return maxConcurrentStreams;
+    }
+
+    /**
+     * 使用默认的设置，10秒读取超时，自动GZIP解压缩
+     */
+    public CompletableFuture<HttpRequester.HttpResponse> doRequestAsync(URL url, String method, Map<String, String> requestArgs, Map<String, String> requestHeaders) {
+        return doRequestAsync(url, method, requestArgs, requestHeaders, 10000, true);
+    }
+
+    /**
+     * 发起异步HTTP请求，响应正文完整接收后才完成，期间不占用调用线程
+     *
+     * @param url            请求的目标url
+     * @param method         请求的方法
+     * @param requestArgs    请求的参数
+     * @param requestHeaders 请求的头
+     * @param readTimeout    从发出请求到接收完响应的超时
+     * @param autoGzip       自动对GZIP解压缩
+     * @return 完成时得到响应，与HttpRequester一致，非200时正文为null
+     */
+    public CompletableFuture<HttpRequester.HttpResponse> doRequestAsync(URL url, String method, Map<String, String> requestArgs, Map<String, String> requestHeaders, int readTimeout, boolean autoGzip) {
+        HttpRequest request;
+        try {
+            request = buildRequest(url, method, requestArgs, requestHeaders, readTimeout, autoGzip);
+        } catch (IOException | URISyntaxException | IllegalArgumentException e) {
+            CompletableFuture<HttpRequester.HttpResponse> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+
+        int max = this.maxConcurrentStreams;
+        if (max <= 0)
+            return this.client.sendAsync(request, HttpResponse.BodyHandlers.ofByteArray())
+                    .thenApply(response -> toHttpResponse(response, autoGzip));
+
+        URI uri = request.uri();
+        String origin = uri.getScheme() + "://" + uri.getHost() + ":" + uri.getPort();
+        return this.limiters.computeIfAbsent(origin, key -> new StreamLimiter(max))
+                .submit(() -> this.client.sendAsync(request, HttpResponse.BodyHandlers.ofByteArray()))
+                .thenApply(response -> toHttpResponse(response, autoGzip));
+    }
+
+    /**
+     * 同步等待doRequestAsync的结果，供HttpRequester的HTTP/2模式使用。
+     * 多个线程对同一源的请求在HTTP/2连接上多路复用。
+     *
+     * @return 与HttpRequester.doRequest一致的响应
+     * @throws IOException 请求失败或被中断
+     */
+    @Override
+    public HttpRequester.HttpResponse doRequest(URL url, String method, Map<String, String> requestArgs, Map<String, String> requestHeaders, int readTimeout, boolean autoGzip) throws IOException {
+        try {
+            return doRequestAsync(url, method, requestArgs, requestHeaders, readTimeout, autoGzip).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for " + url, e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            if (cause instanceof UncheckedIOException) throw ((UncheckedIOException) cause).getCause();
+            throw new IOException(cause);
+        }
+    }
+
+    private static HttpRequest buildRequest(URL url, String method, Map<String, String> requestArgs, Map<String, String> requestHeaders, int readTimeout, boolean autoGzip) throws IOException, URISyntaxException {
+        method = method.toUpperCase();
+        if (requestArgs == null) requestArgs = new HashMap<>();
+        String queryString = HttpRequester.mapToQueryString(requestArgs);
+
+        HttpRequest.BodyPublisher body = HttpRequest.BodyPublishers.noBody();
+        if (!method.matches("(?:POST|PUT)")) {
+            String strUrl = url.toString();
+            if (strUrl.indexOf('?') == -1)
+                strUrl += "?";
+            url = new URL(strUrl + queryString);
+        } else
+            body = HttpRequest.BodyPublishers.ofString(queryString);
+
+        HttpRequest.Builder builder = HttpRequest.newBuilder(url.toURI())
+                .timeout(Duration.ofMillis(readTimeout))
+                .method(method, body)
+                .header("X-Connector", "forDream");
+        if (method.matches("(?:POST|PUT)"))
+            builder.header("Content-Type", "application/x-www-form-urlencoded");
+        if (autoGzip)
+            builder.header("Accept-Encoding", ContentDecoder.acceptEncoding());
+        if (requestHeaders != null)
+            for (Map.Entry<String, String> header : requestHeaders.entrySet())
+                if (!RESTRICTED_HEADERS.contains(header.getKey().toLowerCase()))
+                    builder.setHeader(header.getKey(), header.getValue());
+        return builder.build();
+    }
+
+    private static HttpRequester.HttpResponse toHttpResponse(HttpResponse<byte[]> response, boolean autoGzip) {
+        HttpRequester.HttpResponse result = new HttpRequester.HttpResponse(false);
+        result.setResponseCode(response.statusCode());
+        result.setResponseHeaders(response.headers().map());
+
+        if (response.statusCode() == 200 || response.statusCode() == 206) {
+            InputStream body = new ByteArrayInputStream(response.body());
+            String contentEncoding = response.headers().firstValue("Content-Encoding").orElse(null);
+            if (autoGzip && contentEncoding != null) {
+                try {
+                    body = ContentDecoder.decode(body, contentEncoding, null);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+            Charset charset = HttpRequester.HttpInputStream.charsetOf(response.headers().firstValue("Content-Type").orElse(null));
+            result.setResponse(new HttpRequester.HttpInputStream(body, charset, response.body().length));
+        }
+        return result;
+    }
+}
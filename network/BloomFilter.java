@@ -0,0 +1,154 @@
+import java.nio.LongBuffer;
+
+/**
+ * 基于long位数组的布隆过滤器，用于海量URL的去重。<br/>
+ * 只会误判"已存在"，不会漏判；误判率由预计元素数、期望误判率和内存上限共同决定。非线程安全。<br/>
+ * 位数组默认在堆内，也可以是内存映射文件的视图（见MappedCrawlFrontier）。
+ */
+public class BloomFilter {
+    private final LongBuffer bits;
+    private final long bitCount;
+    private final int hashCount;
+    private long insertions;
+
+    /**
+     * @param expectedInsertions 预计插入的元素数
+     * @param fpp                期望的误判率，(0, 1)
+     * @param maxBytes           位数组的内存上限，位数组按期望误判率计算超出上限时截断，实际误判率会升高
+     */
+    public BloomFilter(long expectedInsertions, double fpp, long maxBytes) {
+        if (expectedInsertions <= 0 || fpp <= 0 || fpp >= 1 || maxBytes < 8)
+            throw new IllegalArgumentException("invalid bloom filter parameters");
+        long bits = optimalBitCount(expectedInsertions, fpp);
+        bits = Math.min(bits, maxBytes * 8);
+        bits = Math.min(bits, (long) Integer.MAX_VALUE * 64); // long[]长度上限
+        this.bits = LongBuffer.wrap(new long[(int) ((bits + 63) >>> 6)]);
+        this.bitCount = (long) this.bits.capacity() << 6;
+        this.hashCount = optimalHashCount(expectedInsertions, this.bitCount);
+        this.insertions = 0;
+    }
+
+    /**
+     * 使用已有的位数组，例如内存映射文件的视图
+     *
+     * @param bits       位数组，容量即位数/64
+     * @param hashCount  散列函数个数
+     * @param insertions 已插入的元素数，只用于估算误判率
+     */
+    BloomFilter(LongBuffer bits, int hashCount, long insertions) {
+        if (bits.capacity() == 0 || hashCount < 1)
+            throw new IllegalArgumentException("invalid bloom filter parameters");
+        this.bits = bits;
+        this.bitCount = (long) bits.capacity() << 6;
+        this.hashCount = hashCount;
+        this.insertions = insertions;
+    }
+
+    public BloomFilter(long expectedInsertions, double fpp) {
+        this(expectedInsertions, fpp, Long.MAX_VALUE / 8);
+    }
+
+    /**
+     * m = -n * ln(p) / (ln 2)^2
+     */
+    static long optimalBitCount(long expectedInsertions, double fpp) {
+        return Math.max(64, (long) Math.ceil(-expectedInsertions * Math.log(fpp) / (Math.log(2) * Math.log(2))));
+    }
+
+    /**
+     * k = m / n * ln 2
+     */
+    static int optimalHashCount(long expectedInsertions, long bitCount) {
+        return Math.max(1, (int) Math.round((double) bitCount / expectedInsertions * Math.log(2)));
+    }
+
+    /**
+     * 64位散列，再用h1 + i * h2生成k个位置
+     */
+    static long hash64(CharSequence value) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < value.length(); i++) {
+            h ^= value.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return mix(h); // 弥补FNV-1a低位分布的不足
+    }
+
+    /**
+     * murmur3 fmix64
+     */
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * h1、h2都取64位，位数组超过2^32位时各位置仍然均匀分布；h2为奇数，避免各位置重合
+     */
+    static long bitIndex(long hash64, int i, long bitCount) {
+        long h1 = hash64;
+        long h2 = mix(hash64) | 1;
+        long combined = h1 + i * h2;
+        return (combined & Long.MAX_VALUE) % bitCount;
+    }
+
+    /**
+     * @return 若之前可能已存在则返回false
+     */
+    public boolean put(CharSequence value) {
+        long hash = hash64(value);
+        boolean changed = false;
+        for (int i = 0; i < this.hashCount; i++) {
+            long index = bitIndex(hash, i, this.bitCount);
+            long mask = 1L << index;
+            int word = (int) (index >>> 6);
+            long bits = this.bits.get(word);
+            if ((bits & mask) == 0) {
+                this.bits.put(word, bits | mask);
+                changed = true;
+            }
+        }
+        if (changed) this.insertions++;
+        return changed;
+    }
+
+    public boolean mightContain(CharSequence value) {
+        long hash = hash64(value);
+        for (int i = 0; i < this.hashCount; i++) {
+            long index = bitIndex(hash, i, this.bitCount);
+            if ((this.bits.get((int) (index >>> 6)) & (1L << index)) == 0)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return 当前插入数量下的理论误判率 (1 - e^(-kn/m))^k
+     */
+    public double expectedFpp() {
+        return Math.pow(1 - Math.exp(-(double) this.hashCount * this.insertions / this.bitCount), this.hashCount);
+    }
+
+    public long insertions() {
+        return insertions;
+    }
+
+    public long bitCount() {
+        return bitCount;
+    }
+
+    public int hashCount() {
+        return hashCount;
+    }
+
+    /**
+     * @return 位数组占用的字节数
+     */
+    public long sizeInBytes() {
+        return (long) this.bits.capacity() * 8;
+    }
+}
@@ -0,0 +1,378 @@
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Constructor;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * 响应正文的流式解码：gzip、deflate（zlib或裸deflate）与brotli。<br/>
+ * gzip与deflate复用池中的Inflater，正文读完或关闭时归还，不必等GC释放Inflater的本地内存；
+ * 类路径中有org.brotli.dec.BrotliInputStream时才支持并声明br。
+ * 统计压缩与解码后的字节数，用于查看压缩节省的带宽。
+ */
+public final class ContentDecoder {
+    private static final int POOL_SIZE = 64;
+    private static final int BUFFER_SIZE = 8192;
+    private static final ArrayBlockingQueue<Inflater> inflaters = new ArrayBlockingQueue<Inflater>(POOL_SIZE);
+    private static final Constructor<?> brotli = brotliConstructor();
+    private static final LongAdder compressedBytes = new LongAdder();
+    private static final LongAdder decodedBytes = new LongAdder();
+
+    private ContentDecoder() {
+    }
+
+    private static Constructor<?> brotliConstructor() {
+        try {
+            return Class.forName("org.brotli.dec.BrotliInputStream").getConstructor(InputStream.class);
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return 请求头Accept-Encoding的值
+     */
+    public static String acceptEncoding() {
+        return brotli == null ? "gzip, deflate" : "gzip, deflate, br";
+    }
+
+    public static boolean isSupported(String contentEncoding) {
+        String encoding = contentEncoding.trim().toLowerCase();
+        return encoding.equals("gzip") || encoding.equals("x-gzip") || encoding.equals("deflate")
+                || encoding.equals("identity") || (encoding.equals("br") && brotli != null);
+    }
+
+    /**
+     * 按Content-Encoding包装正文，多个编码时按逆序解码
+     *
+     * @param in              响应正文
+     * @param contentEncoding 例如gzip，null、identity或含有不支持的编码时原样返回
+     * @param listener        正文读完或关闭时得到压缩与解码后的字节数，可以为null
+     * @return 解码后的正文
+     * @throws IOException 创建解码器失败
+     */
+    public static InputStream decode(InputStream in, String contentEncoding, CompressedBytesListener listener) throws IOException {
+        if (contentEncoding == null) return in;
+        String[] encodings = contentEncoding.split(",");
+        for (String encoding : encodings)
+            if (!encoding.trim().isEmpty() && !isSupported(encoding)) return in;
+        CountingInputStream counting = null;
+        for (int i = encodings.length - 1; i >= 0; i--) {
+            String encoding = encodings[i].trim().toLowerCase();
+            if (encoding.isEmpty() || encoding.equals("identity")) continue;
+            if (counting == null) in = counting = new CountingInputStream(in);
+            if (encoding.equals("gzip") || encoding.equals("x-gzip"))
+                in = new InflatingInputStream(in, true);
+            else if (encoding.equals("deflate"))
+                in = new InflatingInputStream(in, false);
+            else if (encoding.equals("br") && brotli != null) {
+                try {
+                    in = (InputStream) brotli.newInstance(in);
+                } catch (ReflectiveOperationException e) {
+                    throw new IOException("Cannot create brotli decoder", e);
+                }
+            } else
+                throw new IOException("Unsupported Content-Encoding: " + contentEncoding);
+        }
+        return counting == null ? in : new DecodedInputStream(in, counting, listener);
+    }
+
+    public interface CompressedBytesListener {
+        void onDecoded(long compressed, long decoded);
+    }
+
+    /**
+     * @return 解码过的压缩字节数
+     */
+    public static long compressedBytes() {
+        return compressedBytes.sum();
+    }
+
+    /**
+     * @return 解码后的字节数
+     */
+    public static long decodedBytes() {
+        return decodedBytes.sum();
+    }
+
+    static Inflater borrowInflater() {
+        Inflater inflater = inflaters.poll();
+        return inflater == null ? new Inflater(true) : inflater;
+    }
+
+    static void returnInflater(Inflater inflater) {
+        inflater.reset();
+        if (!inflaters.offer(inflater)) inflater.end();
+    }
+
+    /**
+     * 统计读取的原始字节数
+     */
+    private static class CountingInputStream extends FilterInputStream {
+        private long count;
+
+        private CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) this.count++;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) this.count += n;
+            return n;
+        }
+    }
+
+    /**
+     * 最外层：统计解码后的字节数，读完或关闭时汇总一次
+     */
+    private static class DecodedInputStream extends FilterInputStream {
+        private final CountingInputStream counting;
+        private final CompressedBytesListener listener;
+        private long decoded;
+        private boolean reported;
+
+        private DecodedInputStream(InputStream in, CountingInputStream counting, CompressedBytesListener listener) {
+            super(in);
+            this.counting = counting;
+            this.listener = listener;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b == -1) this.report();
+            else this.decoded++;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n == -1) this.report();
+            else this.decoded += n;
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            byte[] bytes = new byte[(int) Math.min(n, BUFFER_SIZE)];
+            long skipped = 0;
+            int len;
+            while (skipped < n && (len = this.read(bytes, 0, (int) Math.min(bytes.length, n - skipped))) != -1)
+                skipped += len;
+            return skipped;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                this.report();
+            }
+        }
+
+        private void report() {
+            if (this.reported) return;
+            this.reported = true;
+            compressedBytes.add(this.counting.count);
+            decodedBytes.add(this.decoded);
+            if (this.listener != null) this.listener.onDecoded(this.counting.count, this.decoded);
+        }
+    }
+
+    /**
+     * gzip或deflate解码，自行解析gzip头尾与zlib头，使用池中的裸deflate Inflater。
+     * gzip可以由多个成员依次拼接（RFC 1952），一个成员的尾部之后还有数据时继续解码下一个成员
+     */
+    static class InflatingInputStream extends InputStream {
+        private final InputStream in;
+        private final boolean gzip;
+        private final byte[] buffer;
+        private final CRC32 crc;
+        private Inflater inflater;
+        private int inputEnd; // buffer中交给Inflater的输入的结束位置
+        private int pending; // buffer中[pending, pendingEnd)是已读入、尚未解析的字节，例如下一个gzip成员的开头
+        private int pendingEnd;
+        private boolean headerRead;
+        private boolean zlib;
+        private boolean finished;
+
+        InflatingInputStream(InputStream in, boolean gzip) {
+            this.in = in;
+            this.gzip = gzip;
+            this.buffer = new byte[BUFFER_SIZE];
+            this.crc = gzip ? new CRC32() : null;
+            this.inflater = borrowInflater();
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return this.read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (this.finished) return -1;
+            if (this.inflater == null) throw new IOException("Stream closed");
+            if (len == 0) return 0;
+            if (!this.headerRead) this.readHeader();
+            try {
+                while (true) {
+                    int n = this.inflater.inflate(b, off, len);
+                    if (n > 0) {
+                        if (this.crc != null) this.crc.update(b, off, n);
+                        return n;
+                    }
+                    if (this.inflater.finished()) {
+                        this.readTrailer();
+                        if (this.gzip && this.nextMember()) continue;
+                        this.finish();
+                        return -1;
+                    }
+                    if (this.inflater.needsDictionary())
+                        throw new ZipException("Deflate stream needs a preset dictionary");
+                    if (this.inflater.needsInput()) {
+                        int read = this.in.read(this.buffer, 0, this.buffer.length);
+                        if (read == -1) throw new EOFException("Unexpected end of compressed stream");
+                        this.inflater.setInput(this.buffer, 0, read);
+                        this.inputEnd = read;
+                    }
+                }
+            } catch (DataFormatException e) {
+                throw new ZipException(e.getMessage() == null ? "Invalid deflate data" : e.getMessage());
+            }
+        }
+
+        private int readByte() throws IOException {
+            int b = this.pending < this.pendingEnd ? this.buffer[this.pending++] & 0xFF : this.in.read();
+            if (b == -1) throw new EOFException("Unexpected end of compressed stream");
+            return b;
+        }
+
+        private void readHeader() throws IOException {
+            this.headerRead = true;
+            if (this.gzip) {
+                if (this.readByte() != 0x1f || this.readByte() != 0x8b) throw new ZipException("Not in GZIP format");
+                this.readGzipHeader();
+                return;
+            }
+            // deflate按规范是zlib格式，但有的服务器发送裸deflate，按zlib头的校验位识别
+            int first = this.in.read();
+            if (first == -1) throw new EOFException("Unexpected end of compressed stream");
+            int second = this.in.read();
+            if (second != -1 && (first & 0x0f) == 8 && ((first << 8) | second) % 31 == 0) {
+                this.zlib = true;
+                if ((second & 0x20) != 0) throw new ZipException("Deflate stream needs a preset dictionary");
+            } else {
+                this.buffer[0] = (byte) first;
+                int length = 1;
+                if (second != -1) this.buffer[length++] = (byte) second;
+                this.inflater.setInput(this.buffer, 0, length);
+                this.inputEnd = length;
+            }
+        }
+
+        /**
+         * 解析gzip头中魔数之后的部分
+         */
+        private void readGzipHeader() throws IOException {
+            if (this.readByte() != 8) throw new ZipException("Unsupported GZIP compression method");
+            int flags = this.readByte();
+            for (int i = 0; i < 6; i++) this.readByte(); // MTIME, XFL, OS
+            if ((flags & 4) != 0) { // FEXTRA
+                int length = this.readByte() | (this.readByte() << 8);
+                for (int i = 0; i < length; i++) this.readByte();
+            }
+            if ((flags & 8) != 0) while (this.readByte() != 0) ; // FNAME
+            if ((flags & 16) != 0) while (this.readByte() != 0) ; // FCOMMENT
+            if ((flags & 2) != 0) { // FHCRC
+                this.readByte();
+                this.readByte();
+            }
+        }
+
+        /**
+         * 尾部之后还有下一个gzip成员时重置Inflater并解析其头部；之后的数据不是gzip成员时与GZIPInputStream一样忽略
+         *
+         * @return 是否有下一个成员
+         */
+        private boolean nextMember() throws IOException {
+            int first = this.pending < this.pendingEnd ? this.buffer[this.pending++] & 0xFF : this.in.read();
+            if (first == -1) return false;
+            int second = this.pending < this.pendingEnd ? this.buffer[this.pending++] & 0xFF : this.in.read();
+            if (first != 0x1f || second != 0x8b) return false;
+            this.inflater.reset();
+            this.crc.reset();
+            this.readGzipHeader();
+            if (this.pending < this.pendingEnd) {
+                this.inflater.setInput(this.buffer, this.pending, this.pendingEnd - this.pending);
+                this.inputEnd = this.pendingEnd;
+                this.pending = this.pendingEnd;
+            }
+            return true;
+        }
+
+        /**
+         * 读取Inflater未消费的剩余输入与之后的尾部
+         */
+        private void readTrailer() throws IOException {
+            int trailer = this.gzip ? 8 : this.zlib ? 4 : 0;
+            if (trailer == 0) return;
+            byte[] bytes = new byte[trailer];
+            int remaining = this.inflater.getRemaining();
+            int have = Math.min(remaining, trailer);
+            System.arraycopy(this.buffer, this.inputEnd - remaining, bytes, 0, have);
+            this.pending = this.inputEnd - remaining + have;
+            this.pendingEnd = this.inputEnd;
+            while (have < trailer) {
+                int n = this.in.read(bytes, have, trailer - have);
+                if (n == -1) throw new EOFException("Unexpected end of compressed stream");
+                have += n;
+            }
+            if (this.gzip) {
+                long crc = (bytes[0] & 0xFFL) | (bytes[1] & 0xFFL) << 8 | (bytes[2] & 0xFFL) << 16 | (bytes[3] & 0xFFL) << 24;
+                long size = (bytes[4] & 0xFFL) | (bytes[5] & 0xFFL) << 8 | (bytes[6] & 0xFFL) << 16 | (bytes[7] & 0xFFL) << 24;
+                if (crc != this.crc.getValue()) throw new ZipException("Corrupt GZIP trailer");
+                if (size != (this.inflater.getBytesWritten() & 0xFFFFFFFFL)) throw new ZipException("Corrupt GZIP trailer");
+            }
+        }
+
+        private void finish() {
+            this.finished = true;
+            if (this.inflater != null) {
+                returnInflater(this.inflater);
+                this.inflater = null;
+            }
+        }
+
+        @Override
+        public int available() throws IOException {
+            return this.finished ? 0 : 1;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                this.in.close();
+            } finally {
+                this.finish();
+            }
+        }
+    }
+}
@@ -0,0 +1,162 @@
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.Collection;
+
+/**
+ * 爬虫的URL边界(frontier)：保存待抓取的URL，并记录见过的URL以去重。<br/>
+ * 提交的URL会先规范化；取出时在各主机之间轮转，同一主机内按优先级从高到低、同优先级先进先出。
+ */
+public interface CrawlFrontier {
+    /**
+     * 提交一个待抓取的URL
+     *
+     * @param url      绝对URL
+     * @param priority 优先级，越大越先抓取
+     * @return 新加入返回true，URL非法或已见过返回false
+     */
+    boolean offer(String url, int priority);
+
+    /**
+     * 批量提交待抓取的URL，实现可以只加一次锁
+     *
+     * @param urls     绝对URL
+     * @param priority 优先级，越大越先抓取
+     * @return 新加入的URL数
+     */
+    default int offerAll(Collection<String> urls, int priority) {
+        int added = 0;
+        for (String url : urls) {
+            if (this.offer(url, priority)) added++;
+        }
+        return added;
+    }
+
+    /**
+     * @return 下一个待抓取的URL，没有则返回null
+     */
+    String poll();
+
+    /**
+     * @return 待抓取的URL数
+     */
+    int size();
+
+    /**
+     * @param url 绝对URL
+     * @return 是否可能已见过（布隆过滤器可能误判为见过）
+     */
+    boolean seen(String url);
+
+    /**
+     * URL规范化：只接受http/https，scheme与host转小写，去掉默认端口、片段与多余的路径段，空路径补为/
+     *
+     * @param url 绝对URL
+     * @return 规范化的URL，非法时返回null
+     */
+    static String normalize(String url) {
+        return normalize(null, url);
+    }
+
+    /**
+     * 相对于base解析后规范化
+     *
+     * @param base 基准URL，null则href必须是绝对URL
+     * @param href 页面中的链接
+     * @return 规范化的URL，非法时返回null
+     */
+    static String normalize(URI base, String href) {
+        if (href == null) return null;
+        href = href.trim();
+        if (href.isEmpty() || href.startsWith("#")) return null;
+        try {
+            URI uri = base == null ? new URI(href) : base.resolve(new URI(href));
+            String scheme = uri.getScheme();
+            if (scheme == null) return null;
+            scheme = scheme.toLowerCase();
+            if (!scheme.equals("http") && !scheme.equals("https")) return null;
+            String host = uri.getHost();
+            if (host == null) return null;
+            host = host.toLowerCase();
+            int port = uri.getPort();
+            if ((port == 80 && scheme.equals("http")) || (port == 443 && scheme.equals("https"))) port = -1;
+            String path = uri.getRawPath();
+            if (path == null || path.isEmpty()) path = "/";
+
+            URI normalized = new URI(scheme + "://" + host + (port == -1 ? "" : ":" + port) + path
+                    + (uri.getRawQuery() == null ? "" : "?" + uri.getRawQuery())).normalize();
+            String result = normalized.toString();
+            return result.contains("/../") ? null : result; // 越过根目录的路径
+        } catch (URISyntaxException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @param url 规范化的URL
+     * @return URL的主机，用于按主机分组
+     */
+    static String hostOf(String url) {
+        int start = url.indexOf("://") + 3;
+        int end = start;
+        while (end < url.length() && url.charAt(end) != '/' && url.charAt(end) != '?')
+            end++;
+        return url.substring(start, end);
+    }
+
+    /**
+     * 内存中的frontier，见过的URL用布隆过滤器记录，去重占用的内存固定，与URL数量和长度无关。线程安全。
+     */
+    class InMemory implements CrawlFrontier {
+        private final BloomFilter seen;
+        private final HostQueues queues;
+        private long sequence;
+
+        /**
+         * @param expectedUrls 预计见到的URL数
+         * @param fpp          去重的期望误判率，误判的URL会被当作已见过而丢弃
+         * @param maxBytes     去重位数组的内存上限
+         */
+        public InMemory(long expectedUrls, double fpp, long maxBytes) {
+            this.seen = new BloomFilter(expectedUrls, fpp, maxBytes);
+            this.queues = new HostQueues();
+            this.sequence = 0;
+        }
+
+        @Override
+        public synchronized boolean offer(String url, int priority) {
+            String normalized = CrawlFrontier.normalize(url);
+            if (normalized == null || !this.seen.put(normalized)) return false;
+            this.queues.add(normalized, priority, this.sequence++);
+            return true;
+        }
+
+        @Override
+        public synchronized int offerAll(Collection<String> urls, int priority) {
+            return CrawlFrontier.super.offerAll(urls, priority);
+        }
+
+        @Override
+        public synchronized String poll() {
+            HostQueues.Item item = this.queues.poll();
+            return item == null ? null : item.url;
+        }
+
+        @Override
+        public synchronized int size() {
+            return this.queues.size();
+        }
+
+        @Override
+        public synchronized boolean seen(String url) {
+            String normalized = CrawlFrontier.normalize(url);
+            return normalized != null && this.seen.mightContain(normalized);
+        }
+
+        /**
+         * @return 去重使用的布隆过滤器，可查看内存占用与当前误判率，不要在其他线程修改它
+         */
+        public BloomFilter seenFilter() {
+            return this.seen;
+        }
+    }
+}
@@ -0,0 +1,325 @@
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * CrawlFrontier与BloomFilter的测试用例，不依赖外部网络
+ */
+public class CrawlFrontierTestCase {
+    @Test
+    public void Normalize() {
+        Assert.assertEquals("http://example.com/", CrawlFrontier.normalize("HTTP://Example.COM:80"));
+        Assert.assertEquals("https://example.com:8443/a/c?x=1", CrawlFrontier.normalize("https://example.com:8443/a/b/../c?x=1#top"));
+        Assert.assertEquals("http://example.com/dir/page.html", CrawlFrontier.normalize(URI.create("http://example.com/dir/index.html"), "./page.html"));
+        Assert.assertNull(CrawlFrontier.normalize("mailto:someone@example.com"));
+        Assert.assertNull(CrawlFrontier.normalize(URI.create("http://example.com/"), "javascript:void(0)"));
+        Assert.assertNull(CrawlFrontier.normalize(URI.create("http://example.com/"), "#anchor"));
+    }
+
+    @Test
+    public void Dedupe() {
+        CrawlFrontier frontier = new CrawlFrontier.InMemory(1000, 0.001, 1 << 20);
+        Assert.assertTrue(frontier.offer("http://example.com/a", 0));
+        Assert.assertFalse(frontier.offer("http://EXAMPLE.com:80/a#b", 0));
+        Assert.assertTrue(frontier.seen("http://example.com/a"));
+        Assert.assertEquals("http://example.com/a", frontier.poll());
+        Assert.assertFalse(frontier.offer("http://example.com/a", 0)); // 取出后仍记为见过
+        Assert.assertNull(frontier.poll());
+    }
+
+    @Test
+    public void PriorityAndHostRotation() {
+        CrawlFrontier frontier = new CrawlFrontier.InMemory(1000, 0.001, 1 << 20);
+        frontier.offer("http://a.com/1", 0);
+        frontier.offer("http://a.com/2", 5);
+        frontier.offer("http://a.com/3", 0);
+        frontier.offer("http://b.com/1", 0);
+
+        Assert.assertEquals(4, frontier.size());
+        Assert.assertEquals("http://a.com/2", frontier.poll());
+        Assert.assertEquals("http://b.com/1", frontier.poll());
+        Assert.assertEquals("http://a.com/1", frontier.poll());
+        Assert.assertEquals("http://a.com/3", frontier.poll());
+        Assert.assertEquals(0, frontier.size());
+    }
+
+    @Test
+    public void BloomFilterFalsePositiveRate() {
+        final int count = 200000;
+        final double fpp = 0.01;
+        BloomFilter filter = new BloomFilter(count, fpp);
+        for (int i = 0; i < count; i++)
+            filter.put("http://example.com/page/" + i);
+        for (int i = 0; i < count; i++)
+            Assert.assertTrue(filter.mightContain("http://example.com/page/" + i));
+
+        int falsePositives = 0;
+        for (int i = 0; i < count; i++)
+            if (filter.mightContain("http://example.org/other/" + i)) falsePositives++;
+        double rate = (double) falsePositives / count;
+        System.out.printf("BloomFilter: %d bytes, k=%d, measured fpp=%.4f, expected fpp=%.4f%n",
+                filter.sizeInBytes(), filter.hashCount(), rate, filter.expectedFpp());
+        Assert.assertTrue(rate < fpp * 2);
+    }
+
+    @Test
+    public void BloomFilterMemoryBudget() {
+        BloomFilter filter = new BloomFilter(10000000, 0.0001, 1 << 20);
+        Assert.assertEquals(1 << 20, filter.sizeInBytes());
+    }
+
+    @Test
+    public void BloomFilterIndexesBeyond32Bits() {
+        // 2^36位（8GB）的位数组，只检查位置的分布，不实际分配
+        final long bitCount = 1L << 36;
+        final int k = 7;
+        final int buckets = 64;
+        long[] occupancy = new long[buckets];
+        for (int i = 0; i < 100000; i++) {
+            long hash = BloomFilter.hash64("http://example.com/page/" + i);
+            for (int j = 0; j < k; j++) {
+                long index = BloomFilter.bitIndex(hash, j, bitCount);
+                Assert.assertTrue(index >= 0 && index < bitCount);
+                occupancy[(int) (index / (bitCount / buckets))]++;
+            }
+        }
+        double expected = 100000.0 * k / buckets;
+        for (long count : occupancy)
+            Assert.assertEquals(expected, count, expected * 0.1);
+    }
+
+    @Test
+    public void MappedCheckpointAndResume() throws IOException {
+        Path directory = Files.createTempDirectory("frontier");
+        MappedCrawlFrontier frontier = MappedCrawlFrontier.open(directory, 100000, 0.001, 1 << 20, 4096, 64);
+        for (int i = 0; i < 1000; i++) // 多个段文件
+            Assert.assertTrue(frontier.offer("http://host" + (i % 10) + ".com/page/" + i, 0));
+        Set<String> polled = new HashSet<String>();
+        for (int i = 0; i < 300; i++)
+            polled.add(frontier.poll());
+        frontier.checkpoint();
+        frontier.offer("http://late.com/", 0); // 检查点之后追加，恢复时扫描找回
+        frontier.close();
+
+        frontier = MappedCrawlFrontier.open(directory, 100000, 0.001, 1 << 20, 4096, 64);
+        Assert.assertEquals(701, frontier.size());
+        Assert.assertFalse(frontier.offer("http://host3.com/page/3", 0));
+        Assert.assertTrue(frontier.seen("http://late.com/"));
+        String url;
+        while ((url = frontier.poll()) != null)
+            Assert.assertTrue(polled.add(url));
+        Assert.assertEquals(1001, polled.size());
+        frontier.close();
+    }
+
+    @Test
+    public void MappedBloomBeyond32Bits() throws IOException {
+        // 5亿URL、1%误判率需要约4.8e9位（570MB），超过2^32位。文件是稀疏的，只有写入的页占用磁盘
+        Path directory = Files.createTempDirectory("frontier");
+        MappedCrawlFrontier frontier = MappedCrawlFrontier.open(directory, 500000000, 0.01, 1L << 30);
+        try {
+            for (int i = 0; i < 100000; i++)
+                Assert.assertTrue(frontier.offer("http://example.com/page/" + i, 0));
+            for (int i = 0; i < 100000; i++)
+                Assert.assertTrue(frontier.seen("http://example.com/page/" + i));
+            frontier.checkpoint();
+        } finally {
+            frontier.close();
+        }
+        try (FileChannel channel = FileChannel.open(directory.resolve("seen.bloom"), StandardOpenOption.READ)) {
+            Assert.assertTrue(channel.size() * 8 > 1L << 32);
+            // 2^32位之后的部分与同样大小的开头部分，置位数应当相近
+            long tail = channel.size() - (1L << 29);
+            long head = countBits(channel, 0, tail);
+            long beyond = countBits(channel, 1L << 29, tail);
+            Assert.assertTrue(beyond > 0);
+            Assert.assertEquals(head, beyond, head * 0.1);
+        } finally {
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+                for (Path file : files)
+                    Files.delete(file);
+            }
+            Files.delete(directory);
+        }
+    }
+
+    private static long countBits(FileChannel channel, long position, long size) throws IOException {
+        LongBuffer longs = channel.map(FileChannel.MapMode.READ_ONLY, position, size).asLongBuffer();
+        long count = 0;
+        while (longs.hasRemaining())
+            count += Long.bitCount(longs.get());
+        return count;
+    }
+
+    @Test
+    public void LinkExtraction() throws IOException {
+        String html = "<!DOCTYPE html><head><base href=\"/sub/\"><!-- <a href=\"/comment\"> -->"
+                + "<script>document.write('<a href=\"/script\">');</script></head>"
+                + "<body><A HREF='page.html?a=1&amp;b=2'>x</a><img src=img.png alt=\"<a href=/alt>\">"
+                + "<a data-href=\"/data\" href = \"https://Other.com:443/p#top\">y</a><a href=\"javascript:void(0)\">z</a></body>";
+        List<String> links = new ArrayList<String>();
+        new LinkExtractor().extract(new StringReader(html), URI.create("http://example.com/dir/index.html"),
+                (tag, attribute, url) -> links.add(tag + " " + url));
+        Assert.assertEquals(3, links.size());
+        Assert.assertEquals("a http://example.com/sub/page.html?a=1&b=2", links.get(0));
+        Assert.assertEquals("img http://example.com/sub/img.png", links.get(1));
+        Assert.assertEquals("a https://other.com/p", links.get(2));
+    }
+
+    @Test
+    public void HashRingBalanceAndMovement() {
+        List<String> nodes = new ArrayList<String>();
+        for (int i = 0; i < 4; i++) nodes.add("127.0.0.1:" + (7001 + i));
+        ShardedFrontier.HashRing ring = new ShardedFrontier.HashRing(nodes);
+        nodes.add("127.0.0.1:7005");
+        ShardedFrontier.HashRing grown = new ShardedFrontier.HashRing(nodes);
+
+        int[] counts = new int[4];
+        int moved = 0, hosts = 100000;
+        for (int i = 0; i < hosts; i++) {
+            String host = "host" + i + ".example.com";
+            int shard = ring.shardOf(host);
+            counts[shard]++;
+            int after = grown.shardOf(host);
+            if (after != shard) {
+                moved++;
+                Assert.assertEquals(4, after); // 只会移到新节点
+            }
+        }
+        for (int count : counts)
+            Assert.assertTrue("unbalanced " + count, Math.abs(count - hosts / 4) < hosts / 4 * 0.15);
+        Assert.assertTrue("moved " + moved, Math.abs(moved - hosts / 5) < hosts / 5 * 0.25);
+    }
+
+    @Test
+    public void ShardedFrontierForwardsLongUrls() throws Exception {
+        List<InetSocketAddress> nodes = new ArrayList<InetSocketAddress>();
+        for (int i = 0; i < 2; i++) {
+            try (ServerSocket probe = new ServerSocket(0, 0, InetAddress.getLoopbackAddress())) {
+                nodes.add(new InetSocketAddress("127.0.0.1", probe.getLocalPort()));
+            }
+        }
+        try (ShardedFrontier first = new ShardedFrontier(0, nodes, new CrawlFrontier.InMemory(1000, 0.01, 1 << 20));
+             ShardedFrontier second = new ShardedFrontier(1, nodes, new CrawlFrontier.InMemory(1000, 0.01, 1 << 20))) {
+            String host = null;
+            for (int i = 0; host == null; i++)
+                if (first.ring().shardOf("host" + i + ".example.com") == 1) host = "host" + i + ".example.com";
+
+            // 超过writeUTF的64KB上限的URL照常转发，超过1MB的不转发
+            StringBuilder path = new StringBuilder();
+            while (path.length() < 100000) path.append("segment/");
+            String url = "http://" + host + "/" + path;
+            Assert.assertTrue(first.offer(url, 0));
+            Assert.assertTrue(first.offer("http://" + host + "/short", 0));
+            while (path.length() <= 1 << 20) path.append(path);
+            Assert.assertFalse(first.offer("http://" + host + "/" + path, 0));
+            Assert.assertEquals(1, first.dropped());
+            Assert.assertTrue(first.flush(5000));
+            Assert.assertEquals(2, first.forwarded());
+
+            long deadline = System.currentTimeMillis() + 5000;
+            while (second.received() < 2 && System.currentTimeMillis() < deadline) Thread.sleep(10);
+            Assert.assertEquals(2, second.received());
+            Assert.assertTrue(second.seen(url));
+            Assert.assertTrue(second.seen("http://" + host + "/short"));
+        }
+    }
+
+    /**
+     * 本地4个端口模拟4个主机，3个工作进程按主机分片抓取，每个页面只被所属进程抓取一次
+     */
+    @Test
+    public void ShardedCrawlAcrossProcesses() throws Exception {
+        final int sites = 4, pages = 5;
+        List<HttpServer> servers = new ArrayList<HttpServer>();
+        final List<Integer> ports = new ArrayList<Integer>();
+        for (int i = 0; i < sites; i++) {
+            HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+            servers.add(server);
+            ports.add(server.getAddress().getPort());
+        }
+        for (int i = 0; i < sites; i++) {
+            final int site = i;
+            servers.get(i).createContext("/", exchange -> {
+                int page = Integer.parseInt(exchange.getRequestURI().getPath().substring(2));
+                // 同一主机的下一页，以及下一个主机的第一页
+                String html = "<a href=\"/p" + (page + 1) % pages + "\">next</a>"
+                        + "<a href=\"http://127.0.0.1:" + ports.get((site + 1) % sites) + "/p0\">other</a>";
+                byte[] body = html.getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/html; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            });
+            servers.get(i).start();
+        }
+
+        final int workers = 3;
+        List<String> names = new ArrayList<String>();
+        StringBuilder nodes = new StringBuilder();
+        for (int i = 0; i < workers; i++) {
+            int port;
+            try (ServerSocket probe = new ServerSocket(0, 0, InetAddress.getLoopbackAddress())) {
+                port = probe.getLocalPort();
+            }
+            names.add("127.0.0.1:" + port);
+            nodes.append(i == 0 ? "" : ",").append("127.0.0.1:").append(port);
+        }
+        String java = System.getProperty("java.home") + "/bin/java";
+        List<Process> processes = new ArrayList<Process>();
+        try {
+            for (int i = 0; i < workers; i++) {
+                // 每个进程都拿到种子，不属于自己的会被转发，由所属进程去重
+                processes.add(new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), "ShardedFrontier",
+                        String.valueOf(i), nodes.toString(), "2000", "http://127.0.0.1:" + ports.get(0) + "/p0")
+                        .redirectErrorStream(true).start());
+            }
+            Map<String, Integer> fetchedBy = new HashMap<String, Integer>();
+            for (int i = 0; i < workers; i++) {
+                Process process = processes.get(i);
+                try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        Assert.assertTrue(line, line.startsWith("FETCHED "));
+                        Assert.assertNull("fetched twice: " + line, fetchedBy.put(line.substring(8), i));
+                    }
+                }
+                Assert.assertTrue(process.waitFor(60, TimeUnit.SECONDS));
+            }
+
+            ShardedFrontier.HashRing ring = new ShardedFrontier.HashRing(names);
+            Assert.assertEquals(sites * pages, fetchedBy.size());
+            for (Map.Entry<String, Integer> entry : fetchedBy.entrySet())
+                Assert.assertEquals(entry.getKey(), ring.shardOf(CrawlFrontier.hostOf(entry.getKey())), (int) entry.getValue());
+        } finally {
+            for (Process process : processes) process.destroyForcibly();
+            for (HttpServer server : servers) server.stop(0);
+        }
+    }
+}
@@ -0,0 +1,286 @@
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 进程内的域名解析缓存：按TTL缓存解析结果，解析失败的域名也缓存一段时间（负缓存），
+ * 可选在条目接近过期时在后台提前刷新，请求线程不会等待解析。同一域名的并发解析合并为一次。<br/>
+ * 独立使用，不接入HttpRequester：HttpURLConnection不能指定解析器，连接的地址总是由它自己通过InetAddress解析决定，
+ * JDK 17也没有可替换的全局解析器（InetAddressResolverProvider从JDK 18开始）。
+ * 提前刷新只对绕过JDK缓存的解析器有意义（JDK缓存有效期内系统解析器的刷新只会命中JDK缓存），默认不开启。线程安全。
+ */
+public class DnsCache {
+    /**
+     * 域名解析器
+     */
+    public interface Resolver {
+        Resolver SYSTEM = InetAddress::getAllByName;
+
+        InetAddress[] resolve(String host) throws UnknownHostException;
+    }
+
+    /**
+     * 用于测试的解析器：从预设的表中返回结果，可以模拟解析延迟，统计解析次数
+     */
+    public static class StubResolver implements Resolver {
+        private final Map<String, InetAddress[]> records;
+        private final long latency;
+        private final AtomicInteger lookups;
+
+        /**
+         * @param latency 每次解析的延迟，毫秒
+         */
+        public StubResolver(long latency) {
+            this.records = new ConcurrentHashMap<String, InetAddress[]>();
+            this.latency = latency;
+            this.lookups = new AtomicInteger();
+        }
+
+        /**
+         * @param host    域名
+         * @param address IP地址，例如"10.0.0.1"
+         */
+        public StubResolver put(String host, String... address) throws UnknownHostException {
+            InetAddress[] addresses = new InetAddress[address.length];
+            for (int i = 0; i < address.length; i++)
+                addresses[i] = InetAddress.getByAddress(host, InetAddress.getByName(address[i]).getAddress());
+            this.records.put(host.toLowerCase(), addresses);
+            return this;
+        }
+
+        @Override
+        public InetAddress[] resolve(String host) throws UnknownHostException {
+            this.lookups.incrementAndGet();
+            if (this.latency > 0) {
+                try {
+                    Thread.sleep(this.latency);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            InetAddress[] addresses = this.records.get(host.toLowerCase());
+            if (addresses == null) throw new UnknownHostException(host);
+            return addresses.clone();
+        }
+
+        public int lookups() {
+            return this.lookups.get();
+        }
+    }
+
+    private static class Entry {
+        private final InetAddress[] addresses;
+        private final UnknownHostException failure;
+        private final long expiresAt;
+        private final long refreshAt;
+        private final AtomicBoolean refreshing;
+
+        private Entry(InetAddress[] addresses, UnknownHostException failure, long expiresAt, long refreshAt) {
+            this.addresses = addresses;
+            this.failure = failure;
+            this.expiresAt = expiresAt;
+            this.refreshAt = refreshAt;
+            this.refreshing = new AtomicBoolean(false);
+        }
+    }
+
+    private static final ExecutorService refresher = Executors.newFixedThreadPool(4, runnable -> {
+        Thread thread = new Thread(runnable, "DnsCache-refresh");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Resolver resolver;
+    private final long ttl;
+    private final long negativeTtl;
+    private final double refreshAhead;
+    private final int maxEntries;
+    private final ConcurrentHashMap<String, CompletableFuture<Entry>> entries;
+    private final LongAdder hits;
+    private final LongAdder misses;
+    private final LongAdder negativeHits;
+    private final LongAdder refreshes;
+
+    /**
+     * @param resolver     实际的解析器
+     * @param ttl          解析成功的缓存时间，毫秒
+     * @param negativeTtl  解析失败的缓存时间，毫秒
+     * @param refreshAhead 条目经过ttl的该比例后，下次使用时在后台刷新，例如0.8，1则不提前刷新
+     * @param maxEntries   最多缓存的域名数
+     */
+    public DnsCache(Resolver resolver, long ttl, long negativeTtl, double refreshAhead, int maxEntries) {
+        if (ttl <= 0 || negativeTtl < 0 || refreshAhead <= 0 || refreshAhead > 1 || maxEntries < 1)
+            throw new IllegalArgumentException("invalid dns cache parameters");
+        this.resolver = resolver;
+        this.ttl = ttl;
+        this.negativeTtl = negativeTtl;
+        this.refreshAhead = refreshAhead;
+        this.maxEntries = maxEntries;
+        this.entries = new ConcurrentHashMap<String, CompletableFuture<Entry>>();
+        this.hits = new LongAdder();
+        this.misses = new LongAdder();
+        this.negativeHits = new LongAdder();
+        this.refreshes = new LongAdder();
+    }
+
+    /**
+     * 系统解析器，成功缓存30秒（与JDK默认一致），失败缓存5秒，不提前刷新
+     */
+    public DnsCache() {
+        this(Resolver.SYSTEM, 30000, 5000, 1, 10000);
+    }
+
+    /**
+     * 解析域名，缓存未命中时在当前线程解析，同一域名的其他线程等待同一次解析
+     *
+     * @param host 域名
+     * @return 全部地址
+     * @throws UnknownHostException 解析失败，或负缓存中记录的失败
+     */
+    public InetAddress[] resolve(String host) throws UnknownHostException {
+        String key = host.toLowerCase();
+        long now = System.currentTimeMillis();
+        CompletableFuture<Entry> future = this.entries.get(key);
+        boolean owner = false;
+        if (future == null || (future.isDone() && this.entryOf(future).expiresAt <= now)) {
+            CompletableFuture<Entry> created = new CompletableFuture<Entry>();
+            if (future == null ? this.entries.putIfAbsent(key, created) == null : this.entries.replace(key, future, created)) {
+                future = created;
+                owner = true;
+            } else {
+                future = this.entries.get(key);
+                if (future == null) return this.resolve(host); // 刚被清理
+            }
+        }
+
+        Entry entry;
+        if (owner) {
+            this.misses.increment();
+            this.trim();
+            entry = this.load(key);
+            future.complete(entry);
+        } else {
+            boolean done = future.isDone();
+            entry = this.entryOf(future);
+            if (done) this.hits.increment();
+            else this.misses.increment();
+            if (entry.failure == null && entry.refreshAt <= now && entry.expiresAt > now)
+                this.refresh(key, future, entry);
+        }
+        if (entry.failure != null) {
+            if (!owner) this.negativeHits.increment();
+            throw entry.failure;
+        }
+        return entry.addresses.clone();
+    }
+
+    /**
+     * 在后台解析域名，例如在URL进入frontier时预取
+     *
+     * @param host 域名
+     */
+    public void prefetch(final String host) {
+        CompletableFuture<Entry> future = this.entries.get(host.toLowerCase());
+        if (future != null && future.isDone() && this.entryOf(future).expiresAt > System.currentTimeMillis()) return;
+        refresher.execute(() -> {
+            try {
+                DnsCache.this.resolve(host);
+            } catch (UnknownHostException ignored) {
+                // 已记入负缓存
+            }
+        });
+    }
+
+    private Entry entryOf(CompletableFuture<Entry> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return new Entry(null, new UnknownHostException("Interrupted while resolving"), 0, 0);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause()); // load不会异常完成
+        }
+    }
+
+    private Entry load(String host) {
+        long now = System.currentTimeMillis();
+        try {
+            InetAddress[] addresses = this.resolver.resolve(host);
+            return new Entry(addresses, null, now + this.ttl, now + (long) (this.ttl * this.refreshAhead));
+        } catch (UnknownHostException e) {
+            return new Entry(null, e, now + this.negativeTtl, Long.MAX_VALUE);
+        } catch (RuntimeException e) {
+            UnknownHostException failure = new UnknownHostException(host + ": " + e);
+            failure.initCause(e);
+            return new Entry(null, failure, now + this.negativeTtl, Long.MAX_VALUE);
+        }
+    }
+
+    /**
+     * 后台刷新，刷新期间仍使用旧的结果；刷新失败时保留旧的结果直到过期
+     */
+    private void refresh(final String host, final CompletableFuture<Entry> current, Entry entry) {
+        if (!entry.refreshing.compareAndSet(false, true)) return;
+        this.refreshes.increment();
+        refresher.execute(() -> {
+            Entry fresh = DnsCache.this.load(host);
+            if (fresh.failure == null)
+                DnsCache.this.entries.replace(host, current, CompletableFuture.completedFuture(fresh));
+        });
+    }
+
+    /**
+     * 超出上限时先清理过期的条目，仍超出则随机淘汰
+     */
+    private void trim() {
+        if (this.entries.size() <= this.maxEntries) return;
+        long now = System.currentTimeMillis();
+        for (Iterator<Map.Entry<String, CompletableFuture<Entry>>> iterator = this.entries.entrySet().iterator(); iterator.hasNext(); ) {
+            CompletableFuture<Entry> future = iterator.next().getValue();
+            if (future.isDone() && this.entryOf(future).expiresAt <= now) iterator.remove();
+        }
+        for (Iterator<Map.Entry<String, CompletableFuture<Entry>>> iterator = this.entries.entrySet().iterator();
+             iterator.hasNext() && this.entries.size() > this.maxEntries; ) {
+            if (iterator.next().getValue().isDone()) iterator.remove();
+        }
+    }
+
+    public void clear() {
+        this.entries.clear();
+    }
+
+    public int size() {
+        return this.entries.size();
+    }
+
+    public long hits() {
+        return this.hits.sum();
+    }
+
+    public long misses() {
+        return this.misses.sum();
+    }
+
+    /**
+     * @return 命中负缓存的次数
+     */
+    public long negativeHits() {
+        return this.negativeHits.sum();
+    }
+
+    /**
+     * @return 后台提前刷新的次数
+     */
+    public long refreshes() {
+        return this.refreshes.sum();
+    }
+}
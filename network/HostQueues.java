@@ -0,0 +1,69 @@
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * 按主机分组的优先级队列：取出时在各主机之间轮转，同一主机内按优先级从高到低、同优先级按序号先进先出。非线程安全。
+ */
+final class HostQueues {
+    static final class Item implements Comparable<Item> {
+        final String url;
+        final int priority;
+        final long sequence;
+
+        private Item(String url, int priority, long sequence) {
+            this.url = url;
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(Item o) {
+            if (this.priority != o.priority) return this.priority > o.priority ? -1 : 1;
+            return Long.compare(this.sequence, o.sequence);
+        }
+    }
+
+    private final Map<String, PriorityQueue<Item>> queues;
+    private final ArrayDeque<String> hosts; // 有待抓取URL的主机，轮转顺序
+    private int size;
+
+    HostQueues() {
+        this.queues = new HashMap<String, PriorityQueue<Item>>();
+        this.hosts = new ArrayDeque<String>();
+        this.size = 0;
+    }
+
+    /**
+     * @param url 规范化的URL
+     */
+    void add(String url, int priority, long sequence) {
+        String host = CrawlFrontier.hostOf(url);
+        PriorityQueue<Item> queue = this.queues.get(host);
+        if (queue == null) {
+            queue = new PriorityQueue<Item>();
+            this.queues.put(host, queue);
+            this.hosts.addLast(host);
+        }
+        queue.add(new Item(url, priority, sequence));
+        this.size++;
+    }
+
+    Item poll() {
+        String host = this.hosts.pollFirst();
+        if (host == null) return null;
+        PriorityQueue<Item> queue = this.queues.get(host);
+        Item item = queue.poll();
+        if (queue.isEmpty())
+            this.queues.remove(host);
+        else
+            this.hosts.addLast(host);
+        this.size--;
+        return item;
+    }
+
+    int size() {
+        return this.size;
+    }
+}
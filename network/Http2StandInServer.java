@@ -0,0 +1,578 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 支持明文HTTP/2（h2c）的本地服务器替身，用于验证HTTP/2模式的多路复用：多个并发请求共用一个连接、
+ * 同一连接上同时进行的stream数不超过限制。<br/>
+ * 支持HTTP/1.1请求中的Upgrade: h2c（java.net.http.HttpClient对http的URL使用这种方式）与直接发送连接序言（prior knowledge），
+ * 不升级的HTTP/1.1请求按keep-alive处理，因此HttpRequester的普通模式也可以使用同一个替身比较。<br/>
+ * 只实现替身需要的部分：完整的HPACK解码（含Huffman与动态表），响应头不使用动态表；
+ * 不处理流量控制，响应正文不能超过初始窗口（64KB）。每个请求等待latency毫秒后以text/plain返回请求的查询字符串。
+ */
+public class Http2StandInServer implements Closeable {
+    private static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final int MAX_BODY = 65535;
+    private static final int FRAME_SIZE = 16384;
+
+    private static final int DATA = 0x0;
+    private static final int HEADERS = 0x1;
+    private static final int SETTINGS = 0x4;
+    private static final int PING = 0x6;
+    private static final int GOAWAY = 0x7;
+    private static final int CONTINUATION = 0x9;
+
+    private static final int END_STREAM = 0x1;
+    private static final int ACK = 0x1;
+    private static final int END_HEADERS = 0x4;
+    private static final int PADDED = 0x8;
+    private static final int PRIORITY = 0x20;
+
+    private final ServerSocket server;
+    private final ExecutorService executor;
+    private final List<Socket> sockets;
+    private final LongAdder connections;
+    private final LongAdder http2Connections;
+    private final LongAdder requests;
+    private final AtomicInteger maxStreams; // 单个连接上观察到的最大并发stream数
+    private volatile long latency;
+    private volatile int maxConcurrentStreams;
+    private volatile boolean closed;
+
+    /**
+     * 在回环地址的随机端口上监听，调用start后开始服务
+     */
+    public Http2StandInServer() throws IOException {
+        this.server = new ServerSocket(0, 1024, InetAddress.getLoopbackAddress());
+        final AtomicInteger threads = new AtomicInteger();
+        this.executor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "Http2StandInServer-" + threads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.sockets = Collections.synchronizedList(new ArrayList<Socket>());
+        this.connections = new LongAdder();
+        this.http2Connections = new LongAdder();
+        this.requests = new LongAdder();
+        this.maxStreams = new AtomicInteger();
+    }
+
+    public Http2StandInServer start() {
+        this.executor.execute(this::accept);
+        return this;
+    }
+
+    /**
+     * @param latency 每个请求在响应前等待的时间，毫秒
+     */
+    public Http2StandInServer latency(long latency) {
+        this.latency = latency;
+        return this;
+    }
+
+    /**
+     * @param maxConcurrentStreams 在SETTINGS中声明的SETTINGS_MAX_CONCURRENT_STREAMS，0则不声明（不限制）
+     */
+    public Http2StandInServer maxConcurrentStreams(int maxConcurrentStreams) {
+        this.maxConcurrentStreams = maxConcurrentStreams;
+        return this;
+    }
+
+    private void accept() {
+        while (!this.closed) {
+            try {
+                final Socket socket = this.server.accept();
+                socket.setTcpNoDelay(true);
+                this.sockets.add(socket);
+                this.connections.increment();
+                this.executor.execute(() -> this.serve(socket));
+            } catch (IOException e) {
+                if (this.closed) return;
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try (Socket ignored = socket) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 64 * 1024));
+            while (!this.closed) {
+                String requestLine = readLine(in);
+                if (requestLine == null) return;
+                if (requestLine.equals("PRI * HTTP/2.0")) {
+                    // 直接发送的连接序言，已读入第一行
+                    readLine(in);
+                    if (!"SM".equals(readLine(in)) || !"".equals(readLine(in))) return;
+                    new Connection(in, out).run(null);
+                    return;
+                }
+                Map<String, String> headers = new HashMap<String, String>();
+                String line;
+                while ((line = readLine(in)) != null && !line.isEmpty()) {
+                    int colon = line.indexOf(':');
+                    if (colon > 0)
+                        headers.put(line.substring(0, colon).trim().toLowerCase(Locale.ROOT), line.substring(colon + 1).trim());
+                }
+                if (line == null) return;
+                String length = headers.get("content-length");
+                if (length != null) in.skipBytes(Integer.parseInt(length));
+                String[] parts = requestLine.split(" ");
+                String path = parts.length > 1 ? parts[1] : "/";
+                String upgrade = headers.get("upgrade");
+                if (upgrade != null && upgrade.equalsIgnoreCase("h2c") && headers.containsKey("http2-settings")) {
+                    out.write("HTTP/1.1 101 Switching Protocols\r\nConnection: Upgrade\r\nUpgrade: h2c\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+                    out.flush();
+                    byte[] preface = new byte[PREFACE.length];
+                    Connection connection = new Connection(in, out);
+                    connection.run(() -> {
+                        in.readFully(preface);
+                        if (!Arrays.equals(preface, PREFACE)) throw new IOException("Invalid connection preface");
+                        connection.dispatch(1, path); // 升级的请求是stream 1
+                    });
+                    return;
+                }
+                byte[] body = this.respond(path);
+                out.write(("HTTP/1.1 200 OK\r\nContent-Type: text/plain\r\nContent-Length: " + body.length + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+                out.write(body);
+                out.flush();
+            }
+        } catch (IOException e) {
+            // 客户端断开
+        } finally {
+            this.sockets.remove(socket);
+        }
+    }
+
+    /**
+     * 等待latency后返回查询字符串
+     */
+    private byte[] respond(String path) {
+        this.requests.increment();
+        try {
+            if (this.latency > 0) TimeUnit.MILLISECONDS.sleep(this.latency);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        int question = path.indexOf('?');
+        byte[] body = (question == -1 ? "" : path.substring(question + 1)).getBytes(StandardCharsets.UTF_8);
+        if (body.length > MAX_BODY) throw new IllegalStateException("response body exceeds the initial flow-control window");
+        return body;
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = in.read()) != -1) {
+            if (b == '\n') {
+                int length = line.length();
+                if (length > 0 && line.charAt(length - 1) == '\r') line.setLength(length - 1);
+                return line.toString();
+            }
+            line.append((char) b);
+        }
+        return line.length() == 0 ? null : line.toString();
+    }
+
+    private interface Handshake {
+        void run() throws IOException;
+    }
+
+    /**
+     * 一个HTTP/2连接：读线程解析帧，每个请求在线程池中处理，写帧时锁住输出流
+     */
+    private final class Connection {
+        private final DataInputStream in;
+        private final DataOutputStream out;
+        private final HpackDecoder decoder;
+        private final AtomicInteger active;
+
+        private Connection(DataInputStream in, DataOutputStream out) {
+            this.in = in;
+            this.out = out;
+            this.decoder = new HpackDecoder();
+            this.active = new AtomicInteger();
+        }
+
+        /**
+         * @param handshake 发送服务器的SETTINGS后执行，用于读取升级后客户端的连接序言
+         */
+        private void run(Handshake handshake) throws IOException {
+            Http2StandInServer.this.http2Connections.increment();
+            int maxConcurrentStreams = Http2StandInServer.this.maxConcurrentStreams;
+            ByteArrayOutputStream settings = new ByteArrayOutputStream();
+            if (maxConcurrentStreams > 0) {
+                DataOutputStream payload = new DataOutputStream(settings);
+                payload.writeShort(0x3); // SETTINGS_MAX_CONCURRENT_STREAMS
+                payload.writeInt(maxConcurrentStreams);
+            }
+            this.write(SETTINGS, 0, 0, settings.toByteArray(), null);
+            if (handshake != null) handshake.run();
+
+            ByteArrayOutputStream block = null;
+            int blockStream = 0;
+            while (!Http2StandInServer.this.closed) {
+                int length;
+                try {
+                    length = (this.in.readUnsignedByte() << 16) | this.in.readUnsignedShort();
+                } catch (EOFException e) {
+                    return;
+                }
+                int type = this.in.readUnsignedByte();
+                int flags = this.in.readUnsignedByte();
+                int stream = this.in.readInt() & 0x7fffffff;
+                byte[] payload = new byte[length];
+                this.in.readFully(payload);
+
+                if (type == HEADERS) {
+                    int offset = 0, end = length;
+                    if ((flags & PADDED) != 0) end -= payload[offset++] & 0xFF;
+                    if ((flags & PRIORITY) != 0) offset += 5;
+                    block = new ByteArrayOutputStream();
+                    block.write(payload, offset, end - offset);
+                    blockStream = stream;
+                } else if (type == CONTINUATION && block != null) {
+                    block.write(payload, 0, length);
+                } else if (type == SETTINGS && (flags & ACK) == 0) {
+                    this.write(SETTINGS, ACK, 0, new byte[0], null);
+                } else if (type == PING && (flags & ACK) == 0) {
+                    this.write(PING, ACK, 0, payload, null);
+                } else if (type == GOAWAY) {
+                    return;
+                }
+                // DATA、WINDOW_UPDATE、PRIORITY、RST_STREAM与未知类型的帧忽略
+
+                if ((type == HEADERS || type == CONTINUATION) && (flags & END_HEADERS) != 0 && block != null) {
+                    Map<String, String> headers = this.decoder.decode(block.toByteArray());
+                    block = null;
+                    this.dispatch(blockStream, headers.get(":path"));
+                }
+            }
+        }
+
+        private void dispatch(final int stream, final String path) {
+            int current = this.active.incrementAndGet();
+            Http2StandInServer.this.maxStreams.accumulateAndGet(current, Math::max);
+            Http2StandInServer.this.executor.execute(() -> {
+                byte[] body;
+                try {
+                    body = Http2StandInServer.this.respond(path == null ? "/" : path);
+                } finally {
+                    // 在发出END_STREAM之前减少，否则客户端收到响应后开始的下一个stream可能被重复计数
+                    this.active.decrementAndGet();
+                }
+                ByteArrayOutputStream headers = new ByteArrayOutputStream();
+                headers.write(0x88); // :status 200，静态表第8项
+                literal(headers, "content-type", "text/plain");
+                literal(headers, "content-length", String.valueOf(body.length));
+                try {
+                    this.write(HEADERS, END_HEADERS, stream, headers.toByteArray(), body);
+                } catch (IOException e) {
+                    // 连接已断开
+                }
+            });
+        }
+
+        /**
+         * 写出一帧，body不为null时随后写出DATA帧并结束stream
+         */
+        private void write(int type, int flags, int stream, byte[] payload, byte[] body) throws IOException {
+            synchronized (this.out) {
+                this.frame(type, flags | (body != null && body.length == 0 ? END_STREAM : 0), stream, payload, 0, payload.length);
+                if (body != null) {
+                    for (int offset = 0; offset < body.length; offset += FRAME_SIZE) {
+                        int length = Math.min(FRAME_SIZE, body.length - offset);
+                        this.frame(DATA, offset + length == body.length ? END_STREAM : 0, stream, body, offset, length);
+                    }
+                }
+                this.out.flush();
+            }
+        }
+
+        private void frame(int type, int flags, int stream, byte[] payload, int offset, int length) throws IOException {
+            this.out.writeByte(length >>> 16);
+            this.out.writeShort(length & 0xFFFF);
+            this.out.writeByte(type);
+            this.out.writeByte(flags);
+            this.out.writeInt(stream);
+            this.out.write(payload, offset, length);
+        }
+    }
+
+    /**
+     * 不加入动态表、不使用Huffman的字面量头部，名字不查静态表
+     */
+    private static void literal(ByteArrayOutputStream out, String name, String value) {
+        out.write(0x00);
+        for (String string : new String[]{name, value}) {
+            byte[] bytes = string.getBytes(StandardCharsets.US_ASCII);
+            writeInteger(out, 0x00, 7, bytes.length);
+            out.write(bytes, 0, bytes.length);
+        }
+    }
+
+    private static void writeInteger(ByteArrayOutputStream out, int first, int prefix, int value) {
+        int max = (1 << prefix) - 1;
+        if (value < max) {
+            out.write(first | value);
+            return;
+        }
+        out.write(first | max);
+        value -= max;
+        while (value >= 0x80) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    /**
+     * RFC 7541的HPACK解码：静态表、动态表与Huffman编码的字符串
+     */
+    static final class HpackDecoder {
+        private static final String[] STATIC_TABLE = {
+                ":authority", "", ":method", "GET", ":method", "POST", ":path", "/", ":path", "/index.html",
+                ":scheme", "http", ":scheme", "https", ":status", "200", ":status", "204", ":status", "206",
+                ":status", "304", ":status", "400", ":status", "404", ":status", "500", "accept-charset", "",
+                "accept-encoding", "gzip, deflate", "accept-language", "", "accept-ranges", "", "accept", "",
+                "access-control-allow-origin", "", "age", "", "allow", "", "authorization", "", "cache-control", "",
+                "content-disposition", "", "content-encoding", "", "content-language", "", "content-length", "",
+                "content-location", "", "content-range", "", "content-type", "", "cookie", "", "date", "",
+                "etag", "", "expect", "", "expires", "", "from", "", "host", "", "if-match", "",
+                "if-modified-since", "", "if-none-match", "", "if-range", "", "if-unmodified-since", "",
+                "last-modified", "", "link", "", "location", "", "max-forwards", "", "proxy-authenticate", "",
+                "proxy-authorization", "", "range", "", "referer", "", "refresh", "", "retry-after", "",
+                "server", "", "set-cookie", "", "strict-transport-security", "", "transfer-encoding", "",
+                "user-agent", "", "vary", "", "via", "", "www-authenticate", ""};
+        private static final int STATIC_SIZE = STATIC_TABLE.length / 2;
+
+        /**
+         * 符号0-256（256为EOS）的Huffman码长，'A'表示5位。HPACK的Huffman码是规范码，由码长即可得到码字
+         */
+        private static final String CODE_LENGTHS = "ISXXXXXXXTZXXZXXXXXXXXZXXXXXXXXXBFFHIBDGFFDGDBBBAAABBBBBBBCDKBHFIBCCCCCCCCCCCC"
+                + "CCCCCCCCCCDCDIOIJBKABABABBBACCBBBABCBAABCCCCCKGJIXPRPPRRRSRSSSSSTSTTRSTSSSSQRSRSSTRQPRRSSQSRRTQRSS"
+                + "QQRQSRSSPRRRSRRSVVPORSRUVVVWWVTUOQVWWVWTQQVVXWWWPTPQRQQSRRUUTTVSVWVVWWWWWXWWWWWVZ";
+        private static final int MAX_CODE_LENGTH = 30;
+        private static final long[] FIRST_CODE = new long[MAX_CODE_LENGTH + 2]; // 每个码长的第一个码字
+        private static final int[] FIRST_INDEX = new int[MAX_CODE_LENGTH + 2]; // 每个码长在SYMBOLS中的起始位置
+        private static final int[] SYMBOLS = new int[257]; // 按码长、符号排序
+
+        static {
+            int[] counts = new int[MAX_CODE_LENGTH + 2];
+            for (int symbol = 0; symbol < 257; symbol++)
+                counts[CODE_LENGTHS.charAt(symbol) - 'A' + 5]++;
+            long code = 0;
+            int index = 0;
+            for (int length = 1; length <= MAX_CODE_LENGTH; length++) {
+                FIRST_CODE[length] = code;
+                FIRST_INDEX[length] = index;
+                for (int symbol = 0; symbol < 257; symbol++)
+                    if (CODE_LENGTHS.charAt(symbol) - 'A' + 5 == length) SYMBOLS[index++] = symbol;
+                code = (code + counts[length]) << 1;
+            }
+            FIRST_INDEX[MAX_CODE_LENGTH + 1] = index;
+        }
+
+        private final ArrayDeque<String[]> dynamic; // 最新的在前
+        private int size;
+        private int maxSize;
+
+        HpackDecoder() {
+            this.dynamic = new ArrayDeque<String[]>();
+            this.maxSize = 4096;
+        }
+
+        /**
+         * @return 头部名 -> 值，同名的头部只保留最后一个
+         */
+        Map<String, String> decode(byte[] block) throws IOException {
+            Map<String, String> headers = new HashMap<String, String>();
+            int[] position = {0};
+            while (position[0] < block.length) {
+                int b = block[position[0]] & 0xFF;
+                if ((b & 0x80) != 0) { // 索引的头部
+                    String[] entry = this.entry(readInteger(block, position, 7));
+                    headers.put(entry[0], entry[1]);
+                } else if ((b & 0xC0) == 0x40) { // 字面量，加入动态表
+                    String[] entry = this.readLiteral(block, position, 6);
+                    headers.put(entry[0], entry[1]);
+                    this.add(entry);
+                } else if ((b & 0xE0) == 0x20) { // 动态表大小更新
+                    this.maxSize = readInteger(block, position, 5);
+                    this.evict();
+                } else { // 字面量，不加入动态表（0000与0001）
+                    String[] entry = this.readLiteral(block, position, 4);
+                    headers.put(entry[0], entry[1]);
+                }
+            }
+            return headers;
+        }
+
+        private String[] readLiteral(byte[] block, int[] position, int prefix) throws IOException {
+            int index = readInteger(block, position, prefix);
+            String name = index == 0 ? readString(block, position) : this.entry(index)[0];
+            return new String[]{name, readString(block, position)};
+        }
+
+        private String[] entry(int index) throws IOException {
+            if (index >= 1 && index <= STATIC_SIZE)
+                return new String[]{STATIC_TABLE[2 * index - 2], STATIC_TABLE[2 * index - 1]};
+            int dynamicIndex = index - STATIC_SIZE - 1;
+            if (index < 1 || dynamicIndex >= this.dynamic.size()) throw new IOException("Invalid HPACK index " + index);
+            int i = 0;
+            for (String[] entry : this.dynamic)
+                if (i++ == dynamicIndex) return entry;
+            throw new IOException("Invalid HPACK index " + index);
+        }
+
+        private void add(String[] entry) {
+            this.dynamic.addFirst(entry);
+            this.size += entrySize(entry);
+            this.evict();
+        }
+
+        private void evict() {
+            while (this.size > this.maxSize && !this.dynamic.isEmpty())
+                this.size -= entrySize(this.dynamic.removeLast());
+        }
+
+        private static int entrySize(String[] entry) {
+            return 32 + entry[0].getBytes(StandardCharsets.ISO_8859_1).length + entry[1].getBytes(StandardCharsets.ISO_8859_1).length;
+        }
+
+        private static int readInteger(byte[] block, int[] position, int prefix) throws IOException {
+            int max = (1 << prefix) - 1;
+            int value = block[position[0]++] & max;
+            if (value < max) return value;
+            for (int shift = 0; ; shift += 7) {
+                if (position[0] >= block.length || shift > 28) throw new IOException("Invalid HPACK integer");
+                int b = block[position[0]++] & 0xFF;
+                value += (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) return value;
+            }
+        }
+
+        private static String readString(byte[] block, int[] position) throws IOException {
+            if (position[0] >= block.length) throw new IOException("Truncated HPACK string");
+            boolean huffman = (block[position[0]] & 0x80) != 0;
+            int length = readInteger(block, position, 7);
+            if (position[0] + length > block.length) throw new IOException("Truncated HPACK string");
+            int start = position[0];
+            position[0] += length;
+            if (!huffman) return new String(block, start, length, StandardCharsets.ISO_8859_1);
+            return huffmanDecode(block, start, length);
+        }
+
+        static String huffmanDecode(byte[] block, int start, int length) throws IOException {
+            StringBuilder decoded = new StringBuilder(length * 8 / 5);
+            long code = 0;
+            int codeLength = 0;
+            for (int i = start; i < start + length; i++) {
+                for (int bit = 7; bit >= 0; bit--) {
+                    code = (code << 1) | ((block[i] >>> bit) & 1);
+                    codeLength++;
+                    int offset = (int) (code - FIRST_CODE[codeLength]);
+                    if (codeLength >= 5 && offset >= 0 && offset < FIRST_INDEX[codeLength + 1] - FIRST_INDEX[codeLength]) {
+                        int symbol = SYMBOLS[FIRST_INDEX[codeLength] + offset];
+                        if (symbol == 256) throw new IOException("EOS in Huffman string");
+                        decoded.append((char) symbol);
+                        code = 0;
+                        codeLength = 0;
+                    } else if (codeLength > MAX_CODE_LENGTH) {
+                        throw new IOException("Invalid Huffman code");
+                    }
+                }
+            }
+            // 结尾的填充是EOS的高位，即全为1且少于8位
+            if (codeLength > 7 || code != (1L << codeLength) - 1) throw new IOException("Invalid Huffman padding");
+            return decoded.toString();
+        }
+    }
+
+    public int port() {
+        return this.server.getLocalPort();
+    }
+
+    /**
+     * @param pathAndQuery 例如"/echo?id=1"
+     */
+    public URL url(String pathAndQuery) throws IOException {
+        return new URL("http://127.0.0.1:" + this.port() + pathAndQuery);
+    }
+
+    /**
+     * @return 接受的TCP连接数
+     */
+    public long connections() {
+        return this.connections.sum();
+    }
+
+    /**
+     * @return 以HTTP/2通信的连接数
+     */
+    public long http2Connections() {
+        return this.http2Connections.sum();
+    }
+
+    public long requests() {
+        return this.requests.sum();
+    }
+
+    /**
+     * @return 单个HTTP/2连接上同时进行的stream数的最大值
+     */
+    public int maxStreams() {
+        return this.maxStreams.get();
+    }
+
+    /**
+     * 清零统计，连接保持不变
+     */
+    public void resetStats() {
+        this.connections.reset();
+        this.http2Connections.reset();
+        this.requests.reset();
+        this.maxStreams.set(0);
+    }
+
+    @Override
+    public void close() {
+        this.closed = true;
+        try {
+            this.server.close();
+        } catch (IOException ignored) {
+        }
+        synchronized (this.sockets) {
+            for (Socket socket : this.sockets) {
+                try {
+                    socket.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+        this.executor.shutdownNow();
+    }
+}
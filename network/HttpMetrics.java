@@ -0,0 +1,370 @@
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * 按主机统计的请求指标：各阶段耗时的直方图、响应代码计数与字节数。<br/>
+ * 直方图为HDR风格的对数-线性分桶，每个2的幂区间分为32个桶，相对误差约3%，
+ * 记录只是一次原子自增，不加锁、不分配对象。线程安全。
+ */
+public class HttpMetrics {
+    private static final Logger logger = Logger.getLogger(HttpMetrics.class.getName());
+
+    private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "HttpMetrics-reporter");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public enum Phase {
+        /**
+         * 打开连接前单独进行的一次InetAddress域名解析，不使用代理的每个请求都记录；
+         * 命中缓存时接近0，不是连接自身的解析耗时
+         */
+        DNS,
+        /**
+         * 从打开连接到connect返回：新连接包括TCP与TLS握手，keep-alive复用的连接接近0；有正文时还包括写出正文
+         */
+        CONNECT,
+        /**
+         * connect返回后到收到响应头，没有正文时包括发送请求头
+         */
+        FIRST_BYTE,
+        /**
+         * 读取响应正文，到读完或关闭为止
+         */
+        BODY,
+        /**
+         * Spider处理器的执行时间
+         */
+        HANDLER,
+        /**
+         * 从开始请求到读完正文
+         */
+        TOTAL
+    }
+
+    /**
+     * 对数-线性分桶的直方图，单位微秒，超过上限的值按上限记录
+     */
+    public static class Histogram {
+        private static final int SUB_BITS = 5;
+        private static final int SUB_COUNT = 1 << SUB_BITS;
+        private static final long MAX_VALUE = (1L << 36) - 1; // 约19小时
+
+        private final AtomicLongArray counts;
+        private final LongAdder count;
+        private final LongAdder sum;
+        private final AtomicLong max;
+
+        public Histogram() {
+            this.counts = new AtomicLongArray(indexOf(MAX_VALUE) + 1);
+            this.count = new LongAdder();
+            this.sum = new LongAdder();
+            this.max = new AtomicLong();
+        }
+
+        /**
+         * 小于64的值每个值一个桶，之后每个2的幂区间32个桶
+         */
+        static int indexOf(long value) {
+            if (value < SUB_COUNT << 1) return (int) value;
+            int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+            return ((shift + 1) << SUB_BITS) + (int) (value >>> shift) - SUB_COUNT;
+        }
+
+        /**
+         * @return 桶的最大值
+         */
+        static long highestValueOf(int index) {
+            if (index < SUB_COUNT << 1) return index;
+            int shift = (index >>> SUB_BITS) - 1;
+            return (((long) (index & (SUB_COUNT - 1)) + SUB_COUNT) << shift) + (1L << shift) - 1;
+        }
+
+        public void record(long micros) {
+            long value = Math.max(0, Math.min(micros, MAX_VALUE));
+            this.counts.incrementAndGet(indexOf(value));
+            this.count.increment();
+            this.sum.add(value);
+            long max;
+            while (value > (max = this.max.get()) && !this.max.compareAndSet(max, value)) ;
+        }
+
+        public long count() {
+            return this.count.sum();
+        }
+
+        public long max() {
+            return this.max.get();
+        }
+
+        public double mean() {
+            long count = this.count.sum();
+            return count == 0 ? 0 : (double) this.sum.sum() / count;
+        }
+
+        /**
+         * @param percentile 百分位，例如99.9
+         * @return 不小于该百分位的值所在桶的最大值，没有记录时为0
+         */
+        public long percentile(double percentile) {
+            long total = 0;
+            long[] snapshot = new long[this.counts.length()];
+            for (int i = 0; i < snapshot.length; i++)
+                total += snapshot[i] = this.counts.get(i);
+            if (total == 0) return 0;
+            long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+            long seen = 0;
+            for (int i = 0; i < snapshot.length; i++) {
+                seen += snapshot[i];
+                if (seen >= rank) return Math.min(highestValueOf(i), this.max.get());
+            }
+            return this.max.get();
+        }
+    }
+
+    /**
+     * 一个主机的指标
+     */
+    public static class HostMetrics {
+        private final EnumMap<Phase, Histogram> phases;
+        private final ConcurrentMap<Integer, LongAdder> statuses;
+        private final LongAdder requests;
+        private final LongAdder errors;
+        private final LongAdder bytes;
+        private final LongAdder wireBytes;
+
+        private HostMetrics() {
+            this.phases = new EnumMap<Phase, Histogram>(Phase.class);
+            for (Phase phase : Phase.values())
+                this.phases.put(phase, new Histogram());
+            this.statuses = new ConcurrentHashMap<Integer, LongAdder>();
+            this.requests = new LongAdder();
+            this.errors = new LongAdder();
+            this.bytes = new LongAdder();
+            this.wireBytes = new LongAdder();
+        }
+
+        public Histogram histogram(Phase phase) {
+            return this.phases.get(phase);
+        }
+
+        public long requests() {
+            return this.requests.sum();
+        }
+
+        public long errors() {
+            return this.errors.sum();
+        }
+
+        /**
+         * @return 读取的响应正文字节数（解压后）
+         */
+        public long bytes() {
+            return this.bytes.sum();
+        }
+
+        /**
+         * @return 传输的响应正文字节数（解压前），与bytes比较可知压缩节省的带宽
+         */
+        public long wireBytes() {
+            return this.wireBytes.sum();
+        }
+
+        /**
+         * @return 响应代码 -> 次数
+         */
+        public Map<Integer, Long> statuses() {
+            Map<Integer, Long> result = new TreeMap<Integer, Long>();
+            for (Map.Entry<Integer, LongAdder> entry : this.statuses.entrySet())
+                result.put(entry.getKey(), entry.getValue().sum());
+            return result;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder();
+            builder.append("requests=").append(this.requests()).append(" errors=").append(this.errors())
+                    .append(" bytes=").append(this.bytes()).append(" wire=").append(this.wireBytes()).append(" status=").append(this.statuses());
+            for (Phase phase : Phase.values()) {
+                Histogram histogram = this.phases.get(phase);
+                if (histogram.count() == 0) continue;
+                builder.append(String.format(" %s[n=%d p50=%dus p95=%dus p99=%dus max=%dus]", phase.name().toLowerCase(),
+                        histogram.count(), histogram.percentile(50), histogram.percentile(95), histogram.percentile(99), histogram.max()));
+            }
+            return builder.toString();
+        }
+    }
+
+    /**
+     * 一次请求的计时，由HttpRequester在请求的各阶段调用
+     */
+    public static class Exchange {
+        private final HostMetrics host;
+        private final long start;
+        private long bodyStart;
+        private long bodyBytes;
+        private long compressedBytes;
+        private boolean finished;
+
+        private Exchange(HostMetrics host) {
+            this.host = host;
+            this.start = System.nanoTime();
+            this.compressedBytes = -1;
+            this.finished = false;
+            host.requests.increment();
+        }
+
+        public void phase(Phase phase, long nanos) {
+            this.host.phases.get(phase).record(nanos / 1000);
+        }
+
+        public void status(int responseCode) {
+            LongAdder counter = this.host.statuses.get(responseCode);
+            if (counter == null) {
+                LongAdder created = new LongAdder();
+                counter = this.host.statuses.putIfAbsent(responseCode, created);
+                if (counter == null) counter = created;
+            }
+            counter.increment();
+        }
+
+        /**
+         * 收到响应头，开始读取正文
+         */
+        public void bodyStarted() {
+            this.bodyStart = System.nanoTime();
+        }
+
+        public void bodyRead(int bytes) {
+            this.bodyBytes += bytes;
+        }
+
+        /**
+         * 压缩的正文解码完毕，可作为ContentDecoder.CompressedBytesListener
+         */
+        public void compressed(long compressed, long decoded) {
+            this.compressedBytes = compressed;
+        }
+
+        /**
+         * 正文读完或关闭，记录正文与总耗时，重复调用无效
+         */
+        public void finish() {
+            if (this.finished) return;
+            this.finished = true;
+            long now = System.nanoTime();
+            if (this.bodyStart != 0) this.phase(Phase.BODY, now - this.bodyStart);
+            this.phase(Phase.TOTAL, now - this.start);
+            this.host.bytes.add(this.bodyBytes);
+            this.host.wireBytes.add(this.compressedBytes >= 0 ? this.compressedBytes : this.bodyBytes);
+        }
+
+        public void error() {
+            if (this.finished) return;
+            this.finished = true;
+            this.host.errors.increment();
+        }
+    }
+
+    /**
+     * 主机数达到上限后，新主机的指标都记在这个名字下
+     */
+    public static final String OTHER = "(other)";
+
+    private final ConcurrentMap<String, HostMetrics> hosts;
+    private final int maxHosts;
+    private ScheduledFuture<?> reporter;
+
+    /**
+     * @param maxHosts 单独统计的主机数上限，每个主机的直方图约占48KB；之后的新主机合并记在OTHER下
+     */
+    public HttpMetrics(int maxHosts) {
+        if (maxHosts < 1) throw new IllegalArgumentException("maxHosts must be positive");
+        this.hosts = new ConcurrentHashMap<String, HostMetrics>();
+        this.maxHosts = maxHosts;
+    }
+
+    /**
+     * 最多单独统计256个主机
+     */
+    public HttpMetrics() {
+        this(256);
+    }
+
+    public HostMetrics host(String host) {
+        HostMetrics metrics = this.hosts.get(host);
+        if (metrics == null) {
+            // 并发添加时可能略微超过上限
+            if (this.hosts.size() >= this.maxHosts) host = OTHER;
+            HostMetrics created = new HostMetrics();
+            metrics = this.hosts.putIfAbsent(host, created);
+            if (metrics == null) metrics = created;
+        }
+        return metrics;
+    }
+
+    /**
+     * @param host 请求的主机
+     * @return 一次请求的计时
+     */
+    public Exchange start(String host) {
+        return new Exchange(this.host(host));
+    }
+
+    /**
+     * 记录Spider处理器的执行时间
+     */
+    public void handler(String host, long nanos) {
+        this.host(host).phases.get(Phase.HANDLER).record(nanos / 1000);
+    }
+
+    /**
+     * @return 主机 -> 指标，指标是实时的，读取时可能仍在更新
+     */
+    public Map<String, HostMetrics> snapshot() {
+        return Collections.unmodifiableMap(new TreeMap<String, HostMetrics>(this.hosts));
+    }
+
+    public void reset() {
+        this.hosts.clear();
+    }
+
+    /**
+     * @return 每个主机一行的报告
+     */
+    public String report() {
+        StringBuilder builder = new StringBuilder();
+        for (Map.Entry<String, HostMetrics> entry : this.snapshot().entrySet())
+            builder.append(entry.getKey()).append(' ').append(entry.getValue()).append('\n');
+        return builder.toString();
+    }
+
+    /**
+     * 定期以INFO级别把报告写入java.util.logging
+     *
+     * @param period 间隔，毫秒，0则停止报告
+     */
+    public synchronized void reportEvery(long period) {
+        if (this.reporter != null) this.reporter.cancel(false);
+        this.reporter = null;
+        if (period <= 0) return;
+        this.reporter = timer.scheduleAtFixedRate(() -> {
+            if (!HttpMetrics.this.hosts.isEmpty() && logger.isLoggable(Level.INFO))
+                logger.info("HTTP metrics\n" + HttpMetrics.this.report());
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+}
@@ -1,21 +1,42 @@
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.UnsupportedEncodingException;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.zip.GZIPInputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * Created by forDream on 2016-01-13.<br/>
  * Last edit on 2016-09-03 <br/>
- * Need JDK >= 1.6 <br/>
+ * Need JDK >= 1.8, HTTP/2 mode needs JDK >= 11 (java.net.http is only used through AsyncHttpRequester) <br/>
  * 使用HttpURLConnection包装了常用的GET/POST请求，不依赖第三方库
  */
 public class HttpRequester {
+    private static final Logger logger = Logger.getLogger(HttpRequester.class.getName());
+
     public static class HttpResponse {
         private InputStream response; // 响应正文
         private int responseCode; // 响应代码
@@ -59,61 +80,292 @@ public class HttpRequester {
         }
     }
 
+    /**
+     * 下载结果
+     */
+    public static class DownloadResult {
+        private final long transferred; // 本次传输的字节数
+        private final long fileSize; // 下载完成后的文件大小
+        private final long elapsedNanos;
+        private final boolean resumed; // 是否从已有的部分文件续传
+        private final int segments; // 并发下载的分段数
+        private final String hash; // 校验用的散列值，未校验时为null
+
+        DownloadResult(long transferred, long fileSize, long elapsedNanos, boolean resumed) {
+            this(transferred, fileSize, elapsedNanos, resumed, 1, null);
+        }
+
+        DownloadResult(long transferred, long fileSize, long elapsedNanos, boolean resumed, int segments, String hash) {
+            this.transferred = transferred;
+            this.fileSize = fileSize;
+            this.elapsedNanos = elapsedNanos;
+            this.resumed = resumed;
+            this.segments = segments;
+            this.hash = hash;
+        }
+
+        public long getTransferred() {
+            return transferred;
+        }
+
+        public long getFileSize() {
+            return fileSize;
+        }
+
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+
+        public boolean isResumed() {
+            return resumed;
+        }
+
+        public int getSegments() {
+            return segments;
+        }
+
+        /**
+         * @return 下载完成后文件的散列值(大写16进制)，未指定校验算法时为null
+         */
+        public String getHash() {
+            return hash;
+        }
+
+        /**
+         * @return 本次传输的平均速度，字节/秒
+         */
+        public double getBytesPerSecond() {
+            return this.elapsedNanos == 0 ? 0 : this.transferred * 1e9 / this.elapsedNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("DownloadResult[transferred=%d, fileSize=%d, resumed=%s, segments=%d, hash=%s, %.1f KB/s]",
+                    transferred, fileSize, resumed, segments, hash, getBytesPerSecond() / 1024);
+        }
+    }
+
     public static class HttpInputStream extends java.io.InputStream {
+        private static final int MAX_DRAIN_BYTES = 64 * 1024; // 关闭时最多读完的剩余正文，超出则断开连接
+        private static final int MAX_PRESIZE_BYTES = 16 * 1024 * 1024; // 按Content-Length预分配缓冲区的上限
         private java.io.InputStream is;
         private String toString;
+        private Charset charset;
+        private long contentLength;
+        private HttpURLConnection connection;
+        private HttpMetrics.Exchange exchange;
+        private boolean eof;
 
-        private HttpInputStream(java.io.InputStream is) {
+        HttpInputStream(java.io.InputStream is, Charset charset, long contentLength) {
+            this(is, charset, contentLength, null, null);
+        }
+
+        private HttpInputStream(java.io.InputStream is, Charset charset, long contentLength, HttpURLConnection connection, HttpMetrics.Exchange exchange) {
             this.is = is;
             this.toString = null;
+            this.charset = charset == null ? Charset.defaultCharset() : charset;
+            this.contentLength = contentLength;
+            this.connection = connection;
+            this.exchange = exchange;
+            this.eof = false;
+        }
+
+        /**
+         * @return 从Content-Type中解析的字符集，未声明时为平台默认字符集
+         */
+        public Charset getCharset() {
+            return charset;
         }
 
         @Override
         public int read() throws IOException {
-            return this.is.read();
+            int b = this.is.read();
+            if (b == -1) this.onEof();
+            else if (this.exchange != null) this.exchange.bodyRead(1);
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = this.is.read(b, off, len);
+            if (n == -1) this.onEof();
+            else if (this.exchange != null) this.exchange.bodyRead(n);
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            return this.is.skip(n);
+        }
+
+        @Override
+        public int available() throws IOException {
+            return this.is.available();
+        }
+
+        /**
+         * 将剩余正文全部写入输出流，JDK 9及以上覆盖InputStream.transferTo
+         *
+         * @param out 目标输出流
+         * @return 写入的字节数
+         * @throws IOException
+         */
+        public long transferTo(OutputStream out) throws IOException {
+            byte[] bytes = new byte[8192];
+            long transferred = 0;
+            int len;
+            while (-1 != (len = this.is.read(bytes, 0, bytes.length))) {
+                out.write(bytes, 0, len);
+                transferred += len;
+            }
+            if (this.exchange != null) this.exchange.bodyRead((int) Math.min(transferred, Integer.MAX_VALUE));
+            this.onEof();
+            return transferred;
+        }
+
+        private void onEof() {
+            this.eof = true;
+            if (this.exchange != null)
+                this.exchange.finish();
+        }
+
+        /**
+         * 读完剩余正文后关闭，使底层socket可以被keep-alive复用
+         */
+        @Override
+        public void close() throws IOException {
+            boolean reusable = this.eof;
+            try {
+                if (!reusable) {
+                    byte[] bytes = new byte[4096];
+                    int drained = 0, len;
+                    while (drained <= MAX_DRAIN_BYTES && -1 != (len = this.is.read(bytes, 0, bytes.length)))
+                        drained += len;
+                    reusable = drained <= MAX_DRAIN_BYTES;
+                }
+            } catch (IOException e) {
+                reusable = false;
+            } finally {
+                try {
+                    this.is.close();
+                } finally {
+                    if (!reusable && this.connection != null)
+                        this.connection.disconnect();
+                    if (this.exchange != null)
+                        this.exchange.finish();
+                }
+            }
         }
 
+        /**
+         * 读取剩余正文并按响应的字符集解码。<br/>
+         * 正文先完整读入一个按Content-Length预分配的缓冲区再一次性解码，多字节字符不会在分块处被截断。
+         */
         @Override
         public String toString() {
             if (this.toString == null) {
-                StringBuilder builder = new StringBuilder();
-                byte[] bytes = new byte[4096];
-                int len;
+                int capacity = this.contentLength > 0 ? (int) Math.min(this.contentLength, MAX_PRESIZE_BYTES) : 8192;
+                byte[] bytes = new byte[capacity];
+                int count = 0, len;
                 try {
-                    while (-1 != (len = this.is.read(bytes, 0, bytes.length)))
-                        builder.append(new String(bytes, 0, len));
-                    this.toString = builder.toString();
+                    while (true) {
+                        if (count == bytes.length)
+                            bytes = Arrays.copyOf(bytes, bytes.length << 1);
+                        if (-1 == (len = this.is.read(bytes, count, bytes.length - count))) break;
+                        count += len;
+                    }
+                    if (this.exchange != null) this.exchange.bodyRead(count);
+                    this.onEof();
+                    this.toString = new String(bytes, 0, count, this.charset);
                 } catch (IOException e) {
                     e.printStackTrace();
                 }
             }
             return this.toString;
         }
+
+        /**
+         * 从Content-Type中解析字符集
+         *
+         * @param contentType 例如 text/html; charset=utf-8
+         * @return 未声明或不支持时返回null
+         */
+        static Charset charsetOf(String contentType) {
+            if (contentType == null) return null;
+            for (String param : contentType.split(";")) {
+                param = param.trim();
+                if (param.regionMatches(true, 0, "charset=", 0, 8)) {
+                    String name = param.substring(8).trim();
+                    if (name.length() > 1 && name.startsWith("\"") && name.endsWith("\""))
+                        name = name.substring(1, name.length() - 1);
+                    try {
+                        return Charset.forName(name);
+                    } catch (IllegalArgumentException e) {
+                        return null;
+                    }
+                }
+            }
+            return null;
+        }
     }
 
+    /**
+     * 按线程隔离的Cookie管理。<br/>
+     * 每个线程的CookieManager保存在ThreadLocal中，查找无锁，线程结束后随线程回收，也适用于虚拟线程和线程池。
+     */
     public static class MyAsynCookieManager extends CookieManager {
-        private static MyAsynCookieManager cookieManager;
-        private Map<Thread, CookieManager> cookies;
+        private static class ThreadCookies {
+            private final int generation;
+            private final CookieManager cookieManager;
+
+            private ThreadCookies(int generation, CookieManager cookieManager) {
+                this.generation = generation;
+                this.cookieManager = cookieManager;
+            }
+        }
+
+        private static volatile MyAsynCookieManager cookieManager;
+        private final ThreadLocal<ThreadCookies> cookies;
+        private final AtomicInteger generation; // cleanAllCookieManager时递增，使所有线程已有的CookieManager失效
 
         private MyAsynCookieManager() {
-            this.cookies = new HashMap<Thread, CookieManager>();
+            this.cookies = new ThreadLocal<ThreadCookies>();
+            this.generation = new AtomicInteger();
         }
 
         public CookieManager currentThreadCookieManager() {
-            CookieManager cookieManager = this.cookies.get(Thread.currentThread());
-            if (cookieManager == null) {
-                cookieManager = new CookieManager();
-                this.cookies.put(Thread.currentThread(), cookieManager);
+            int generation = this.generation.get();
+            ThreadCookies threadCookies = this.cookies.get();
+            if (threadCookies == null || threadCookies.generation != generation) {
+                threadCookies = new ThreadCookies(generation, new CookieManager());
+                this.cookies.set(threadCookies);
+            }
+            return threadCookies.cookieManager;
+        }
+
+        /**
+         * 在当前线程上以指定的CookieManager执行请求，用于对冲线程代替调用线程发出请求，结束后恢复当前线程原有的Cookie
+         */
+        HttpResponse runWith(CookieManager cookieManager, RetryPolicy.Attempt attempt) throws IOException {
+            ThreadCookies previous = this.cookies.get();
+            this.cookies.set(new ThreadCookies(this.generation.get(), cookieManager));
+            try {
+                return attempt.run();
+            } finally {
+                if (previous == null)
+                    this.cookies.remove();
+                else
+                    this.cookies.set(previous);
             }
-            return cookieManager;
         }
 
         public void cleanCurrentThreadCookieManager() {
-            this.cookies.put(Thread.currentThread(), null);
+            this.cookies.remove();
         }
 
         public void cleanAllCookieManager() {
-            this.cookies.clear();
+            this.generation.incrementAndGet();
+            this.cookies.remove();
         }
 
         public static MyAsynCookieManager getManager() {
@@ -175,11 +427,103 @@ public class HttpRequester {
     private HttpRequester() {
     }
 
+    private RouteLimiter routeLimiter;
+
+    /**
+     * 设置按路由的并发请求限制，默认不启用。许可在收到响应头时归还，与响应正文是否关闭无关；
+     * 连接的keep-alive复用始终由JDK负责
+     *
+     * @param routeLimiter null则不限制
+     */
+    public synchronized void setRouteLimiter(RouteLimiter routeLimiter) {
+        this.routeLimiter = routeLimiter;
+    }
+
+    public RouteLimiter getRouteLimiter() {
+        return routeLimiter;
+    }
+
+    private HttpResponseCache responseCache;
+
+    /**
+     * 设置响应缓存，仅对不经过HTTP/2模式、不带Range的GET请求生效
+     *
+     * @param responseCache null则不使用缓存
+     */
+    public synchronized void setResponseCache(HttpResponseCache responseCache) {
+        this.responseCache = responseCache;
+    }
+
+    public HttpResponseCache getResponseCache() {
+        return responseCache;
+    }
+
+    private RetryPolicy retryPolicy;
+
+    /**
+     * 设置重试策略，对所有doRequest生效，不可重复读取的正文不重试。
+     * 对冲时主请求仍在调用线程上执行，对冲请求使用调用线程的Cookie（见setThreadCookiesEnabled）
+     *
+     * @param retryPolicy 例如new RetryPolicy().hedge(95)，null则不重试
+     */
+    public synchronized void setRetryPolicy(RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+    }
+
+    public RetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    private HttpMetrics metrics;
+
+    /**
+     * 设置请求指标，记录各阶段耗时、响应代码与字节数，多个HttpRequester可以共享同一个指标
+     *
+     * @param metrics null则不统计
+     */
+    public synchronized void setMetrics(HttpMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public HttpMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * 代替HttpURLConnection发出请求的传输层，由AsyncHttpRequester实现。<br/>
+     * HttpRequester只通过本接口调用HTTP/2模式，自身不依赖java.net.http
+     */
+    public interface Transport {
+        HttpResponse doRequest(URL url, String method, Map<String, String> requestArgs, Map<String, String> requestHeaders, int readTimeout, boolean autoGzip) throws IOException;
+    }
+
+    private Transport http2;
+
+    /**
+     * 开启HTTP/2模式，之后不使用代理、没有请求正文、不带Range的请求都由AsyncHttpRequester发出，
+     * 同一源的并发请求在一个连接上多路复用；服务器不支持HTTP/2时自动回退到HTTP/1.1。<br/>
+     * 注意：这些请求只经过重试策略，不经过按线程隔离的Cookie、响应缓存、HttpMetrics与连接并发限制，
+     * 需要Cookie时在创建AsyncHttpRequester时传入CookieHandler
+     *
+     * @param http2 例如AsyncHttpRequester.newHttp2Instance(100, 10000)，null则关闭HTTP/2模式
+     */
+    public synchronized void setHttp2Mode(Transport http2) {
+        this.http2 = http2;
+    }
+
+    public Transport getHttp2Mode() {
+        return http2;
+    }
+
     private boolean debug = false;
 
+    /**
+     * 开启putTraceInfo时以INFO级别输出，否则以FINE级别输出到java.util.logging
+     */
     protected void log(String pattern, Object... args) {
-        if (debug)
-            System.out.println(String.format(pattern, args));
+        Level level = debug ? Level.INFO : Level.FINE;
+        if (logger.isLoggable(level))
+            logger.log(level, String.format(pattern, args));
     }
 
     public synchronized void putTraceInfo(boolean put) {
@@ -192,14 +536,8 @@ public class HttpRequester {
      * @param args {"key1":"value1","key2":"value2"}
      * @return key1=value1&key2=value2&
      */
-    private static String mapToQueryString(Map<String, String> args) throws UnsupportedEncodingException {
-        StringBuilder builder = new StringBuilder();
-        for (Iterator<String> iterator = args.keySet().iterator(); iterator.hasNext(); ) {
-            String key = URLEncoder.encode(iterator.next(), "utf-8");
-            String value = URLEncoder.encode(args.get(key), "utf-8");
-            builder.append(key).append("=").append(value).append("&");
-        }
-        return builder.toString();
+    static String mapToQueryString(Map<String, String> args) {
+        return QueryString.encode(args);
     }
 
     /**
@@ -210,16 +548,8 @@ public class HttpRequester {
      */
     private static Map<String, String> queryStringToMap(String queryString) {
         Map<String, String> map = new HashMap();
-        String[] queries = queryString.split("&");
-        for (String query : queries) {
-            int offset = query.indexOf('=');
-            if (offset == -1) continue;
-            if (offset + 1 > query.length()) continue;
-
-            String key = query.substring(0, offset);
-            String value = query.substring(offset + 1);
-            map.put(key, value);
-        }
+        for (Map.Entry<String, String> query : QueryString.decode(queryString))
+            map.put(query.getKey(), query.getValue());
         return map;
     }
 
@@ -270,16 +600,79 @@ public class HttpRequester {
      * @param connectTimeout 连接超时
      * @param readTimeout    读取超时
      * @param proxy          代理服务器
-     * @param autoGzip       自动对GZIP解压缩
+     * @param autoGzip       声明Accept-Encoding并自动解码gzip、deflate与brotli正文
      * @return 远程返回的Content，需要手动close
      * @throws IOException
      */
     public HttpResponse doRequest(URL url, String method, Map<String, String> requestArgs, Map<String, String> requestHeaders, int connectTimeout, int readTimeout, Proxy proxy, boolean autoGzip) throws IOException {
+        return doRequest(url, method, requestArgs, null, requestHeaders, connectTimeout, readTimeout, proxy, autoGzip);
+    }
+
+    /**
+     * 发起带流式正文的HTTP请求，正文长度已知时使用定长流式模式，否则使用chunked传输编码
+     *
+     * @param url            请求的目标url
+     * @param method         请求的方法，例如POST、PUT
+     * @param requestArgs    请求的参数，有正文时总是加在url中
+     * @param body           请求的正文，例如new RequestBody.Multipart().addFile("file", path, null)，null则同doRequest
+     * @param requestHeaders 请求的头，未设置Content-Type时使用正文的类型
+     * @param connectTimeout 连接超时
+     * @param readTimeout    读取超时
+     * @param proxy          代理服务器
+     * @param autoGzip       声明Accept-Encoding并自动解码gzip、deflate与brotli正文
+     * @return 远程返回的Content，需要手动close
+     * @throws IOException
+     */
+    public HttpResponse doRequest(final URL url, final String method, final Map<String, String> requestArgs, final RequestBody body, final Map<String, String> requestHeaders, final int connectTimeout, final int readTimeout, final Proxy proxy, final boolean autoGzip) throws IOException {
+        RetryPolicy retryPolicy = this.retryPolicy;
+        if (retryPolicy == null || (body != null && !body.isRepeatable()))
+            return doRequestOnce(url, method, requestArgs, body, requestHeaders, connectTimeout, readTimeout, proxy, autoGzip);
+        return retryPolicy.execute(url, method, new RetryPolicy.Attempt() {
+            @Override
+            public HttpResponse run() throws IOException {
+                // 每次尝试使用请求头的副本，对冲时两个请求并发执行
+                return doRequestOnce(url, method, requestArgs, body,
+                        requestHeaders == null ? null : new HashMap<String, String>(requestHeaders), connectTimeout, readTimeout, proxy, autoGzip);
+            }
+
+            @Override
+            public RetryPolicy.Attempt forHedge() {
+                // 按线程隔离Cookie时，对冲线程使用调用线程的Cookie，响应的Set-Cookie也写回调用线程
+                CookieHandler handler = CookieHandler.getDefault();
+                if (!(handler instanceof MyAsynCookieManager)) return this;
+                final MyAsynCookieManager manager = (MyAsynCookieManager) handler;
+                final CookieManager cookieManager = manager.currentThreadCookieManager();
+                final RetryPolicy.Attempt self = this;
+                return () -> manager.runWith(cookieManager, self);
+            }
+
+            @Override
+            public void abort(Thread thread) {
+                HttpURLConnection connection = awaitingHeaders.get(thread);
+                if (connection != null) connection.disconnect();
+            }
+        });
+    }
+
+    /**
+     * 正在发送请求、等待响应头的连接，供对冲请求先返回时中止调用线程上的主请求
+     */
+    private final ConcurrentMap<Thread, HttpURLConnection> awaitingHeaders = new ConcurrentHashMap<Thread, HttpURLConnection>();
+
+    private HttpResponse doRequestOnce(URL url, String method, Map<String, String> requestArgs, RequestBody body, Map<String, String> requestHeaders, int connectTimeout, int readTimeout, Proxy proxy, boolean autoGzip) throws IOException {
+        // 续传与分段下载的Range请求不经过HTTP/2模式（正文整个读入内存），也不经过响应缓存（缓存的200不能回答Range）
+        boolean ranged = hasHeader(requestHeaders, "Range");
+        Transport http2 = this.http2;
+        if (http2 != null && proxy == null && body == null && !ranged) {
+            log("Request URL (HTTP/2) -> %s", url.toString());
+            return http2.doRequest(url, method, requestArgs, requestHeaders, readTimeout, autoGzip);
+        }
+
         method = method.toUpperCase();
         if (requestArgs == null) requestArgs = new HashMap();
         String queryString = mapToQueryString(requestArgs);
         // add args to uri
-        if (!method.matches("(?:POST|PUT)")) {
+        if (body != null || !method.matches("(?:POST|PUT)")) {
             String strUrl = url.toString();
             if (strUrl.indexOf('?') == -1)
                 if (strUrl.endsWith("/"))
@@ -291,6 +684,314 @@ public class HttpRequester {
             queryString = null;
         }
 
+        HttpResponseCache cache = method.equals("GET") && body == null && !ranged ? this.responseCache : null;
+        String cacheKey = null;
+        HttpResponseCache.Entry cached = null;
+        if (cache != null) {
+            cacheKey = autoGzip ? url.toString() : "raw " + url.toString();
+            cached = cache.lookup(cacheKey, requestHeaders);
+            if (cached != null && cached.isFresh()) {
+                log("Response Cache Hit -> %s", cacheKey);
+                return cache.hit(cached);
+            }
+            if (cached != null) {
+                requestHeaders = requestHeaders == null ? new HashMap<String, String>() : new HashMap<String, String>(requestHeaders);
+                if (!cached.addConditionalHeaders(requestHeaders)) cached = null;
+            }
+        }
+
+        HttpMetrics metrics = this.metrics;
+        HttpMetrics.Exchange exchange = metrics == null ? null : metrics.start(url.getHost());
+        RouteLimiter limiter = this.routeLimiter;
+        RouteLimiter.Permit permit = null;
+        try {
+            permit = limiter == null ? null : limiter.acquire(url, connectTimeout);
+            HttpResponse result;
+            try {
+                result = doRequest0(url, method, queryString, body, requestHeaders, connectTimeout, readTimeout, proxy, autoGzip, cache, cacheKey, exchange);
+            } finally {
+                if (permit != null) permit.release();
+            }
+            if (cached != null && result.getResponseCode() == 304) {
+                log("Response Cache Revalidated -> %s", cacheKey);
+                return cache.revalidated(cached, result.getResponseHeaders());
+            }
+            if (cache != null) cache.miss();
+            return result;
+        } catch (IOException e) {
+            if (exchange != null) exchange.error();
+            throw e;
+        } catch (RuntimeException e) {
+            if (exchange != null) exchange.error();
+            throw e;
+        }
+    }
+
+    /**
+     * 使用默认的设置下载到文件，无代理，10秒连接和读取超时
+     *
+     * @throws IOException
+     */
+    public DownloadResult download(URL url, Path target) throws IOException {
+        return download(url, target, null, 10000, 10000, null);
+    }
+
+    /**
+     * 将响应正文直接写入文件的FileChannel，不经过调用者的缓冲区。<br/>
+     * 下载未完成时，响应的ETag（强校验）或Last-Modified保存在同目录的"文件名.validator"中，完成后删除。
+     * 目标文件与validator都存在时发送Range与If-Range从文件末尾续传，并检查Content-Range的起点与文件长度一致；
+     * 资源已改变或服务器不支持Range(返回200)时从头覆盖写入。没有validator时无法确认文件未变，总是从头下载。
+     *
+     * @param url            请求的目标url
+     * @param target         目标文件
+     * @param requestHeaders 请求的头
+     * @param connectTimeout 连接超时
+     * @param readTimeout    读取超时
+     * @param proxy          代理服务器
+     * @return 下载结果，包含传输速度
+     * @throws IOException 请求失败或响应既不是200也不是206
+     */
+    public DownloadResult download(URL url, Path target, Map<String, String> requestHeaders, int connectTimeout, int readTimeout, Proxy proxy) throws IOException {
+        Path validatorFile = target.resolveSibling(target.getFileName() + ".validator");
+        long existing = Files.isRegularFile(target) ? Files.size(target) : 0;
+        String validator = existing > 0 && Files.isRegularFile(validatorFile) ? new String(Files.readAllBytes(validatorFile), "utf-8").trim() : "";
+        Map<String, String> headers = requestHeaders == null ? new HashMap<String, String>() : new HashMap<String, String>(requestHeaders);
+        if (validator.isEmpty()) {
+            existing = 0;
+        } else {
+            headers.put("Range", "bytes=" + existing + "-");
+            headers.put("If-Range", validator);
+        }
+
+        long start = System.nanoTime();
+        HttpResponse response = doRequest(url, "GET", null, headers, connectTimeout, readTimeout, proxy, false);
+        if (response.getResponseCode() == 416 && existing > 0) {
+            long[] contentRange = contentRangeOf(headerOf(response.getResponseHeaders(), "Content-Range"));
+            Files.deleteIfExists(validatorFile);
+            if (contentRange != null && contentRange[2] == existing) // 文件已经完整
+                return new DownloadResult(0, existing, System.nanoTime() - start, true);
+            log("Download Restart -> %s, local length %d does not match the server", url.toString(), existing);
+            return download(url, target, requestHeaders, connectTimeout, readTimeout, proxy);
+        }
+        if (response.getResponse() == null)
+            throw new IOException("Download failed with response code " + response.getResponseCode() + ": " + url);
+
+        boolean resumed = existing > 0 && response.getResponseCode() == 206;
+        if (resumed) {
+            String value = headerOf(response.getResponseHeaders(), "Content-Range");
+            long[] contentRange = contentRangeOf(value);
+            if (contentRange == null || contentRange[0] != existing) {
+                response.getResponse().close();
+                throw new IOException("Unexpected Content-Range " + value + " when resuming at " + existing + ": " + url);
+            }
+        } else {
+            String etag = headerOf(response.getResponseHeaders(), "ETag");
+            String lastModified = headerOf(response.getResponseHeaders(), "Last-Modified");
+            validator = etag != null && !etag.startsWith("W/") ? etag : lastModified; // If-Range只接受强校验的ETag
+            if (validator == null)
+                Files.deleteIfExists(validatorFile);
+            else
+                Files.write(validatorFile, validator.getBytes("utf-8"));
+        }
+        long position = resumed ? existing : 0;
+        long transferred = 0;
+        InputStream inputStream = response.getResponse();
+        try (FileChannel channel = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            if (!resumed) channel.truncate(0);
+            // transferFrom内部复用JDK缓存的direct buffer
+            ReadableByteChannel source = Channels.newChannel(inputStream);
+            long n;
+            while ((n = channel.transferFrom(source, position, 1 << 20)) > 0) {
+                position += n;
+                transferred += n;
+            }
+        } finally {
+            inputStream.close();
+        }
+        Files.deleteIfExists(validatorFile);
+
+        DownloadResult result = new DownloadResult(transferred, position, System.nanoTime() - start, resumed);
+        log("Download -> %s, %s", url.toString(), result.toString());
+        return result;
+    }
+
+    /**
+     * 分段并发下载。<br/>
+     * 先用HEAD请求探测Accept-Ranges与Content-Length，将文件预分配后切分为segments段，
+     * 每段用Range请求并发获取，按偏移写入同一个FileChannel；
+     * 服务器不支持Range或长度未知时回退到单连接的download。
+     *
+     * @param url            请求的目标url
+     * @param target         目标文件，已存在则覆盖
+     * @param segments       分段数，即并发连接数
+     * @param algorithms     下载完成后用SecurityHelper计算散列的算法，null则不校验
+     * @param expectedHash   期望的散列值(16进制，忽略大小写)，null则只计算不比较
+     * @param connectTimeout 连接超时
+     * @param readTimeout    读取超时
+     * @return 下载结果
+     * @throws IOException 任一分段失败或散列不一致
+     */
+    public DownloadResult downloadSegmented(URL url, Path target, int segments, SecurityHelper.Algorithms algorithms, String expectedHash, int connectTimeout, int readTimeout) throws IOException {
+        long start = System.nanoTime();
+        HttpResponse probe = doRequest(url, "HEAD", null, null, connectTimeout, readTimeout, null, false);
+        if (probe.getResponse() != null) probe.getResponse().close();
+        String acceptRanges = headerOf(probe.getResponseHeaders(), "Accept-Ranges");
+        String contentLength = headerOf(probe.getResponseHeaders(), "Content-Length");
+        final long length = contentLength == null ? -1 : Long.parseLong(contentLength.trim());
+
+        DownloadResult result;
+        if (segments <= 1 || length <= 0 || !"bytes".equalsIgnoreCase(acceptRanges)) {
+            log("Segmented Download Fallback -> %s", url.toString());
+            Files.deleteIfExists(target);
+            result = download(url, target, null, connectTimeout, readTimeout, null);
+            segments = 1;
+        } else {
+            segments = (int) Math.min(segments, length);
+            try (FileChannel channel = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                channel.write(ByteBuffer.allocate(1), length - 1); // 预分配
+                downloadSegments(url, channel, length, segments, connectTimeout, readTimeout);
+            }
+            result = new DownloadResult(length, length, System.nanoTime() - start, false, segments, null);
+        }
+
+        if (algorithms == null) return result;
+        String hash;
+        try (InputStream inputStream = Files.newInputStream(target)) {
+            hash = SecurityHelper.toHexStr(new SecurityHelper().hash(algorithms, inputStream));
+        }
+        if (expectedHash != null && !expectedHash.equalsIgnoreCase(hash))
+            throw new IOException("Hash mismatch for " + url + ", expected " + expectedHash + " but was " + hash);
+        result = new DownloadResult(result.getTransferred(), result.getFileSize(), System.nanoTime() - start, result.isResumed(), segments, hash);
+        log("Segmented Download -> %s, %s", url.toString(), result.toString());
+        return result;
+    }
+
+    private void downloadSegments(final URL url, final FileChannel channel, long length, int segments, final int connectTimeout, final int readTimeout) throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(segments);
+        try {
+            List<Future<Long>> futures = new ArrayList<Future<Long>>();
+            long segmentSize = (length + segments - 1) / segments;
+            for (long from = 0; from < length; from += segmentSize) {
+                final long begin = from;
+                final long end = Math.min(from + segmentSize, length) - 1;
+                futures.add(executor.submit(new Callable<Long>() {
+                    @Override
+                    public Long call() throws IOException {
+                        return downloadSegment(url, channel, begin, end, connectTimeout, readTimeout);
+                    }
+                }));
+            }
+            for (Future<Long> future : futures)
+                future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while downloading " + url, e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            throw new IOException(e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private long downloadSegment(URL url, FileChannel channel, long begin, long end, int connectTimeout, int readTimeout) throws IOException {
+        Map<String, String> requestHeaders = new HashMap();
+        requestHeaders.put("Range", "bytes=" + begin + "-" + end);
+        HttpResponse response = doRequest(url, "GET", null, requestHeaders, connectTimeout, readTimeout, null, false);
+        if (response.getResponse() == null || response.getResponseCode() != 206) {
+            if (response.getResponse() != null) response.getResponse().close();
+            throw new IOException("Range request bytes=" + begin + "-" + end + " failed with response code " + response.getResponseCode());
+        }
+        long[] contentRange = contentRangeOf(headerOf(response.getResponseHeaders(), "Content-Range"));
+        if (contentRange == null || contentRange[0] != begin) {
+            response.getResponse().close();
+            throw new IOException("Range request bytes=" + begin + "-" + end + " answered with Content-Range " + headerOf(response.getResponseHeaders(), "Content-Range"));
+        }
+
+        InputStream inputStream = response.getResponse();
+        try {
+            ReadableByteChannel source = Channels.newChannel(inputStream);
+            long position = begin, n;
+            while (position <= end && (n = channel.transferFrom(source, position, end - position + 1)) > 0)
+                position += n; // 按偏移写入，不改变channel的position，多个分段可以并发写
+            if (position != end + 1)
+                throw new IOException("Range bytes=" + begin + "-" + end + " ended early at " + position);
+            return position - begin;
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    /**
+     * 解析"bytes a-b/total"或"bytes *&#47;total"
+     *
+     * @return [a, b, total]，未知的部分为-1；格式错误时返回null
+     */
+    static long[] contentRangeOf(String value) {
+        if (value == null || !value.startsWith("bytes ")) return null;
+        String spec = value.substring(6).trim();
+        int slash = spec.indexOf('/');
+        if (slash == -1) return null;
+        try {
+            String range = spec.substring(0, slash).trim(), total = spec.substring(slash + 1).trim();
+            long[] result = new long[]{-1, -1, total.equals("*") ? -1 : Long.parseLong(total)};
+            if (!range.equals("*")) {
+                int dash = range.indexOf('-');
+                if (dash == -1) return null;
+                result[0] = Long.parseLong(range.substring(0, dash));
+                result[1] = Long.parseLong(range.substring(dash + 1));
+            }
+            return result;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static boolean hasHeader(Map<String, String> headers, String name) {
+        if (headers != null)
+            for (String key : headers.keySet())
+                if (name.equalsIgnoreCase(key)) return true;
+        return false;
+    }
+
+    static String headerOf(Map<String, List<String>> headers, String name) {
+        for (Map.Entry<String, List<String>> header : headers.entrySet())
+            if (name.equalsIgnoreCase(header.getKey()) && header.getValue() != null && !header.getValue().isEmpty())
+                return header.getValue().get(0);
+        return null;
+    }
+
+    /**
+     * @return 请求是否携带Cookie或Authorization，包括默认CookieHandler（如按线程隔离的Cookie）将为该URL添加的Cookie
+     */
+    private static boolean sendsCredentials(URL url, Map<String, String> requestHeaders) throws IOException {
+        if (requestHeaders != null)
+            for (String name : requestHeaders.keySet())
+                if ("Cookie".equalsIgnoreCase(name) || "Authorization".equalsIgnoreCase(name))
+                    return true;
+        CookieHandler cookieHandler = CookieHandler.getDefault();
+        if (cookieHandler == null) return false;
+        try {
+            Map<String, List<String>> empty = Collections.emptyMap();
+            for (Map.Entry<String, List<String>> header : cookieHandler.get(url.toURI(), empty).entrySet())
+                if (header.getKey().toLowerCase().startsWith("cookie") && !header.getValue().isEmpty())
+                    return true;
+            return false;
+        } catch (URISyntaxException e) {
+            return true;
+        }
+    }
+
+    private HttpResponse doRequest0(URL url, String method, String queryString, RequestBody requestBody, Map<String, String> requestHeaders, int connectTimeout, int readTimeout, Proxy proxy, boolean autoGzip, HttpResponseCache cache, String cacheKey, HttpMetrics.Exchange exchange) throws IOException {
+        // 在发送前判断，响应中的Set-Cookie会改变CookieHandler的内容
+        boolean credentials = cacheKey != null && sendsCredentials(url, requestHeaders);
+        if (proxy == null && exchange != null) {
+            // 提前解析并计时，连接时HttpURLConnection再解析会命中JDK的InetAddress缓存
+            long start = System.nanoTime();
+            InetAddress.getByName(url.getHost());
+            exchange.phase(HttpMetrics.Phase.DNS, System.nanoTime() - start);
+        }
+
         URLConnection connection;
         if (proxy == null)
             connection = url.openConnection();
@@ -304,48 +1005,82 @@ public class HttpRequester {
 
         log("Request URL -> %s", url.toString());
 
-        if (requestHeaders == null)
-            requestHeaders = new HashMap();
-        requestHeaders.put("X-Connector", "forDream");
-
-        // set http request headers
-        for (Iterator<String> iterator = requestHeaders.keySet().iterator(); iterator.hasNext(); ) {
-            String key = iterator.next();
-            String value = requestHeaders.get(key);
-            httpConnection.setRequestProperty(key, value);
+        // set http request headers，不修改调用者的Map，同一个Map可以被并发的请求共享
+        if (requestHeaders != null) {
+            for (Iterator<String> iterator = requestHeaders.keySet().iterator(); iterator.hasNext(); ) {
+                String key = iterator.next();
+                String value = requestHeaders.get(key);
+                httpConnection.setRequestProperty(key, value);
+            }
         }
+        httpConnection.setRequestProperty("X-Connector", "forDream");
+        if (autoGzip && httpConnection.getRequestProperty("Accept-Encoding") == null)
+            httpConnection.setRequestProperty("Accept-Encoding", ContentDecoder.acceptEncoding());
         // set request method
         httpConnection.setRequestMethod(method);
+        if (requestBody != null && requestBody.contentType() != null && httpConnection.getRequestProperty("Content-Type") == null)
+            httpConnection.setRequestProperty("Content-Type", requestBody.contentType());
 
-        // set request data
-        if (queryString != null) {
-            httpConnection.setDoOutput(true);
-            OutputStream outputStream = httpConnection.getOutputStream();
-            outputStream.write(queryString.getBytes());
-            outputStream.close();
-        }
-
-        httpConnection.connect(); // connect to remote
-
+        long connectStart = System.nanoTime();
+        long connected;
         HttpResponse result = new HttpResponse(false);
+        int responseCode;
+        this.awaitingHeaders.put(Thread.currentThread(), httpConnection); // 收到响应头前可以被对冲请求中止
+        try {
+            // set request data
+            if (queryString != null) {
+                httpConnection.setDoOutput(true);
+                OutputStream outputStream = httpConnection.getOutputStream();
+                outputStream.write(queryString.getBytes());
+                outputStream.close();
+            } else if (requestBody != null) {
+                httpConnection.setDoOutput(true);
+                long contentLength = requestBody.contentLength();
+                if (contentLength >= 0)
+                    httpConnection.setFixedLengthStreamingMode(contentLength);
+                else
+                    httpConnection.setChunkedStreamingMode(64 * 1024);
+                OutputStream outputStream = httpConnection.getOutputStream();
+                requestBody.writeTo(outputStream);
+                outputStream.close();
+            }
 
-        result.setResponseHeaders(httpConnection.getHeaderFields());
+            httpConnection.connect(); // connect to remote
+            connected = System.nanoTime();
 
-        int responseCode = httpConnection.getResponseCode();
+            result.setResponseHeaders(httpConnection.getHeaderFields());
+
+            responseCode = httpConnection.getResponseCode();
+        } finally {
+            this.awaitingHeaders.remove(Thread.currentThread());
+        }
+        if (exchange != null) {
+            exchange.phase(HttpMetrics.Phase.CONNECT, connected - connectStart);
+            exchange.phase(HttpMetrics.Phase.FIRST_BYTE, System.nanoTime() - connected);
+            exchange.status(responseCode);
+        }
 
         result.setResponseCode(responseCode);
         log("Request Method -> %s", httpConnection.getRequestMethod());
         log("Response Code -> %d", responseCode);
 
-        if (responseCode == 200) {
-            result.setResponse(httpConnection.getInputStream());
-            if (autoGzip) {
-                if (httpConnection.getContentEncoding() != null && httpConnection.getContentEncoding().toLowerCase().equals("gzip"))
-                    result.setResponse(new HttpInputStream(new GZIPInputStream(httpConnection.getInputStream())));
-                else
-                    result.setResponse(new HttpInputStream(httpConnection.getInputStream()));
-            } else
-                result.setResponse(httpConnection.getInputStream());
+        if (responseCode == 200 || responseCode == 206) {
+            String contentEncoding = httpConnection.getContentEncoding();
+            Charset charset = HttpInputStream.charsetOf(httpConnection.getContentType());
+            long contentLength = httpConnection.getContentLengthLong();
+            InputStream body = httpConnection.getInputStream();
+            if (autoGzip && contentEncoding != null)
+                body = ContentDecoder.decode(body, contentEncoding, exchange == null ? null : exchange::compressed);
+            if (cacheKey != null && responseCode == 200)
+                body = cache.record(cacheKey, requestHeaders, credentials, result.getResponseHeaders(), body);
+            if (exchange != null) exchange.bodyStarted();
+            result.setResponse(new HttpInputStream(body, charset, contentLength, httpConnection, exchange));
+        } else {
+            // 非200的响应不返回正文，读完错误正文使连接可以被keep-alive复用
+            InputStream errorStream = httpConnection.getErrorStream();
+            if (errorStream != null)
+                new HttpInputStream(errorStream, null, -1, httpConnection, null).close();
+            if (exchange != null) exchange.finish();
         }
         return result;
     }
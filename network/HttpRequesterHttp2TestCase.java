@@ -0,0 +1,123 @@
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * HTTP/2模式的测试用例。<br/>
+ * 使用支持h2c的Http2StandInServer作为本地服务器替身，验证并发请求共用一个连接、同一连接上的stream数不超过限制；
+ * 回退的情况使用只支持HTTP/1.1的JDK HttpServer。
+ */
+public class HttpRequesterHttp2TestCase {
+    private static final int LATENCY = 50; // 服务器替身每个请求的延迟，毫秒
+    private static final int REQUEST_COUNT = 32;
+    private static final int MAX_STREAMS = 4;
+
+    private Http2StandInServer server;
+
+    @Before
+    public void startServer() throws IOException {
+        this.server = new Http2StandInServer().latency(LATENCY).start();
+    }
+
+    @After
+    public void stopServer() {
+        this.server.close();
+    }
+
+    private void concurrentRequests(HttpRequester requester) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(REQUEST_COUNT);
+        try {
+            Future<?>[] futures = new Future<?>[REQUEST_COUNT];
+            for (int i = 0; i < REQUEST_COUNT; i++) {
+                final int index = i;
+                futures[i] = executor.submit(() -> {
+                    this.assertEcho(requester, this.server.url("/echo?id=" + index), "id=" + index);
+                    return null;
+                });
+            }
+            for (Future<?> future : futures)
+                future.get();
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private void assertEcho(HttpRequester requester, URL url, String expected) throws IOException {
+        HttpRequester.HttpResponse response = requester.doRequest(url, "GET", null, null, 10000, 10000, null, true);
+        Assert.assertEquals(200, response.getResponseCode());
+        Assert.assertEquals(expected, response.getResponse().toString());
+    }
+
+    /**
+     * 先发一个请求完成h2c升级，之后的请求复用这个连接
+     */
+    private void upgrade(HttpRequester requester) throws IOException {
+        this.assertEcho(requester, this.server.url("/echo?id=upgrade"), "id=upgrade");
+        Assert.assertEquals(1, this.server.connections());
+        Assert.assertEquals(1, this.server.http2Connections());
+        this.server.resetStats();
+    }
+
+    @Test
+    public void FallbackToHttp11() throws Exception {
+        HttpServer http11 = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        http11.createContext("/", exchange -> {
+            byte[] body = exchange.getRequestURI().getQuery().getBytes();
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream outputStream = exchange.getResponseBody()) {
+                outputStream.write(body);
+            }
+        });
+        http11.start();
+        try {
+            HttpRequester requester = HttpRequester.newInstance();
+            requester.setHttp2Mode(AsyncHttpRequester.newHttp2Instance(0, 10000));
+            this.assertEcho(requester, new URL("http://127.0.0.1:" + http11.getAddress().getPort() + "/echo?id=fallback"), "id=fallback");
+        } finally {
+            http11.stop(0);
+        }
+    }
+
+    @Test
+    public void MaxConcurrentStreams() throws Exception {
+        HttpRequester requester = HttpRequester.newInstance();
+        requester.setHttp2Mode(AsyncHttpRequester.newHttp2Instance(MAX_STREAMS, 10000));
+        this.upgrade(requester);
+
+        this.concurrentRequests(requester);
+        Assert.assertEquals(REQUEST_COUNT, this.server.requests());
+        Assert.assertEquals(0, this.server.connections());
+        Assert.assertTrue(this.server.maxStreams() > 1);
+        Assert.assertTrue(this.server.maxStreams() <= MAX_STREAMS);
+    }
+
+    @Test
+    public void CompareWithHttp11() throws Exception {
+        HttpRequester http11 = HttpRequester.newInstance();
+        this.concurrentRequests(http11);
+        Assert.assertEquals(REQUEST_COUNT, this.server.requests());
+        Assert.assertEquals(0, this.server.http2Connections());
+        // HTTP/1.1的连接同时只能进行一个请求，并发请求需要多个连接
+        Assert.assertTrue(this.server.connections() > MAX_STREAMS);
+
+        this.server.resetStats();
+        HttpRequester http2 = HttpRequester.newInstance();
+        http2.setHttp2Mode(AsyncHttpRequester.newHttp2Instance(REQUEST_COUNT, 10000));
+        this.upgrade(http2);
+        this.concurrentRequests(http2);
+        Assert.assertEquals(REQUEST_COUNT, this.server.requests());
+        Assert.assertEquals(0, this.server.connections());
+        // stream数不小于请求数时HTTP/2模式不排队，各请求在同一连接上同时进行
+        Assert.assertTrue(this.server.maxStreams() > MAX_STREAMS);
+    }
+}
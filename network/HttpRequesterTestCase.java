@@ -2,17 +2,58 @@ import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
 import java.net.URL;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.net.UnknownHostException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * Created by forDream on 2016-08-25.
  */
 public class HttpRequesterTestCase {
+    static {
+        // 本地的HttpServer关闭Nagle算法，见HttpStandInServer，必须在第一个HttpServer创建前设置
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+
     public static class ExecThread extends Thread {
         //private String threadName;
         private int testCaseCount;
@@ -143,4 +184,839 @@ public class HttpRequesterTestCase {
         HttpRequester.setThreadCookiesEnabled(false);
         this.invoked(false);
     }
+
+    /**
+     * 64个线程并发读写Cookie，验证线程隔离并输出单次查找的平均耗时，不依赖网络
+     */
+    @Test
+    public void CookieLookupUnder64Threads() throws Exception {
+        final int threadCount = 64;
+        final int lookupCount = 20000;
+        final URI uri = URI.create("http://cookie.test/");
+        final HttpRequester.MyAsynCookieManager manager = HttpRequester.MyAsynCookieManager.getManager();
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threadCount);
+        final AtomicLong failures = new AtomicLong();
+
+        for (int i = 0; i < threadCount; i++) {
+            final String cookie = "T" + i + "=v" + i;
+            new Thread(() -> {
+                try {
+                    Map<String, List<String>> setCookie = new HashMap<String, List<String>>();
+                    setCookie.put("Set-Cookie", Collections.singletonList(cookie));
+                    manager.put(uri, setCookie);
+                    start.await();
+
+                    Map<String, List<String>> requestHeaders = Collections.emptyMap();
+                    for (int j = 0; j < lookupCount; j++) {
+                        List<String> cookies = manager.get(uri, requestHeaders).get("Cookie");
+                        if (cookies == null || cookies.size() != 1 || !cookies.get(0).equals(cookie))
+                            failures.incrementAndGet();
+                    }
+                    manager.cleanCurrentThreadCookieManager();
+                } catch (Exception e) {
+                    failures.incrementAndGet();
+                } finally {
+                    done.countDown();
+                }
+            }).start();
+        }
+
+        long begin = System.nanoTime();
+        start.countDown();
+        done.await();
+        long elapsed = System.nanoTime() - begin;
+        Assert.assertEquals(0, failures.get());
+        System.out.printf("Cookie lookup under %d threads: %.1f ns/op, %.0f ops/s%n", threadCount,
+                (double) elapsed / threadCount / lookupCount, threadCount * lookupCount * 1e9 / elapsed);
+    }
+
+    @Test
+    public void MetricsHistogramPercentiles() {
+        HttpMetrics.Histogram histogram = new HttpMetrics.Histogram();
+        for (int i = 1; i <= 100000; i++)
+            histogram.record(i);
+        Assert.assertEquals(100000, histogram.count());
+        Assert.assertEquals(100000, histogram.max());
+        Assert.assertEquals(50000.5, histogram.mean(), 0.001);
+        // 对数-线性分桶的相对误差不超过1/32
+        Assert.assertEquals(50000, histogram.percentile(50), 50000 / 32);
+        Assert.assertEquals(99000, histogram.percentile(99), 99000 / 32);
+        Assert.assertEquals(100000, histogram.percentile(100));
+    }
+
+    @Test
+    public void MetricsBoundHosts() {
+        HttpMetrics metrics = new HttpMetrics(3);
+        for (int i = 0; i < 100; i++)
+            metrics.start("host" + i + ".example.com").finish();
+        Map<String, HttpMetrics.HostMetrics> snapshot = metrics.snapshot();
+        Assert.assertEquals(4, snapshot.size());
+        Assert.assertEquals(1, snapshot.get("host0.example.com").requests());
+        Assert.assertEquals(97, snapshot.get(HttpMetrics.OTHER).histogram(HttpMetrics.Phase.TOTAL).count());
+    }
+
+    @Test
+    public void DnsCacheWithStubResolver() throws Exception {
+        DnsCache.StubResolver resolver = new DnsCache.StubResolver(20).put("example.com", "10.0.0.1", "10.0.0.2");
+        DnsCache cache = new DnsCache(resolver, 2000, 1000, 0.05, 100);
+
+        long begin = System.nanoTime();
+        InetAddress[] addresses = cache.resolve("example.com");
+        long miss = System.nanoTime() - begin;
+        begin = System.nanoTime();
+        for (int i = 0; i < 1000; i++)
+            cache.resolve("EXAMPLE.com");
+        long hit = (System.nanoTime() - begin) / 1000;
+        System.out.printf("DNS cache: miss %d us, hit %d ns%n", miss / 1000, hit);
+        Assert.assertEquals(2, addresses.length);
+        Assert.assertEquals("10.0.0.1", addresses[0].getHostAddress());
+        Assert.assertEquals(1, resolver.lookups());
+
+        // 负缓存：失败的域名在negativeTtl内不再解析
+        for (int i = 0; i < 3; i++) {
+            try {
+                cache.resolve("missing.example.com");
+                Assert.fail("missing.example.com should not resolve");
+            } catch (UnknownHostException e) {
+                // expected
+            }
+        }
+        Assert.assertEquals(2, resolver.lookups());
+        Assert.assertEquals(2, cache.negativeHits());
+
+        // 经过5%的TTL后命中触发后台刷新，调用者仍得到旧结果
+        Thread.sleep(120);
+        Assert.assertEquals("10.0.0.1", cache.resolve("example.com")[0].getHostAddress());
+        Thread.sleep(60);
+        Assert.assertEquals(1, cache.refreshes());
+        Assert.assertEquals(3, resolver.lookups());
+    }
+
+    @Test
+    public void QueryStringMatchesURLEncoder() throws Exception {
+        Random random = new Random(42);
+        String alphabet = "aZ09.-*_ +&=%?/中文\u00e9\ud83d\ude00";
+        for (int i = 0; i < 1000; i++) {
+            StringBuilder builder = new StringBuilder();
+            for (int j = random.nextInt(20); j > 0; j--)
+                builder.append(alphabet.charAt(random.nextInt(alphabet.length())));
+            String value = builder.toString();
+            Map<String, String> args = Collections.singletonMap(value, value);
+            String encoded = URLEncoder.encode(value, "utf-8");
+            Assert.assertEquals(encoded + "=" + encoded + "&", QueryString.encode(args));
+            Assert.assertEquals(URLDecoder.decode(encoded, "utf-8"), QueryString.decodeToMap(encoded + "=x").keySet().iterator().next());
+        }
+
+        Map<String, List<String>> decoded = QueryString.decodeToMap("?a=1&b=%E4%B8%AD+2&a=3&flag&&");
+        Assert.assertEquals("[a, b, flag]", decoded.keySet().toString());
+        Assert.assertEquals("[1, 3]", decoded.get("a").toString());
+        Assert.assertEquals("[中 2]", decoded.get("b").toString());
+        Assert.assertEquals("[]", decoded.get("flag").toString());
+    }
+
+    /**
+     * 比较QueryString与逐个URLEncoder的编码耗时，只输出结果，不对耗时做断言
+     */
+    @Test
+    public void QueryStringEncodeBenchmark() throws Exception {
+        Map<String, String> args = new LinkedHashMap<String, String>();
+        for (int i = 0; i < 10; i++)
+            args.put("key" + i, "value " + i + " 中文/&=?");
+        long baseline = Long.MAX_VALUE, fast = Long.MAX_VALUE;
+        String expected = null, encoded = null;
+        for (int round = 0; round < 5; round++) { // 取多轮中的最好成绩，前几轮用于预热
+            long begin = System.nanoTime();
+            for (int i = 0; i < 20000; i++) {
+                StringBuilder builder = new StringBuilder();
+                for (Map.Entry<String, String> arg : args.entrySet())
+                    builder.append(URLEncoder.encode(arg.getKey(), "utf-8")).append('=').append(URLEncoder.encode(arg.getValue(), "utf-8")).append('&');
+                expected = builder.toString();
+            }
+            baseline = Math.min(baseline, System.nanoTime() - begin);
+            begin = System.nanoTime();
+            for (int i = 0; i < 20000; i++)
+                encoded = QueryString.encode(args);
+            fast = Math.min(fast, System.nanoTime() - begin);
+            Assert.assertEquals(expected, encoded);
+        }
+        System.out.printf("Query string encode: URLEncoder %d ns/op, QueryString %d ns/op%n", baseline / 20000, fast / 20000);
+    }
+
+    @Test
+    public void ContentDecoderGzipAndDeflate() throws Exception {
+        byte[] data = new byte[200000];
+        Random random = new Random(1);
+        for (int i = 0; i < data.length; i++)
+            data[i] = (byte) ('a' + random.nextInt(8));
+        ByteArrayOutputStream gzip = new ByteArrayOutputStream(), zlib = new ByteArrayOutputStream(), raw = new ByteArrayOutputStream();
+        try (GZIPOutputStream out = new GZIPOutputStream(gzip)) {
+            out.write(data);
+        }
+        try (DeflaterOutputStream out = new DeflaterOutputStream(zlib)) {
+            out.write(data);
+        }
+        try (DeflaterOutputStream out = new DeflaterOutputStream(raw, new Deflater(6, true))) {
+            out.write(data);
+        }
+
+        final long[] reported = new long[2];
+        try (InputStream in = ContentDecoder.decode(new ByteArrayInputStream(gzip.toByteArray()), "gzip", (compressed, decoded) -> {
+            reported[0] = compressed;
+            reported[1] = decoded;
+        })) {
+            Assert.assertArrayEquals(data, in.readAllBytes());
+        }
+        Assert.assertEquals(gzip.size(), reported[0]);
+        Assert.assertEquals(data.length, reported[1]);
+        // deflate可能是zlib格式，也可能是裸deflate
+        Assert.assertArrayEquals(data, ContentDecoder.decode(new ByteArrayInputStream(zlib.toByteArray()), "deflate", null).readAllBytes());
+        Assert.assertArrayEquals(data, ContentDecoder.decode(new ByteArrayInputStream(raw.toByteArray()), "deflate", null).readAllBytes());
+        // 不支持的编码原样返回
+        Assert.assertArrayEquals(data, ContentDecoder.decode(new ByteArrayInputStream(data), "compress", null).readAllBytes());
+    }
+
+    @Test
+    public void ContentDecoderMultiMemberGzip() throws Exception {
+        byte[] data = new byte[50000];
+        Random random = new Random(2);
+        for (int i = 0; i < data.length; i++)
+            data[i] = (byte) ('a' + random.nextInt(8));
+        // 三个成员依次拼接，例如分块压缩后直接连接的日志文件
+        ByteArrayOutputStream members = new ByteArrayOutputStream();
+        for (int[] range : new int[][]{{0, 20000}, {20000, 20001}, {20001, data.length}}) {
+            try (GZIPOutputStream out = new GZIPOutputStream(members)) {
+                out.write(data, range[0], range[1] - range[0]);
+            }
+        }
+        byte[] compressed = members.toByteArray();
+        Assert.assertArrayEquals(data, ContentDecoder.decode(new ByteArrayInputStream(compressed), "gzip", null).readAllBytes());
+
+        // 每次只返回一个字节，下一个成员的头部不在已读入的缓冲区中
+        InputStream trickle = new FilterInputStream(new ByteArrayInputStream(compressed)) {
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return super.read(b, off, Math.min(len, 1));
+            }
+        };
+        Assert.assertArrayEquals(data, ContentDecoder.decode(trickle, "gzip", null).readAllBytes());
+
+        // 最后一个成员之后不是gzip数据时忽略，与GZIPInputStream一致
+        byte[] padded = Arrays.copyOf(compressed, compressed.length + 16);
+        Assert.assertArrayEquals(new GZIPInputStream(new ByteArrayInputStream(padded)).readAllBytes(),
+                ContentDecoder.decode(new ByteArrayInputStream(padded), "gzip", null).readAllBytes());
+    }
+
+    @Test
+    public void SpiderBatchWithPerRequestState() throws Exception {
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        ExecutorService serverExecutor = Executors.newFixedThreadPool(16);
+        server.setExecutor(serverExecutor);
+        server.createContext("/", exchange -> {
+            // 回显路径中的编号与请求头，检查各请求的参数互不影响
+            byte[] body = (exchange.getRequestURI().getPath().substring(1) + " " + exchange.getRequestHeaders().getFirst("X-Index")).getBytes();
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+        try {
+            String base = "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+            List<Spider.RequestSpec> specs = new ArrayList<Spider.RequestSpec>();
+            Spider.RequestHandler echo = (responseCode, responseHeaders, responseStream) -> {
+                String[] parts = new String(responseStream.readAllBytes()).split(" ");
+                Assert.assertEquals(parts[0], parts[1]);
+                return Integer.parseInt(parts[0]);
+            };
+            for (int i = 0; i < 200; i++)
+                specs.add(Spider.RequestSpec.of(base + i, "GET", echo).headers(Collections.singletonMap("X-Index", String.valueOf(i))));
+            specs.add(Spider.RequestSpec.of("http://127.0.0.1:1/closed", "GET", echo));
+
+            Spider spider = Spider.newHost(base).connectTimeout(1000);
+            spider.setRequestHeaders(Collections.singletonMap("X-Index", "shared")).requestValue(value -> -1);
+            Spider.BatchResult result = spider.batch(specs, 16);
+            Assert.assertEquals(201, result.size());
+            for (int i = 0; i < 200; i++) {
+                Assert.assertNull(result.error(i));
+                Assert.assertEquals(i, result.value(i));
+            }
+            Assert.assertEquals(1, result.failures());
+            Assert.assertNotNull(result.error(200));
+            Assert.assertEquals(199 * 200 / 2, result.sum());
+            Assert.assertEquals(-1, spider.requestValue()); // batch不修改Spider的状态
+        } finally {
+            server.stop(0);
+            serverExecutor.shutdown();
+        }
+    }
+
+    @Test
+    public void SpiderBatchOnSingleThreadExecutor() throws Exception {
+        ExecutorService single = Executors.newSingleThreadExecutor();
+        final CountDownLatch blocker = new CountDownLatch(1);
+        try (HttpStandInServer server = new HttpStandInServer().bodySize(16).start()) {
+            final List<Spider.RequestSpec> specs = new ArrayList<Spider.RequestSpec>();
+            for (int i = 0; i < 20; i++)
+                specs.add(Spider.RequestSpec.of(server.url("/p" + i), "GET", (responseCode, responseHeaders, responseStream) -> responseCode));
+            final Spider spider = Spider.newHost(server.url("/")).executor(single);
+
+            // executor唯一的线程被占用，工作任务无法开始，调用线程独自完成全部请求
+            single.execute(() -> {
+                try {
+                    blocker.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            Spider.BatchResult result = spider.batch(specs, 8);
+            Assert.assertEquals(0, result.failures());
+            Assert.assertEquals(20 * 200, result.sum());
+            blocker.countDown();
+
+            // 在executor唯一的线程上调用batch
+            Spider.BatchResult nested = single.submit(() -> spider.batch(specs, 8)).get(30, TimeUnit.SECONDS);
+            Assert.assertEquals(0, nested.failures());
+
+            // executor拒绝任务
+            single.shutdown();
+            Assert.assertEquals(0, spider.batch(specs, 8).failures());
+            Assert.assertEquals(60, server.requests());
+        } finally {
+            blocker.countDown();
+            single.shutdownNow();
+        }
+    }
+
+    @Test
+    public void SpiderSchedulerTokenBucket() throws Exception {
+        // 每秒20个、突发2个：提交后立即执行2个，其余4个至少间隔50毫秒
+        SpiderScheduler scheduler = new SpiderScheduler(20, 2, 10, 10);
+        final CountDownLatch done = new CountDownLatch(6);
+        long start = System.nanoTime();
+        for (int i = 0; i < 6; i++)
+            scheduler.submit("a", Runnable::run, done::countDown);
+        Assert.assertEquals(4, done.getCount());
+        Assert.assertEquals(4, scheduler.pending());
+        Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+        Assert.assertTrue((System.nanoTime() - start) / 1000000 >= 150);
+        Assert.assertEquals(0, scheduler.pending());
+    }
+
+    @Test
+    public void SpiderSchedulerConcurrencyCaps() throws Exception {
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            // 每个主机最多2个并发
+            SpiderScheduler scheduler = new SpiderScheduler(1000, 100, 2, 100);
+            CountDownLatch release = new CountDownLatch(1);
+            CountDownLatch done = new CountDownLatch(10);
+            for (int i = 0; i < 10; i++)
+                scheduler.submit(i % 2 == 0 ? "a" : "b", executor, () -> {
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    done.countDown();
+                });
+            Assert.assertEquals(4, scheduler.active());
+            Assert.assertEquals(6, scheduler.pending());
+            release.countDown();
+            Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+
+            // 全局最多3个并发
+            scheduler = new SpiderScheduler(1000, 100, 10, 3);
+            CountDownLatch release2 = new CountDownLatch(1);
+            CountDownLatch done2 = new CountDownLatch(8);
+            for (int i = 0; i < 8; i++)
+                scheduler.submit("host" + (i % 4), executor, () -> {
+                    try {
+                        release2.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    done2.countDown();
+                });
+            Assert.assertEquals(3, scheduler.active());
+            Assert.assertEquals(5, scheduler.pending());
+            release2.countDown();
+            Assert.assertTrue(done2.await(5, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void SpiderSchedulerRejectedTaskFails() throws Exception {
+        ExecutorService rejecting = Executors.newSingleThreadExecutor();
+        rejecting.shutdown();
+        SpiderScheduler scheduler = new SpiderScheduler(1000, 100, 2, 2);
+        final CountDownLatch rejected = new CountDownLatch(1);
+        scheduler.submit("a", rejecting, () -> Assert.fail("rejected task must not run"), e -> rejected.countDown());
+        Assert.assertTrue(rejected.await(1, TimeUnit.SECONDS));
+        Assert.assertEquals(0, scheduler.active());
+
+        // 同步请求与batch都得到异常，而不是一直等待
+        Spider spider = Spider.newHost("http://127.0.0.1:1/").scheduler(scheduler).executor(rejecting);
+        try {
+            spider.request("GET", (responseCode, responseHeaders, responseStream) -> 0);
+            Assert.fail("request should fail");
+        } catch (IOException e) {
+            Assert.assertTrue(e.getMessage().contains("rejected"));
+        }
+        Spider.BatchResult result = spider.batch(Collections.singletonList(Spider.RequestSpec.of("http://127.0.0.1:1/x", "GET", (responseCode, responseHeaders, responseStream) -> 0)));
+        Assert.assertEquals(1, result.failures());
+    }
+
+    @Test
+    public void StreamMatcherAcrossChunks() throws Exception {
+        StringBuilder text = new StringBuilder();
+        Random random = new Random(42);
+        while (text.length() < 1 << 20) {
+            for (int i = random.nextInt(3000); i > 0; i--)
+                text.append((char) ('a' + random.nextInt(26)));
+            text.append("<a href=\"/p").append(random.nextInt(100000)).append("\">");
+        }
+        Pattern pattern = Pattern.compile("href=\"([^\"]*)\"");
+        List<String> expected = new ArrayList<String>();
+        Matcher matcher = pattern.matcher(text);
+        while (matcher.find())
+            expected.add(matcher.group(1) + "@" + matcher.start());
+
+        // 窗口小于、大于读取的分块时，跨分块的匹配都不丢失，位置相对于整个流
+        for (int window : new int[]{4096, Spider.StreamMatcher.DEFAULT_WINDOW}) {
+            final List<String> actual = new ArrayList<String>();
+            int count = new Spider.StreamMatcher(pattern, window).match(new StringReader(text.toString()), match -> {
+                actual.add(match.group(1) + "@" + match.start());
+                return true;
+            });
+            Assert.assertEquals(expected.size(), count);
+            Assert.assertEquals(expected, actual);
+        }
+    }
+
+    @Test
+    public void ResultSinkReportsRuntimeFailure() throws Exception {
+        ResultSink<String> sink = new ResultSink<String>(new ResultSink.Memory<String>() {
+            @Override
+            public synchronized void write(List<String> batch) {
+                throw new IllegalStateException("disk full");
+            }
+        }, 4, 2, 10);
+        // 写线程因运行时异常退出后，put不再阻塞而是抛出异常
+        try {
+            for (int i = 0; i < 1000; i++)
+                sink.put("r" + i);
+            Assert.fail("put should fail once the writer failed");
+        } catch (IOException e) {
+            Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        try {
+            sink.close();
+            Assert.fail("close should report the failure");
+        } catch (IOException e) {
+            Assert.assertEquals("disk full", e.getCause().getMessage());
+        }
+    }
+
+    @Test
+    public void ResultSinkCloseDoesNotDropResults() throws Exception {
+        for (int round = 0; round < 50; round++) {
+            ResultSink.Memory<Integer> memory = new ResultSink.Memory<Integer>();
+            final ResultSink<Integer> sink = new ResultSink<Integer>(memory, 4, 2, 1);
+            final AtomicInteger accepted = new AtomicInteger();
+            final CountDownLatch started = new CountDownLatch(4);
+            Thread[] producers = new Thread[4];
+            for (int t = 0; t < producers.length; t++) {
+                producers[t] = new Thread(() -> {
+                    started.countDown();
+                    try {
+                        for (int i = 0; ; i++) {
+                            sink.put(i);
+                            accepted.incrementAndGet();
+                        }
+                    } catch (IOException | IllegalStateException e) {
+                        // 已关闭
+                    }
+                });
+                producers[t].start();
+            }
+            started.await();
+            sink.close();
+            for (Thread producer : producers)
+                producer.join();
+            // put正常返回的结果都已写出
+            Assert.assertEquals(accepted.get(), memory.results().size());
+        }
+    }
+
+    private static HttpRequester.HttpResponse get(HttpRequester requester, String url, Map<String, String> headers) throws IOException {
+        return requester.doRequest(new URL(url), "GET", null, headers, 5000, 5000, null, true);
+    }
+
+    @Test
+    public void ResponseCacheVaryAndCredentials() throws Exception {
+        final AtomicInteger served = new AtomicInteger();
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/", exchange -> {
+            String path = exchange.getRequestURI().getPath();
+            exchange.getResponseHeaders().set("Cache-Control", path.equals("/public") ? "public, max-age=60" : "max-age=60");
+            if (path.equals("/vary")) exchange.getResponseHeaders().set("Vary", "Accept-Language");
+            byte[] body = (exchange.getRequestHeaders().getFirst("Accept-Language") + " " + served.incrementAndGet()).getBytes();
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+        try {
+            String base = "http://127.0.0.1:" + server.getAddress().getPort();
+            HttpRequester requester = HttpRequester.newInstance();
+            HttpResponseCache cache = new HttpResponseCache(1 << 20);
+            requester.setResponseCache(cache);
+
+            // 按Vary中的请求头区分
+            Map<String, String> en = Collections.singletonMap("Accept-Language", "en");
+            Map<String, String> fr = Collections.singletonMap("Accept-Language", "fr");
+            Assert.assertEquals("en 1", get(requester, base + "/vary", en).getResponse().toString());
+            Assert.assertEquals("en 1", get(requester, base + "/vary", en).getResponse().toString());
+            Assert.assertEquals("fr 2", get(requester, base + "/vary", fr).getResponse().toString());
+            Assert.assertEquals("fr 2", get(requester, base + "/vary", fr).getResponse().toString());
+
+            // 携带Authorization或Cookie的响应只有public才缓存
+            Map<String, String> auth = Collections.singletonMap("Authorization", "Basic dXNlcjpwYXNz");
+            Assert.assertEquals("null 3", get(requester, base + "/private", auth).getResponse().toString());
+            Assert.assertEquals("null 4", get(requester, base + "/private", auth).getResponse().toString());
+            Map<String, String> cookie = Collections.singletonMap("Cookie", "session=1");
+            Assert.assertEquals("null 5", get(requester, base + "/public", cookie).getResponse().toString());
+            Assert.assertEquals("null 5", get(requester, base + "/public", cookie).getResponse().toString());
+
+            // 每次命中得到独立的响应头
+            HttpRequester.HttpResponse hit = get(requester, base + "/public", null);
+            hit.getResponseHeaders().clear();
+            Assert.assertNotNull(HttpRequester.headerOf(get(requester, base + "/public", null).getResponseHeaders(), "Cache-Control"));
+            Assert.assertEquals(5, served.get());
+            Assert.assertEquals(5, cache.hits());
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void RouteLimiterIsOptInAndIgnoresUnclosedBodies() throws Exception {
+        try (HttpStandInServer server = new HttpStandInServer().start()) {
+            HttpRequester requester = HttpRequester.newInstance();
+            Assert.assertNull(requester.getRouteLimiter());
+
+            // 许可在收到响应头时归还，正文从不关闭的请求也不会耗尽路由的并发数
+            RouteLimiter limiter = new RouteLimiter(2);
+            requester.setRouteLimiter(limiter);
+            for (int i = 0; i < 20; i++)
+                Assert.assertEquals(200, requester.doRequest(server.url("/unclosed"), "GET", null, null, 1000, 5000, null, true).getResponseCode());
+            Assert.assertEquals(20, limiter.acquired());
+            Assert.assertEquals(0, limiter.inFlight());
+
+            // 请求失败时同样归还
+            try {
+                requester.doRequest(new URL("http://127.0.0.1:1/closed"), "GET", null, null, 1000, 1000, null, true);
+                Assert.fail("connection should be refused");
+            } catch (IOException e) {
+                Assert.assertEquals(0, limiter.inFlight());
+            }
+        }
+    }
+
+    @Test
+    public void DownloadResumeWithIfRange() throws Exception {
+        final int size = 100000;
+        try (HttpStandInServer server = new HttpStandInServer().bodySize(size).start()) {
+            HttpRequester requester = HttpRequester.newInstance();
+            URL url = server.url("/file");
+            Path target = Files.createTempFile("download", ".bin");
+            Path validator = target.resolveSibling(target.getFileName() + ".validator");
+            try {
+                // 没有validator时从头下载，完成后不留下validator
+                Files.write(target, HttpStandInServer.content(0, 30000));
+                HttpRequester.DownloadResult result = requester.download(url, target);
+                Assert.assertFalse(result.isResumed());
+                Assert.assertEquals(size, result.getTransferred());
+                Assert.assertArrayEquals(HttpStandInServer.content(0, size), Files.readAllBytes(target));
+                Assert.assertFalse(Files.exists(validator));
+
+                // 中断后续传：If-Range匹配，只传输剩余部分
+                String etag = HttpRequester.headerOf(requester.doRequest(url, "HEAD", null, null, 5000, 5000, null, false).getResponseHeaders(), "ETag");
+                Files.write(target, HttpStandInServer.content(0, 30000));
+                Files.write(validator, etag.getBytes("utf-8"));
+                result = requester.download(url, target);
+                Assert.assertTrue(result.isResumed());
+                Assert.assertEquals(size - 30000, result.getTransferred());
+                Assert.assertArrayEquals(HttpStandInServer.content(0, size), Files.readAllBytes(target));
+                Assert.assertFalse(Files.exists(validator));
+
+                // 资源已改变：If-Range不匹配，服务器返回完整正文
+                Files.write(target, HttpStandInServer.content(0, 30000));
+                Files.write(validator, etag.getBytes("utf-8"));
+                server.version(2);
+                result = requester.download(url, target);
+                Assert.assertFalse(result.isResumed());
+                Assert.assertEquals(size, result.getTransferred());
+                Assert.assertArrayEquals(HttpStandInServer.content(0, size), Files.readAllBytes(target));
+
+                // 416：长度与服务器一致才视为完整，否则重新下载
+                etag = HttpRequester.headerOf(requester.doRequest(url, "HEAD", null, null, 5000, 5000, null, false).getResponseHeaders(), "ETag");
+                Files.write(validator, etag.getBytes("utf-8"));
+                result = requester.download(url, target);
+                Assert.assertEquals(0, result.getTransferred());
+                Assert.assertEquals(size, result.getFileSize());
+                Assert.assertFalse(Files.exists(validator));
+
+                Files.write(target, HttpStandInServer.content(0, size + 100));
+                Files.write(validator, etag.getBytes("utf-8"));
+                result = requester.download(url, target);
+                Assert.assertEquals(size, result.getTransferred());
+                Assert.assertArrayEquals(HttpStandInServer.content(0, size), Files.readAllBytes(target));
+            } finally {
+                Files.deleteIfExists(target);
+                Files.deleteIfExists(validator);
+            }
+        }
+    }
+
+    @Test
+    public void RangeRequestsBypassCacheAndHttp2() throws Exception {
+        final int size = 200000;
+        try (HttpStandInServer server = new HttpStandInServer().bodySize(size).maxAge(60).start()) {
+            URL url = server.url("/segments");
+            HttpRequester requester = HttpRequester.newInstance();
+            requester.setResponseCache(new HttpResponseCache(1 << 20));
+            // 缓存中有新鲜的完整响应，Range请求不能用它回答
+            Assert.assertArrayEquals(HttpStandInServer.content(0, size), get(requester, url.toString(), null).getResponse().readAllBytes());
+            Assert.assertEquals(1, server.requests());
+            requester.setHttp2Mode(AsyncHttpRequester.newHttp2Instance(8, 5000));
+
+            Path target = Files.createTempFile("segments", ".bin");
+            try {
+                HttpRequester.DownloadResult result = requester.downloadSegmented(url, target, 4, null, null, 5000, 5000);
+                Assert.assertEquals(4, result.getSegments());
+                Assert.assertArrayEquals(HttpStandInServer.content(0, size), Files.readAllBytes(target));
+            } finally {
+                Files.deleteIfExists(target);
+            }
+
+            // HTTP/2模式直接发出的Range请求同样返回206的正文
+            HttpRequester.HttpResponse response = AsyncHttpRequester.newHttp2Instance(1, 5000).doRequest(url, "GET", null, Collections.singletonMap("Range", "bytes=10-19"), 5000, false);
+            Assert.assertEquals(206, response.getResponseCode());
+            Assert.assertArrayEquals(HttpStandInServer.content(10, 10), response.getResponse().readAllBytes());
+        }
+    }
+
+    @Test
+    public void StandInServerAndLoadGenerator() throws Exception {
+        try (HttpStandInServer server = new HttpStandInServer().bodySize(50000).start()) {
+            HttpRequester requester = HttpRequester.newInstance();
+            HttpRequester.HttpResponse response = requester.doRequest(server.url("/a?gzip=1&chunked=1"), "GET", null, null, 5000, 5000, null, true);
+            Assert.assertEquals(200, response.getResponseCode());
+            Assert.assertEquals("gzip", HttpRequester.headerOf(response.getResponseHeaders(), "Content-Encoding"));
+            Assert.assertArrayEquals(HttpStandInServer.content(0, 50000), response.getResponse().readAllBytes());
+            response.getResponse().close();
+
+            response = requester.doRequest(server.url("/b"), "GET", null, Collections.singletonMap("Range", "bytes=100-199"), 5000, 5000, null, true);
+            Assert.assertEquals(206, response.getResponseCode());
+            Assert.assertEquals("bytes 100-199/50000", HttpRequester.headerOf(response.getResponseHeaders(), "Content-Range"));
+            Assert.assertArrayEquals(HttpStandInServer.content(100, 100), response.getResponse().readAllBytes());
+            response.getResponse().close();
+
+            Assert.assertEquals(503, requester.doRequest(server.url("/c?status=503"), "GET", null, null, 5000, 5000, null, true).getResponseCode());
+
+            // 固定并发压测：默认的200权重为1，503权重为0.25，约0.25 / 1.25 = 20%的请求返回503
+            server.bodySize(4096).latency(1).status(503, 0.25);
+            LoadGenerator.Result result = LoadGenerator.run(8, 400, LoadGenerator.httpRequester(requester, server.url("/load")));
+            System.out.println("HttpRequester " + result);
+            Assert.assertEquals(400, result.requests());
+            Assert.assertEquals(0, result.errors());
+            Assert.assertEquals(400, result.statuses().get(200) + result.statuses().get(503));
+            Assert.assertTrue(result.statuses().get(503) > 20);
+            Assert.assertTrue(result.percentile(50) >= 1000 && result.percentile(50) <= result.percentile(99));
+
+            result = LoadGenerator.run(8, 400, LoadGenerator.spider(Spider.newHost(server.url("/load")), server.url("/load")));
+            System.out.println("Spider        " + result);
+            Assert.assertEquals(0, result.errors());
+            Assert.assertTrue(result.requestsPerSecond() > 0);
+        }
+    }
+
+    @Test
+    public void RetryPolicyBackoffAndRetryAfter() throws Exception {
+        RetryPolicy policy = new RetryPolicy(10, 100, 1000);
+        for (int i = 0; i < 1000; i++) {
+            long first = policy.backoff(1), third = policy.backoff(3), last = policy.backoff(10);
+            Assert.assertTrue(first >= 0 && first <= 100);
+            Assert.assertTrue(third >= 0 && third <= 400);
+            Assert.assertTrue(last >= 0 && last <= 1000);
+        }
+        Assert.assertEquals(0, new RetryPolicy(3, 0, 0).backoff(5));
+
+        Assert.assertEquals(0, RetryPolicy.retryAfterOf(null));
+        Assert.assertEquals(3000, RetryPolicy.retryAfterOf(" 3 "));
+        Assert.assertEquals(0, RetryPolicy.retryAfterOf("-5"));
+        Assert.assertEquals(0, RetryPolicy.retryAfterOf("soon"));
+        String future = DateTimeFormatter.RFC_1123_DATE_TIME.format(ZonedDateTime.now(ZoneOffset.UTC).plusSeconds(30));
+        long delay = RetryPolicy.retryAfterOf(future);
+        Assert.assertTrue(delay > 25000 && delay <= 30000);
+        Assert.assertEquals(0, RetryPolicy.retryAfterOf("Sun, 06 Nov 1994 08:49:37 GMT"));
+    }
+
+    @Test
+    public void RetryPolicyBudgetLimitsRetries() throws Exception {
+        try (HttpStandInServer server = new HttpStandInServer().status(503, 1e9).start()) {
+            HttpRequester requester = HttpRequester.newInstance();
+            // 令牌上限2，每个请求存入0.1个：第一个请求重试两次，之后的9个请求存入的令牌不足一次重试
+            RetryPolicy policy = new RetryPolicy(3, 0, 0).budget(0.1, 2);
+            requester.setRetryPolicy(policy);
+            for (int i = 0; i < 10; i++)
+                Assert.assertEquals(503, get(requester, server.url("/unavailable").toString(), null).getResponseCode());
+            Assert.assertEquals(2, policy.retries());
+            Assert.assertEquals(9, policy.budgetExhausted());
+            Assert.assertEquals(12, server.requests());
+
+            // POST只在服务器明确拒绝处理（503）时重试
+            policy = new RetryPolicy(3, 0, 0).budget(1, 10);
+            requester.setRetryPolicy(policy);
+            Assert.assertEquals(503, requester.doRequest(server.url("/post"), "POST", Collections.singletonMap("a", "1"), null, 5000, 5000, null, false).getResponseCode());
+            Assert.assertEquals(2, policy.retries());
+        }
+    }
+
+    @Test
+    public void RetryPolicyHedgesOnCallerCookies() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger slow = new AtomicInteger();
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        ExecutorService executor = Executors.newCachedThreadPool();
+        server.setExecutor(executor);
+        server.createContext("/", exchange -> {
+            String path = exchange.getRequestURI().getPath();
+            try {
+                if (path.equals("/login"))
+                    exchange.getResponseHeaders().add("Set-Cookie", "user=a; Path=/");
+                if (path.equals("/slow")) {
+                    if (slow.incrementAndGet() == 1)
+                        release.await(30, TimeUnit.SECONDS); // 主请求卡住，只有对冲请求能返回
+                    else
+                        exchange.getResponseHeaders().add("Set-Cookie", "hedge=1; Path=/");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            byte[] body = String.valueOf(exchange.getRequestHeaders().getFirst("Cookie")).getBytes();
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+        HttpRequester.setThreadCookiesEnabled(true);
+        try {
+            final String base = "http://127.0.0.1:" + server.getAddress().getPort();
+            final HttpRequester requester = HttpRequester.newInstance();
+            RetryPolicy policy = new RetryPolicy().hedge(95);
+            requester.setRetryPolicy(policy);
+            get(requester, base + "/login", null).getResponse().close();
+            for (int i = 0; i < 30; i++) // 积累响应时间样本
+                Assert.assertEquals("user=a", get(requester, base + "/fast", null).getResponse().toString());
+
+            // 对冲请求带着调用线程的Cookie，先返回后中止调用线程上的主请求
+            long hedgeWins = policy.hedgeWins();
+            Assert.assertEquals("user=a", get(requester, base + "/slow", null).getResponse().toString());
+            Assert.assertEquals(hedgeWins + 1, policy.hedgeWins());
+            Assert.assertTrue(policy.hedges() >= 1);
+            release.countDown();
+
+            // 对冲请求收到的Set-Cookie写回调用线程，其他线程看不到
+            String cookies = get(requester, base + "/echo", null).getResponse().toString();
+            Assert.assertTrue(cookies, cookies.contains("user=a") && cookies.contains("hedge=1"));
+            final String[] other = new String[1];
+            Thread thread = new Thread(() -> {
+                try {
+                    other[0] = get(requester, base + "/echo", null).getResponse().toString();
+                } catch (IOException e) {
+                    other[0] = e.toString();
+                }
+            });
+            thread.start();
+            thread.join();
+            Assert.assertEquals("null", other[0]);
+        } finally {
+            release.countDown();
+            HttpRequester.setThreadCookiesEnabled(false);
+            server.stop(0);
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void RequestBodyMultipartRoundTrip() throws Exception {
+        final List<String> framing = Collections.synchronizedList(new ArrayList<String>());
+        final List<byte[]> received = Collections.synchronizedList(new ArrayList<byte[]>());
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/", exchange -> {
+            byte[] body = exchange.getRequestBody().readAllBytes();
+            received.add(body);
+            framing.add(exchange.getRequestHeaders().getFirst("Content-Length") + " " + exchange.getRequestHeaders().getFirst("Transfer-Encoding"));
+            int status = exchange.getRequestURI().getPath().equals("/unavailable") ? 503 : 200;
+            byte[] response = exchange.getRequestHeaders().getFirst("Content-Type").getBytes();
+            exchange.sendResponseHeaders(status, response.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(response);
+            }
+        });
+        server.start();
+        Path file = Files.createTempFile("upload", ".bin");
+        try {
+            URL base = new URL("http://127.0.0.1:" + server.getAddress().getPort());
+            HttpRequester requester = HttpRequester.newInstance();
+            byte[] content = new byte[300000];
+            new Random(7).nextBytes(content);
+            Files.write(file, content);
+
+            // 各部分长度已知：定长流式模式
+            RequestBody.Multipart multipart = new RequestBody.Multipart().addField("name", "值 value").addFile("file", file, "image/png");
+            ByteArrayOutputStream expected = new ByteArrayOutputStream();
+            multipart.writeTo(expected);
+            HttpRequester.HttpResponse response = requester.doRequest(new URL(base, "/upload"), "POST", null, multipart, null, 5000, 5000, null, false);
+            Assert.assertEquals(200, response.getResponseCode());
+            Assert.assertEquals(multipart.contentType(), response.getResponse().toString());
+            Assert.assertEquals(expected.size(), multipart.contentLength());
+            Assert.assertEquals(expected.size() + " null", framing.get(0));
+            Assert.assertArrayEquals(expected.toByteArray(), received.get(0));
+            String text = new String(received.get(0), "utf-8");
+            Assert.assertTrue(text.contains("name=\"name\"\r\n\r\n值 value\r\n"));
+            Assert.assertTrue(text.contains("filename=\"" + file.getFileName() + "\"\r\nContent-Type: image/png\r\n"));
+
+            // 含长度未知的部分：chunked传输编码
+            multipart = new RequestBody.Multipart().addField("name", "stream")
+                    .addPart("data", "data.bin", RequestBody.of(new ByteArrayInputStream(content), -1, null));
+            response = requester.doRequest(new URL(base, "/upload"), "PUT", null, multipart, null, 5000, 5000, null, false);
+            Assert.assertEquals(200, response.getResponseCode());
+            Assert.assertEquals(-1, multipart.contentLength());
+            Assert.assertFalse(multipart.isRepeatable());
+            Assert.assertEquals("null chunked", framing.get(1));
+            text = new String(received.get(1), "iso-8859-1");
+            Assert.assertTrue(text.startsWith("--"));
+            Assert.assertTrue(text.endsWith("--\r\n"));
+            Assert.assertTrue(text.contains(new String(content, "iso-8859-1")));
+
+            // 可重复的正文按策略重试，输入流正文只发送一次
+            requester.setRetryPolicy(new RetryPolicy(3, 0, 0));
+            Assert.assertEquals(503, requester.doRequest(new URL(base, "/unavailable"), "PUT", null, RequestBody.of(content, "application/octet-stream"), null, 5000, 5000, null, false).getResponseCode());
+            Assert.assertEquals(5, received.size());
+            Assert.assertEquals(503, requester.doRequest(new URL(base, "/unavailable"), "PUT", null, RequestBody.of(new ByteArrayInputStream(content), content.length, "application/octet-stream"), null, 5000, 5000, null, false).getResponseCode());
+            Assert.assertEquals(6, received.size());
+            Assert.assertArrayEquals(content, received.get(5));
+        } finally {
+            Files.deleteIfExists(file);
+            server.stop(0);
+        }
+    }
 }
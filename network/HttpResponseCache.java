@@ -0,0 +1,473 @@
+import java.io.*;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * HttpRequester的响应缓存，内存LRU + 可选的磁盘二级缓存。<br/>
+ * 只缓存GET请求的200响应，遵循Cache-Control(no-store/no-cache/max-age/public)、Expires与Vary；
+ * 过期的缓存带有ETag/Last-Modified时自动发送If-None-Match/If-Modified-Since，
+ * 服务器返回304时直接使用缓存的正文，不再传输。<br/>
+ * 缓存由所有线程共享，因此携带Cookie或Authorization的请求的响应只有声明了Cache-Control: public才会缓存。
+ */
+public class HttpResponseCache {
+    private static final DateTimeFormatter HTTP_DATE = DateTimeFormatter.RFC_1123_DATE_TIME;
+    private static final int DISK_FORMAT = 2; // 磁盘记录的格式版本，格式不同的旧记录视为不存在
+
+    /**
+     * 一条缓存记录
+     */
+    static class Entry {
+        private final String key;
+        private final Map<String, String> vary; // Vary中列出的请求头(小写) -> 缓存时请求中的值，未发送为空串
+        private final Map<String, List<String>> headers;
+        private final byte[] body;
+        private final String etag;
+        private final String lastModified;
+        private volatile long expiresAt;
+
+        private Entry(String key, Map<String, String> vary, Map<String, List<String>> headers, byte[] body, long expiresAt) {
+            this.key = key;
+            this.vary = vary;
+            this.headers = headers;
+            this.body = body;
+            this.etag = firstHeader(headers, "ETag");
+            this.lastModified = firstHeader(headers, "Last-Modified");
+            this.expiresAt = expiresAt;
+        }
+
+        boolean isFresh() {
+            return System.currentTimeMillis() < this.expiresAt;
+        }
+
+        /**
+         * @return 请求中Vary列出的请求头与缓存时一致
+         */
+        private boolean matches(Map<String, String> requestHeaders) {
+            for (Map.Entry<String, String> vary : this.vary.entrySet())
+                if (!vary.getValue().equals(requestHeader(requestHeaders, vary.getKey())))
+                    return false;
+            return true;
+        }
+
+        /**
+         * 为过期的缓存添加条件请求头
+         *
+         * @param requestHeaders 请求头
+         * @return 是否可以发起条件请求
+         */
+        boolean addConditionalHeaders(Map<String, String> requestHeaders) {
+            if (this.etag != null) requestHeaders.put("If-None-Match", this.etag);
+            if (this.lastModified != null) requestHeaders.put("If-Modified-Since", this.lastModified);
+            return this.etag != null || this.lastModified != null;
+        }
+
+        private HttpRequester.HttpResponse toResponse() {
+            HttpRequester.HttpResponse response = new HttpRequester.HttpResponse(false);
+            response.setResponseCode(200);
+            // 每次命中返回响应头的副本，调用方修改不影响缓存
+            Map<String, List<String>> headers = new LinkedHashMap<String, List<String>>();
+            for (Map.Entry<String, List<String>> header : this.headers.entrySet())
+                headers.put(header.getKey(), new ArrayList<String>(header.getValue()));
+            response.setResponseHeaders(headers);
+            Charset charset = HttpRequester.HttpInputStream.charsetOf(firstHeader(this.headers, "Content-Type"));
+            response.setResponse(new HttpRequester.HttpInputStream(new ByteArrayInputStream(this.body), charset, this.body.length));
+            return response;
+        }
+    }
+
+    /**
+     * 边读边记录正文，读到结尾时写入缓存；超过单条上限则放弃记录
+     */
+    private class RecordingInputStream extends FilterInputStream {
+        private final String key;
+        private final Map<String, String> vary;
+        private final Map<String, List<String>> headers;
+        private final long expiresAt;
+        private ByteArrayOutputStream recorded;
+
+        private RecordingInputStream(InputStream in, String key, Map<String, String> vary, Map<String, List<String>> headers, long expiresAt) {
+            super(in);
+            this.key = key;
+            this.vary = vary;
+            this.headers = headers;
+            this.expiresAt = expiresAt;
+            this.recorded = new ByteArrayOutputStream();
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b == -1) this.commit();
+            else if (this.recorded != null) this.record(new byte[]{(byte) b}, 0, 1);
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n == -1) this.commit();
+            else if (this.recorded != null) this.record(b, off, n);
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            this.recorded = null; // 跳过的正文无法缓存
+            return super.skip(n);
+        }
+
+        private void record(byte[] b, int off, int len) {
+            if (this.recorded.size() + len > HttpResponseCache.this.maxEntryBytes)
+                this.recorded = null;
+            else
+                this.recorded.write(b, off, len);
+        }
+
+        private void commit() {
+            if (this.recorded == null) return;
+            HttpResponseCache.this.put(new Entry(this.key, this.vary, this.headers, this.recorded.toByteArray(), this.expiresAt));
+            this.recorded = null;
+        }
+    }
+
+    private final long maxMemoryBytes;
+    private final long maxEntryBytes;
+    private final File directory;
+    private final long maxDiskBytes;
+    private final LinkedHashMap<String, Entry> memory;
+    private long memoryBytes;
+    private final AtomicLong diskBytes;
+    private final AtomicLong hits;
+    private final AtomicLong misses;
+    private final AtomicLong revalidations;
+
+    /**
+     * 仅使用内存缓存
+     *
+     * @param maxMemoryBytes 内存中缓存的正文总大小上限
+     */
+    public HttpResponseCache(long maxMemoryBytes) {
+        this(maxMemoryBytes, null, 0);
+    }
+
+    /**
+     * @param maxMemoryBytes 内存中缓存的正文总大小上限
+     * @param directory      磁盘缓存目录，null则不使用磁盘缓存
+     * @param maxDiskBytes   磁盘缓存的总大小上限
+     */
+    public HttpResponseCache(long maxMemoryBytes, File directory, long maxDiskBytes) {
+        this.maxMemoryBytes = maxMemoryBytes;
+        this.maxEntryBytes = Math.max(maxMemoryBytes, maxDiskBytes) / 8;
+        this.directory = directory;
+        this.maxDiskBytes = maxDiskBytes;
+        this.memory = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+        this.memoryBytes = 0;
+        this.diskBytes = new AtomicLong();
+        this.hits = new AtomicLong();
+        this.misses = new AtomicLong();
+        this.revalidations = new AtomicLong();
+
+        if (directory != null) {
+            if (!directory.isDirectory() && !directory.mkdirs())
+                throw new IllegalArgumentException("Cannot create cache directory " + directory.getAbsolutePath());
+            File[] files = directory.listFiles();
+            if (files != null)
+                for (File file : files)
+                    this.diskBytes.addAndGet(file.length());
+        }
+    }
+
+    private static String firstHeader(Map<String, List<String>> headers, String name) {
+        for (Map.Entry<String, List<String>> header : headers.entrySet())
+            if (name.equalsIgnoreCase(header.getKey()) && header.getValue() != null && !header.getValue().isEmpty())
+                return header.getValue().get(0);
+        return null;
+    }
+
+    private static String requestHeader(Map<String, String> requestHeaders, String name) {
+        if (requestHeaders != null)
+            for (Map.Entry<String, String> header : requestHeaders.entrySet())
+                if (name.equalsIgnoreCase(header.getKey()) && header.getValue() != null)
+                    return header.getValue();
+        return "";
+    }
+
+    /**
+     * 根据响应头计算过期时间
+     *
+     * @param credentials 请求是否携带了Cookie或Authorization
+     * @return 不可缓存时返回-1
+     */
+    private static long expiresAt(Map<String, List<String>> headers, boolean credentials, long now) {
+        String cacheControl = firstHeader(headers, "Cache-Control");
+        boolean hasValidator = firstHeader(headers, "ETag") != null || firstHeader(headers, "Last-Modified") != null;
+        if (cacheControl == null && credentials) return -1;
+        if (cacheControl != null) {
+            long maxAge = -1;
+            boolean noCache = false, isPublic = false;
+            for (String directive : cacheControl.toLowerCase().split(",")) {
+                directive = directive.trim();
+                if (directive.equals("no-store")) return -1;
+                if (directive.equals("no-cache")) noCache = true;
+                if (directive.equals("public")) isPublic = true;
+                if (directive.startsWith("max-age=")) { // 本地缓存不是共享缓存，忽略s-maxage
+                    try {
+                        maxAge = Long.parseLong(directive.substring(8).trim());
+                    } catch (NumberFormatException ignored) {
+                    }
+                }
+            }
+            if (credentials && !isPublic) return -1;
+            if (noCache) return hasValidator ? now : -1;
+            if (maxAge >= 0) return now + maxAge * 1000;
+        }
+
+        String expires = firstHeader(headers, "Expires");
+        if (expires != null) {
+            try {
+                return ZonedDateTime.parse(expires, HTTP_DATE).toInstant().toEpochMilli();
+            } catch (DateTimeParseException e) {
+                return hasValidator ? now : -1; // 非法的Expires视为已过期
+            }
+        }
+        return hasValidator ? now : -1;
+    }
+
+    /**
+     * 从响应的Vary中取出请求头的值
+     *
+     * @return 含有Vary: *时返回null，表示不可缓存
+     */
+    private static Map<String, String> varyOf(Map<String, List<String>> responseHeaders, Map<String, String> requestHeaders) {
+        Map<String, String> vary = new TreeMap<String, String>();
+        for (Map.Entry<String, List<String>> header : responseHeaders.entrySet()) {
+            if (!"Vary".equalsIgnoreCase(header.getKey()) || header.getValue() == null) continue;
+            for (String value : header.getValue()) {
+                for (String name : value.split(",")) {
+                    name = name.trim().toLowerCase();
+                    if (name.equals("*")) return null;
+                    if (!name.isEmpty()) vary.put(name, requestHeader(requestHeaders, name));
+                }
+            }
+        }
+        return vary;
+    }
+
+    /**
+     * 查找缓存，不计入统计
+     *
+     * @param requestHeaders 本次请求的请求头，与缓存记录的Vary不符时视为没有缓存
+     */
+    Entry lookup(String key, Map<String, String> requestHeaders) {
+        Entry entry;
+        synchronized (this.memory) {
+            entry = this.memory.get(key);
+        }
+        if (entry == null) {
+            entry = this.readDisk(key);
+            if (entry != null) this.putMemory(entry);
+        }
+        return entry != null && entry.matches(requestHeaders) ? entry : null;
+    }
+
+    /**
+     * 使用新鲜的缓存响应请求
+     */
+    HttpRequester.HttpResponse hit(Entry entry) {
+        this.hits.incrementAndGet();
+        return entry.toResponse();
+    }
+
+    /**
+     * 服务器返回304，刷新缓存的过期时间并使用缓存的正文
+     */
+    HttpRequester.HttpResponse revalidated(Entry entry, Map<String, List<String>> responseHeaders) {
+        this.revalidations.incrementAndGet();
+        long expiresAt = expiresAt(responseHeaders, false, System.currentTimeMillis());
+        if (expiresAt < 0) expiresAt = expiresAt(entry.headers, false, System.currentTimeMillis());
+        entry.expiresAt = Math.max(expiresAt, System.currentTimeMillis());
+        this.writeDisk(entry);
+        return entry.toResponse();
+    }
+
+    void miss() {
+        this.misses.incrementAndGet();
+    }
+
+    /**
+     * 若响应可缓存，则包装正文使其读完后写入缓存
+     *
+     * @param requestHeaders 本次请求的请求头，按响应的Vary记录
+     * @param credentials    请求是否携带了Cookie（包括CookieHandler添加的）或Authorization
+     * @return 不可缓存时原样返回
+     */
+    InputStream record(String key, Map<String, String> requestHeaders, boolean credentials, Map<String, List<String>> responseHeaders, InputStream body) {
+        long expiresAt = expiresAt(responseHeaders, credentials, System.currentTimeMillis());
+        Map<String, String> vary = varyOf(responseHeaders, requestHeaders);
+        if (expiresAt < 0 || vary == null) return body;
+        Map<String, List<String>> headers = new LinkedHashMap<String, List<String>>();
+        for (Map.Entry<String, List<String>> header : responseHeaders.entrySet())
+            if (header.getKey() != null) // 状态行
+                headers.put(header.getKey(), header.getValue());
+        return new RecordingInputStream(body, key, vary, headers, expiresAt);
+    }
+
+    private void put(Entry entry) {
+        this.putMemory(entry);
+        this.writeDisk(entry);
+    }
+
+    private void putMemory(Entry entry) {
+        synchronized (this.memory) {
+            Entry old = this.memory.put(entry.key, entry);
+            if (old != null) this.memoryBytes -= old.body.length;
+            this.memoryBytes += entry.body.length;
+            for (Iterator<Entry> iterator = this.memory.values().iterator(); this.memoryBytes > this.maxMemoryBytes && iterator.hasNext(); ) {
+                this.memoryBytes -= iterator.next().body.length;
+                iterator.remove();
+            }
+        }
+    }
+
+    private File fileOf(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(key.getBytes("utf-8"));
+            StringBuilder builder = new StringBuilder();
+            for (byte b : digest)
+                builder.append(String.format("%02x", b));
+            return new File(this.directory, builder.toString());
+        } catch (NoSuchAlgorithmException | UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private Entry readDisk(String key) {
+        if (this.directory == null) return null;
+        File file = this.fileOf(key);
+        if (!file.isFile()) return null;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (!in.readUTF().equals(key) || in.readInt() != DISK_FORMAT) return null; // 散列冲突或旧格式
+            long expiresAt = in.readLong();
+            Map<String, String> vary = new TreeMap<String, String>();
+            for (int varyCount = in.readInt(); varyCount > 0; varyCount--)
+                vary.put(in.readUTF(), in.readUTF());
+            Map<String, List<String>> headers = new LinkedHashMap<String, List<String>>();
+            for (int headerCount = in.readInt(); headerCount > 0; headerCount--) {
+                String name = in.readUTF();
+                List<String> values = new ArrayList<String>();
+                for (int valueCount = in.readInt(); valueCount > 0; valueCount--)
+                    values.add(in.readUTF());
+                headers.put(name, values);
+            }
+            byte[] body = new byte[in.readInt()];
+            in.readFully(body);
+            return new Entry(key, vary, headers, body, expiresAt);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private void writeDisk(Entry entry) {
+        if (this.directory == null || entry.body.length > this.maxDiskBytes) return;
+        File file = this.fileOf(entry.key);
+        long oldLength = file.length();
+        File temp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            out.writeUTF(entry.key);
+            out.writeInt(DISK_FORMAT);
+            out.writeLong(entry.expiresAt);
+            out.writeInt(entry.vary.size());
+            for (Map.Entry<String, String> vary : entry.vary.entrySet()) {
+                out.writeUTF(vary.getKey());
+                out.writeUTF(vary.getValue());
+            }
+            out.writeInt(entry.headers.size());
+            for (Map.Entry<String, List<String>> header : entry.headers.entrySet()) {
+                out.writeUTF(header.getKey());
+                out.writeInt(header.getValue().size());
+                for (String value : header.getValue())
+                    out.writeUTF(value);
+            }
+            out.writeInt(entry.body.length);
+            out.write(entry.body);
+        } catch (IOException e) {
+            temp.delete();
+            return;
+        }
+        if (!temp.renameTo(file) && !(file.delete() && temp.renameTo(file))) {
+            temp.delete();
+            return;
+        }
+        if (this.diskBytes.addAndGet(file.length() - oldLength) > this.maxDiskBytes)
+            this.trimDisk();
+    }
+
+    /**
+     * 按最后修改时间从旧到新删除磁盘缓存，直到总大小不超过上限
+     */
+    private synchronized void trimDisk() {
+        File[] files = this.directory.listFiles();
+        if (files == null) return;
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File o1, File o2) {
+                return Long.compare(o1.lastModified(), o2.lastModified());
+            }
+        });
+        for (File file : files) {
+            if (this.diskBytes.get() <= this.maxDiskBytes) break;
+            long length = file.length();
+            if (file.delete()) this.diskBytes.addAndGet(-length);
+        }
+    }
+
+    /**
+     * 清空内存与磁盘缓存
+     */
+    public void clear() {
+        synchronized (this.memory) {
+            this.memory.clear();
+            this.memoryBytes = 0;
+        }
+        if (this.directory != null) {
+            File[] files = this.directory.listFiles();
+            if (files != null)
+                for (File file : files)
+                    file.delete();
+            this.diskBytes.set(0);
+        }
+    }
+
+    /**
+     * @return 直接使用新鲜缓存的次数
+     */
+    public long hits() {
+        return this.hits.get();
+    }
+
+    /**
+     * @return 无可用缓存而完整请求的次数
+     */
+    public long misses() {
+        return this.misses.get();
+    }
+
+    /**
+     * @return 服务器返回304而复用缓存正文的次数
+     */
+    public long revalidations() {
+        return this.revalidations.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("HttpResponseCache[hits=%d, misses=%d, revalidations=%d, memoryBytes=%d, diskBytes=%d]",
+                hits(), misses(), revalidations(), this.memoryBytes, this.diskBytes.get());
+    }
+}
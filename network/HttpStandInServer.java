@@ -0,0 +1,308 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * 本地的HTTP服务器替身，用于可重复地测量HttpRequester与Spider的吞吐，不依赖外部网络。<br/>
+ * 基于JDK自带的HttpServer，只监听回环地址。可以配置延迟、正文大小、gzip、chunked传输、
+ * 按权重随机的响应代码与Range请求（含If-Range，ETag由正文大小与version决定）；每个请求也可以用查询参数覆盖默认值，例如
+ * <pre>
+ * /any?latency=20&amp;size=65536&amp;gzip=1&amp;chunked=1&amp;status=503&amp;maxage=60
+ * </pre>
+ * 正文内容是确定的，偏移i处的字节为content(i, 1)，便于校验Range与解压的结果。
+ */
+public class HttpStandInServer implements Closeable {
+    private static final byte[] PATTERN = ("The quick brown fox jumps over the lazy dog. "
+            + "Pack my box with five dozen liquor jugs. 0123456789\n").getBytes(StandardCharsets.US_ASCII);
+    private static final int CHUNK_SIZE = 8192;
+
+    static {
+        // HttpServer默认不关闭Nagle算法，响应头与正文分两次写出时遇到客户端的延迟ACK，每个请求多等约40毫秒。
+        // 只在HttpServer的配置类加载前设置才有效
+        if (System.getProperty("sun.net.httpserver.nodelay") == null)
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final Map<Integer, byte[]> gzipped;
+    private final LongAdder requests;
+    private final LongAdder bytesSent;
+    private volatile long latency;
+    private volatile int bodySize;
+    private volatile boolean gzip;
+    private volatile boolean chunked;
+    private volatile int version;
+    private volatile int maxAge;
+    private volatile int[] statuses;
+    private volatile double[] weights; // 累积权重
+
+    /**
+     * 在回环地址的随机端口上监听，调用start后开始服务
+     */
+    public HttpStandInServer() throws IOException {
+        this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 1024);
+        final AtomicInteger threads = new AtomicInteger();
+        this.executor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "HttpStandInServer-" + threads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.server.setExecutor(this.executor);
+        this.server.createContext("/", this::handle);
+        this.gzipped = new ConcurrentHashMap<Integer, byte[]>();
+        this.requests = new LongAdder();
+        this.bytesSent = new LongAdder();
+        this.latency = 0;
+        this.bodySize = 1024;
+        this.maxAge = -1;
+        this.statuses = new int[]{200};
+        this.weights = new double[]{1};
+    }
+
+    public HttpStandInServer start() {
+        this.server.start();
+        return this;
+    }
+
+    /**
+     * @param latency 每个请求在响应前等待的时间，毫秒
+     */
+    public HttpStandInServer latency(long latency) {
+        this.latency = latency;
+        return this;
+    }
+
+    /**
+     * @param bodySize 200响应的正文字节数
+     */
+    public HttpStandInServer bodySize(int bodySize) {
+        this.bodySize = bodySize;
+        return this;
+    }
+
+    /**
+     * @param gzip 请求带Accept-Encoding: gzip时压缩正文，压缩结果按正文大小缓存，不占用测量时的CPU
+     */
+    public HttpStandInServer gzip(boolean gzip) {
+        this.gzip = gzip;
+        return this;
+    }
+
+    /**
+     * @param chunked 使用chunked传输编码，不发送Content-Length
+     */
+    public HttpStandInServer chunked(boolean chunked) {
+        this.chunked = chunked;
+        return this;
+    }
+
+    /**
+     * @param maxAge 200响应的Cache-Control: max-age，秒，-1则不发送Cache-Control
+     */
+    public HttpStandInServer maxAge(int maxAge) {
+        this.maxAge = maxAge;
+        return this;
+    }
+
+    /**
+     * @param version 资源的版本，改变后ETag随之改变，用于模拟资源被修改，If-Range不再匹配
+     */
+    public HttpStandInServer version(int version) {
+        this.version = version;
+        return this;
+    }
+
+    /**
+     * 加入一种响应代码，按权重随机选择，初始只有权重为1的200
+     *
+     * @param status 响应代码
+     * @param weight 权重
+     */
+    public synchronized HttpStandInServer status(int status, double weight) {
+        int[] statuses = Arrays.copyOf(this.statuses, this.statuses.length + 1);
+        double[] weights = Arrays.copyOf(this.weights, this.weights.length + 1);
+        statuses[statuses.length - 1] = status;
+        weights[weights.length - 1] = weights[weights.length - 2] + weight;
+        this.statuses = statuses;
+        this.weights = weights;
+        return this;
+    }
+
+    private int nextStatus() {
+        int[] statuses = this.statuses;
+        double[] weights = this.weights;
+        double random = ThreadLocalRandom.current().nextDouble(weights[weights.length - 1]);
+        for (int i = 0; i < weights.length; i++)
+            if (random < weights[i]) return statuses[i];
+        return statuses[statuses.length - 1];
+    }
+
+    /**
+     * @return 正文中[offset, offset + length)的内容
+     */
+    public static byte[] content(long offset, int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++)
+            bytes[i] = PATTERN[(int) ((offset + i) % PATTERN.length)];
+        return bytes;
+    }
+
+    private byte[] gzipped(int size) throws IOException {
+        byte[] bytes = this.gzipped.get(size);
+        if (bytes == null) {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream(size / 4 + 64);
+            try (GZIPOutputStream out = new GZIPOutputStream(buffer)) {
+                out.write(content(0, size));
+            }
+            bytes = buffer.toByteArray();
+            this.gzipped.put(size, bytes);
+        }
+        return bytes;
+    }
+
+    private static String param(Map<String, List<String>> query, String key) {
+        List<String> values = query.get(key);
+        return values == null ? null : values.get(0);
+    }
+
+    private static boolean flag(String value, boolean defaultValue) {
+        return value == null ? defaultValue : value.equals("1") || value.equalsIgnoreCase("true");
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        this.requests.increment();
+        try {
+            exchange.getRequestBody().transferTo(OutputStream.nullOutputStream());
+            String rawQuery = exchange.getRequestURI().getRawQuery();
+            Map<String, List<String>> query = QueryString.decodeToMap(rawQuery == null ? "" : rawQuery);
+            String value;
+            long latency = (value = param(query, "latency")) == null ? this.latency : Long.parseLong(value);
+            int size = (value = param(query, "size")) == null ? this.bodySize : Integer.parseInt(value);
+            int status = (value = param(query, "status")) == null ? this.nextStatus() : Integer.parseInt(value);
+            boolean chunked = flag(param(query, "chunked"), this.chunked);
+            int maxAge = (value = param(query, "maxage")) == null ? this.maxAge : Integer.parseInt(value);
+            String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+            boolean gzip = flag(param(query, "gzip"), this.gzip) && acceptEncoding != null && acceptEncoding.contains("gzip");
+            if (latency > 0) TimeUnit.MILLISECONDS.sleep(latency);
+
+            byte[] body;
+            String etag = "\"" + size + "-" + this.version + (gzip ? "-gzip" : "") + "\"";
+            String range = exchange.getRequestHeaders().getFirst("Range");
+            String ifRange = exchange.getRequestHeaders().getFirst("If-Range");
+            if (ifRange != null && !ifRange.equals(etag)) range = null; // 资源已改变，返回完整正文
+            if (status != 200) {
+                body = ("status " + status + "\n").getBytes(StandardCharsets.US_ASCII);
+            } else if (range != null && !gzip) {
+                long[] bounds = parseRange(range, size);
+                if (bounds == null) {
+                    status = 416;
+                    exchange.getResponseHeaders().set("Content-Range", "bytes */" + size);
+                    body = new byte[0];
+                } else {
+                    status = 206;
+                    exchange.getResponseHeaders().set("Content-Range", "bytes " + bounds[0] + "-" + bounds[1] + "/" + size);
+                    body = content(bounds[0], (int) (bounds[1] - bounds[0] + 1));
+                }
+            } else if (gzip) {
+                exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+                body = this.gzipped(size);
+            } else {
+                body = content(0, size);
+            }
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=us-ascii");
+            exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+            if (status == 200 || status == 206) exchange.getResponseHeaders().set("ETag", etag);
+            if (status == 200 && maxAge >= 0) exchange.getResponseHeaders().set("Cache-Control", "max-age=" + maxAge);
+
+            // HttpServer中0表示chunked，-1表示没有正文
+            if (exchange.getRequestMethod().equals("HEAD") && !chunked)
+                exchange.getResponseHeaders().set("Content-Length", String.valueOf(body.length)); // 供分段下载探测长度
+            if (exchange.getRequestMethod().equals("HEAD") || body.length == 0) {
+                exchange.sendResponseHeaders(status, -1);
+                return;
+            }
+            exchange.sendResponseHeaders(status, chunked ? 0 : body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                for (int offset = 0; offset < body.length; offset += CHUNK_SIZE)
+                    out.write(body, offset, Math.min(CHUNK_SIZE, body.length - offset));
+            }
+            this.bytesSent.add(body.length);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            exchange.sendResponseHeaders(400, -1);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * 只支持单个范围：bytes=a-b、bytes=a-、bytes=-n
+     *
+     * @return [起始, 结束]，都包含；范围不可满足时返回null
+     */
+    static long[] parseRange(String range, long size) {
+        if (!range.startsWith("bytes=") || range.indexOf(',') != -1) return null;
+        String spec = range.substring(6).trim();
+        int dash = spec.indexOf('-');
+        if (dash == -1) return null;
+        long start, end;
+        if (dash == 0) {
+            long suffix = Long.parseLong(spec.substring(1));
+            if (suffix <= 0) return null;
+            start = Math.max(0, size - suffix);
+            end = size - 1;
+        } else {
+            start = Long.parseLong(spec.substring(0, dash));
+            end = dash == spec.length() - 1 ? size - 1 : Math.min(Long.parseLong(spec.substring(dash + 1)), size - 1);
+        }
+        return start < size && start <= end ? new long[]{start, end} : null;
+    }
+
+    public int port() {
+        return this.server.getAddress().getPort();
+    }
+
+    /**
+     * @param pathAndQuery 例如"/page?size=100"
+     */
+    public URL url(String pathAndQuery) throws IOException {
+        return new URL("http://127.0.0.1:" + this.port() + pathAndQuery);
+    }
+
+    public long requests() {
+        return this.requests.sum();
+    }
+
+    /**
+     * @return 发送的正文字节数（压缩后）
+     */
+    public long bytesSent() {
+        return this.bytesSent.sum();
+    }
+
+    @Override
+    public void close() {
+        this.server.stop(0);
+        this.executor.shutdownNow();
+    }
+}
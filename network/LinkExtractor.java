@@ -0,0 +1,317 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 流式HTML链接提取：单遍扫描字符流，用状态机识别标签与属性，取出href与src属性，
+ * 按&lt;base href&gt;或页面URL解析并规范化。<br/>
+ * 只缓冲当前的标签名、属性名与属性值，内存占用与页面大小无关；
+ * 跳过注释与script/style的内容。非线程安全，每个线程使用自己的实例。
+ */
+public class LinkExtractor {
+    public interface LinkHandler {
+        /**
+         * @param tag       小写的标签名
+         * @param attribute 小写的属性名，href或src
+         * @param url       解析并规范化后的绝对URL
+         */
+        void onLink(String tag, String attribute, String url);
+    }
+
+    private enum State {
+        TEXT, TAG_OPEN, TAG_NAME, END_TAG, BEFORE_ATTRIBUTE, ATTRIBUTE_NAME, AFTER_ATTRIBUTE_NAME,
+        BEFORE_VALUE, QUOTED_VALUE, UNQUOTED_VALUE, MARKUP, COMMENT, RAW_TEXT
+    }
+
+    private static final int MAX_NAME = 32;
+    private static final int MAX_VALUE = 8192; // 超长的属性值不是链接，丢弃
+
+    private final StringBuilder tag;
+    private final StringBuilder attribute;
+    private final StringBuilder value;
+    private final char[] buffer;
+
+    public LinkExtractor() {
+        this.tag = new StringBuilder(MAX_NAME);
+        this.attribute = new StringBuilder(MAX_NAME);
+        this.value = new StringBuilder(256);
+        this.buffer = new char[8192];
+    }
+
+    /**
+     * 从HTML字符流中提取链接
+     *
+     * @param reader  HTML字符流，不会关闭
+     * @param base    页面的URL，页面中的&lt;base href&gt;优先
+     * @param handler 处理每个链接
+     * @return 提取到的链接数
+     * @throws IOException
+     */
+    public int extract(Reader reader, URI base, LinkHandler handler) throws IOException {
+        State state = State.TEXT;
+        char quote = 0;
+        boolean baseSeen = false;
+        boolean overflow = false;
+        String rawTag = null; // script或style，其内容不解析
+        int match = 0; // COMMENT中已匹配的"-"数，RAW_TEXT中已匹配的"</tag"字符数
+        int count = 0;
+        this.tag.setLength(0);
+
+        int n;
+        while ((n = reader.read(this.buffer)) != -1) {
+            for (int i = 0; i < n; i++) {
+                char c = this.buffer[i];
+                switch (state) {
+                    case TEXT:
+                        if (c == '<') state = State.TAG_OPEN;
+                        break;
+                    case TAG_OPEN:
+                        if (isLetter(c)) {
+                            this.tag.setLength(0);
+                            this.tag.append(Character.toLowerCase(c));
+                            state = State.TAG_NAME;
+                        } else if (c == '/') {
+                            state = State.END_TAG;
+                        } else if (c == '!') {
+                            match = 0;
+                            state = State.MARKUP;
+                        } else if (c != '<') {
+                            state = State.TEXT;
+                        }
+                        break;
+                    case TAG_NAME:
+                        if (c == '>') {
+                            state = this.endOfTag();
+                        } else if (isSpace(c) || c == '/') {
+                            state = State.BEFORE_ATTRIBUTE;
+                        } else if (this.tag.length() < MAX_NAME) {
+                            this.tag.append(Character.toLowerCase(c));
+                        }
+                        break;
+                    case END_TAG:
+                        if (c == '>') state = State.TEXT;
+                        break;
+                    case MARKUP: // <!-- 注释或<!DOCTYPE
+                        if (c == '-' && match < 2) {
+                            if (++match == 2) {
+                                match = 0;
+                                state = State.COMMENT;
+                            }
+                        } else {
+                            if (c == '>') state = State.TEXT;
+                            match = 2; // 不是注释
+                        }
+                        break;
+                    case COMMENT:
+                        if (c == '-') match++;
+                        else if (c == '>' && match >= 2) state = State.TEXT;
+                        else match = 0;
+                        break;
+                    case RAW_TEXT:
+                        if (match < 2) {
+                            match = c == '<' ? 1 : (match == 1 && c == '/') ? 2 : 0;
+                        } else if (match - 2 < rawTag.length()) {
+                            match = Character.toLowerCase(c) == rawTag.charAt(match - 2) ? match + 1 : (c == '<' ? 1 : 0);
+                        } else if (c == '>' || isSpace(c)) {
+                            state = c == '>' ? State.TEXT : State.END_TAG;
+                        } else {
+                            match = c == '<' ? 1 : 0;
+                        }
+                        break;
+                    case BEFORE_ATTRIBUTE:
+                        if (c == '>') {
+                            state = this.endOfTag();
+                        } else if (!isSpace(c) && c != '/') {
+                            this.attribute.setLength(0);
+                            this.attribute.append(Character.toLowerCase(c));
+                            state = State.ATTRIBUTE_NAME;
+                        }
+                        break;
+                    case ATTRIBUTE_NAME:
+                        if (c == '=') {
+                            state = State.BEFORE_VALUE;
+                        } else if (c == '>') {
+                            state = this.endOfTag();
+                        } else if (isSpace(c)) {
+                            state = State.AFTER_ATTRIBUTE_NAME;
+                        } else if (c == '/') {
+                            state = State.BEFORE_ATTRIBUTE;
+                        } else if (this.attribute.length() < MAX_NAME) {
+                            this.attribute.append(Character.toLowerCase(c));
+                        }
+                        break;
+                    case AFTER_ATTRIBUTE_NAME:
+                        if (c == '=') {
+                            state = State.BEFORE_VALUE;
+                        } else if (c == '>') {
+                            state = this.endOfTag();
+                        } else if (!isSpace(c)) {
+                            this.attribute.setLength(0);
+                            if (c != '/') this.attribute.append(Character.toLowerCase(c));
+                            state = c == '/' ? State.BEFORE_ATTRIBUTE : State.ATTRIBUTE_NAME;
+                        }
+                        break;
+                    case BEFORE_VALUE:
+                        if (isSpace(c)) break;
+                        if (c == '>') {
+                            state = this.endOfTag();
+                            break;
+                        }
+                        this.value.setLength(0);
+                        overflow = false;
+                        if (c == '"' || c == '\'') {
+                            quote = c;
+                            state = State.QUOTED_VALUE;
+                        } else {
+                            this.value.append(c);
+                            state = State.UNQUOTED_VALUE;
+                        }
+                        break;
+                    case QUOTED_VALUE:
+                    case UNQUOTED_VALUE:
+                        boolean end = state == State.QUOTED_VALUE ? c == quote : (isSpace(c) || c == '>');
+                        if (!end) {
+                            if (this.value.length() < MAX_VALUE) this.value.append(c);
+                            else overflow = true;
+                            break;
+                        }
+                        if (!overflow && this.isLinkAttribute()) {
+                            String href = decodeEntities(this.value);
+                            String tagName = this.tag.toString();
+                            if (!baseSeen && tagName.equals("base") && this.attribute.toString().equals("href")) {
+                                baseSeen = true; // 只有第一个base有效
+                                String resolved = CrawlFrontier.normalize(base, href);
+                                if (resolved != null) {
+                                    try {
+                                        base = new URI(resolved);
+                                    } catch (URISyntaxException e) {
+                                        // 保留原base
+                                    }
+                                }
+                            } else {
+                                String url = CrawlFrontier.normalize(base, href);
+                                if (url != null) {
+                                    handler.onLink(tagName, this.attribute.toString(), url);
+                                    count++;
+                                }
+                            }
+                        }
+                        state = c == '>' ? this.endOfTag() : State.BEFORE_ATTRIBUTE;
+                        break;
+                }
+                if (state == State.RAW_TEXT && rawTag == null) {
+                    rawTag = this.tag.toString();
+                    match = 0;
+                } else if (state != State.RAW_TEXT) {
+                    rawTag = null;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * 从响应正文中提取链接，按批提交到frontier
+     *
+     * @param stream    响应正文，不会关闭
+     * @param charset   正文的字符集
+     * @param base      页面的URL
+     * @param frontier  接收链接的frontier
+     * @param priority  链接的优先级
+     * @param batchSize 每批提交的链接数
+     * @return 新加入frontier的链接数
+     * @throws IOException
+     */
+    public int extract(InputStream stream, Charset charset, URI base, CrawlFrontier frontier, int priority, int batchSize) throws IOException {
+        final List<String> batch = new ArrayList<String>(batchSize);
+        final int[] added = new int[1];
+        this.extract(new InputStreamReader(stream, charset), base, (tag, attribute, url) -> {
+            batch.add(url);
+            if (batch.size() >= batchSize) {
+                added[0] += frontier.offerAll(batch, priority);
+                batch.clear();
+            }
+        });
+        if (!batch.isEmpty())
+            added[0] += frontier.offerAll(batch, priority);
+        return added[0];
+    }
+
+    private State endOfTag() {
+        String name = this.tag.toString();
+        return name.equals("script") || name.equals("style") ? State.RAW_TEXT : State.TEXT;
+    }
+
+    private boolean isLinkAttribute() {
+        int length = this.attribute.length();
+        return (length == 4 && this.attribute.indexOf("href") == 0) || (length == 3 && this.attribute.indexOf("src") == 0);
+    }
+
+    private static boolean isLetter(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+    }
+
+    private static boolean isSpace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f';
+    }
+
+    /**
+     * 解码属性值中常见的字符引用，&amp;amp; &amp;lt; &amp;gt; &amp;quot; &amp;apos;与数字引用
+     */
+    static String decodeEntities(CharSequence value) {
+        int amp = -1;
+        for (int i = 0; i < value.length(); i++) {
+            if (value.charAt(i) == '&') {
+                amp = i;
+                break;
+            }
+        }
+        if (amp == -1) return value.toString().trim();
+
+        StringBuilder result = new StringBuilder(value.length());
+        result.append(value, 0, amp);
+        for (int i = amp; i < value.length(); i++) {
+            char c = value.charAt(i);
+            int semicolon = c == '&' ? indexOf(value, ';', i + 1, i + 10) : -1;
+            if (semicolon == -1) {
+                result.append(c);
+                continue;
+            }
+            String entity = value.subSequence(i + 1, semicolon).toString();
+            int codePoint = -1;
+            if (entity.equals("amp")) codePoint = '&';
+            else if (entity.equals("lt")) codePoint = '<';
+            else if (entity.equals("gt")) codePoint = '>';
+            else if (entity.equals("quot")) codePoint = '"';
+            else if (entity.equals("apos")) codePoint = '\'';
+            else if (entity.startsWith("#")) {
+                try {
+                    codePoint = entity.length() > 1 && (entity.charAt(1) == 'x' || entity.charAt(1) == 'X')
+                            ? Integer.parseInt(entity.substring(2), 16) : Integer.parseInt(entity.substring(1));
+                } catch (NumberFormatException e) {
+                    codePoint = -1;
+                }
+            }
+            if (codePoint < 0 || !Character.isValidCodePoint(codePoint)) {
+                result.append(c);
+            } else {
+                result.appendCodePoint(codePoint);
+                i = semicolon;
+            }
+        }
+        return result.toString().trim();
+    }
+
+    private static int indexOf(CharSequence value, char c, int from, int to) {
+        for (int i = from; i < Math.min(to, value.length()); i++) {
+            if (value.charAt(i) == c) return i;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,206 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 固定并发的压测工具：concurrency个线程各自循环发出请求（闭环），直到完成指定的请求数，
+ * 统计吞吐与延迟的百分位。配合HttpStandInServer可以在本机可重复地比较HttpRequester与Spider的设置。
+ * <pre>
+ * java -Dhttp.maxConnections=32 LoadGenerator 32 20000 5 16384 gzip
+ * </pre>
+ * HttpRequester默认不限制每个路由的并发请求数（RouteLimiter需要显式设置），32个线程即最多32个并发连接；
+ * JDK默认每个路由只保留5个空闲的keep-alive连接，并发更高时用http.maxConnections放宽，否则多出的连接每次重新建立。
+ */
+public class LoadGenerator {
+    /**
+     * 一次请求
+     */
+    public interface Request {
+        /**
+         * @return 响应代码
+         * @throws IOException 请求失败，记为错误
+         */
+        int call() throws IOException;
+    }
+
+    /**
+     * 一次压测的结果
+     */
+    public static final class Result {
+        private final int concurrency;
+        private final long requests;
+        private final long errors;
+        private final long elapsedNanos;
+        private final HttpMetrics.Histogram latency;
+        private final Map<Integer, Long> statuses;
+
+        private Result(int concurrency, long requests, long errors, long elapsedNanos, HttpMetrics.Histogram latency, Map<Integer, Long> statuses) {
+            this.concurrency = concurrency;
+            this.requests = requests;
+            this.errors = errors;
+            this.elapsedNanos = elapsedNanos;
+            this.latency = latency;
+            this.statuses = statuses;
+        }
+
+        public long requests() {
+            return this.requests;
+        }
+
+        public long errors() {
+            return this.errors;
+        }
+
+        public long elapsedNanos() {
+            return this.elapsedNanos;
+        }
+
+        public double requestsPerSecond() {
+            return this.elapsedNanos == 0 ? 0 : this.requests * 1e9 / this.elapsedNanos;
+        }
+
+        /**
+         * @return 延迟的百分位，微秒，包括失败的请求
+         */
+        public long percentile(double percentile) {
+            return this.latency.percentile(percentile);
+        }
+
+        /**
+         * @return 响应代码 -> 次数
+         */
+        public Map<Integer, Long> statuses() {
+            return this.statuses;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("concurrency=%d requests=%d errors=%d %.1f req/s latency p50=%dus p90=%dus p99=%dus p99.9=%dus max=%dus status=%s",
+                    this.concurrency, this.requests, this.errors, this.requestsPerSecond(), this.percentile(50), this.percentile(90),
+                    this.percentile(99), this.percentile(99.9), this.latency.max(), this.statuses);
+        }
+    }
+
+    private LoadGenerator() {
+    }
+
+    /**
+     * 以固定并发执行请求，直到完成指定的请求数
+     *
+     * @param concurrency 并发数，即请求线程数
+     * @param requests    总请求数
+     * @param request     请求，会被多个线程同时调用
+     * @return 吞吐与延迟
+     * @throws InterruptedException 等待时被中断
+     */
+    public static Result run(int concurrency, int requests, final Request request) throws InterruptedException {
+        final HttpMetrics.Histogram latency = new HttpMetrics.Histogram();
+        final ConcurrentMap<Integer, LongAdder> statuses = new ConcurrentHashMap<Integer, LongAdder>();
+        final LongAdder errors = new LongAdder();
+        final AtomicInteger next = new AtomicInteger();
+        final int total = requests;
+        final CountDownLatch done = new CountDownLatch(concurrency);
+        ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+        long start = System.nanoTime();
+        try {
+            for (int i = 0; i < concurrency; i++) {
+                executor.execute(() -> {
+                    try {
+                        while (next.getAndIncrement() < total) {
+                            long begin = System.nanoTime();
+                            try {
+                                int status = request.call();
+                                statuses.computeIfAbsent(status, key -> new LongAdder()).increment();
+                            } catch (IOException | RuntimeException e) {
+                                errors.increment();
+                            }
+                            latency.record((System.nanoTime() - begin) / 1000);
+                        }
+                    } finally {
+                        done.countDown();
+                    }
+                });
+            }
+            done.await();
+        } finally {
+            executor.shutdownNow();
+        }
+        long elapsed = System.nanoTime() - start;
+        Map<Integer, Long> counts = new TreeMap<Integer, Long>();
+        for (Map.Entry<Integer, LongAdder> entry : statuses.entrySet())
+            counts.put(entry.getKey(), entry.getValue().sum());
+        return new Result(concurrency, total, errors.sum(), elapsed, latency, Collections.unmodifiableMap(counts));
+    }
+
+    /**
+     * 用HttpRequester发出GET请求并读完正文
+     */
+    public static Request httpRequester(final HttpRequester requester, final URL url) {
+        return () -> {
+            HttpRequester.HttpResponse response = requester.doRequest(url, "GET", null, null, 10000, 10000, null, true);
+            InputStream body = response.getResponse();
+            if (body != null) {
+                try {
+                    body.transferTo(OutputStream.nullOutputStream());
+                } finally {
+                    body.close();
+                }
+            }
+            return response.getResponseCode();
+        };
+    }
+
+    /**
+     * 用Spider.batch在调用线程上发出GET请求并读完正文，多个线程共享同一个Spider
+     */
+    public static Request spider(final Spider spider, URL url) {
+        final Spider.RequestSpec spec = Spider.RequestSpec.of(url, "GET", (responseCode, responseHeaders, responseStream) -> {
+            if (responseStream != null) responseStream.transferTo(OutputStream.nullOutputStream());
+            return responseCode;
+        });
+        final List<Spider.RequestSpec> specs = Collections.singletonList(spec);
+        return () -> {
+            Spider.BatchResult result = spider.batch(specs, 1);
+            if (result.error(0) != null) throw result.error(0);
+            return result.value(0);
+        };
+    }
+
+    /**
+     * 启动本地服务器替身，依次压测HttpRequester与Spider
+     *
+     * @param args [并发数] [请求数] [服务器延迟毫秒] [正文字节数] [gzip|chunked]...
+     */
+    public static void main(String[] args) throws Exception {
+        int concurrency = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+        int requests = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+        long latency = args.length > 2 ? Long.parseLong(args[2]) : 0;
+        int bodySize = args.length > 3 ? Integer.parseInt(args[3]) : 4096;
+        try (HttpStandInServer server = new HttpStandInServer().latency(latency).bodySize(bodySize)) {
+            for (int i = 4; i < args.length; i++) {
+                if (args[i].equals("gzip")) server.gzip(true);
+                else if (args[i].equals("chunked")) server.chunked(true);
+            }
+            server.start();
+            URL url = server.url("/load");
+            HttpRequester requester = HttpRequester.newInstance();
+            run(concurrency, Math.max(1, requests / 10), httpRequester(requester, url)); // 预热
+            System.out.println("HttpRequester " + run(concurrency, requests, httpRequester(requester, url)));
+            Spider spider = Spider.newHost(url);
+            run(concurrency, Math.max(1, requests / 10), spider(spider, url));
+            System.out.println("Spider        " + run(concurrency, requests, spider(spider, url)));
+        }
+    }
+}
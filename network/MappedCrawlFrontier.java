@@ -0,0 +1,331 @@
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 持久化在内存映射文件中的frontier，重启后从最近的检查点恢复。<br/>
+ * 目录结构：<br/>
+ * frontier.meta 检查点，记录读写位置，原子替换写入；<br/>
+ * seen.bloom 映射到内存的布隆过滤器位数组；<br/>
+ * queue-N.seg 只追加的URL记录段文件，全部读完的段会被删除。<br/>
+ * 只有一个有限大小的读取窗口在堆内，窗口内按主机轮转与优先级取出；
+ * 恢复时从检查点中最早未取出的记录开始，检查点之后取出的URL可能会被再次取出（至少一次）。<br/>
+ * 检查点之后追加的记录只在进程崩溃后可以找回（页缓存仍由操作系统写回）；
+ * 操作系统崩溃或断电时脏页的写回顺序不确定，只有最近一次检查点之前的记录与布隆过滤器是可靠的。
+ */
+public class MappedCrawlFrontier implements CrawlFrontier, Closeable {
+    private static final int MAGIC = 0x46524E54; // FRNT
+    private static final int VERSION = 2; // 2: 布隆过滤器改用64位的h1、h2计算位置
+    private static final int RECORD_HEADER = 8; // [int length][int priority]
+    private static final int SEGMENT_END = -1;
+    private static final String META = "frontier.meta";
+    private static final String BLOOM = "seen.bloom";
+
+    private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "MappedCrawlFrontier-checkpoint");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Path directory;
+    private final int segmentSize;
+    private final int windowSize;
+    private final MappedByteBuffer bloomBuffer;
+    private final BloomFilter seen; // 位数组是bloomBuffer的视图
+    private final Map<Integer, MappedByteBuffer> segments;
+    private final HostQueues window;
+    private final TreeMap<Long, long[]> windowPositions; // 窗口内记录的序号 -> {段号, 偏移}
+
+    private long writeIndex;
+    private int writeSegment;
+    private int writeOffset;
+    private long readIndex;
+    private int readSegment;
+    private int readOffset;
+    private ScheduledFuture<?> checkpointTask;
+    private boolean closed;
+
+    private MappedCrawlFrontier(Path directory, int segmentSize, int windowSize, long bloomBits, int hashCount, long insertions) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.windowSize = windowSize;
+        try (FileChannel channel = FileChannel.open(directory.resolve(BLOOM), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            this.bloomBuffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, bloomBits / 8);
+        }
+        this.seen = new BloomFilter(this.bloomBuffer.asLongBuffer(), hashCount, insertions);
+        this.segments = new HashMap<Integer, MappedByteBuffer>();
+        this.window = new HostQueues();
+        this.windowPositions = new TreeMap<Long, long[]>();
+        this.closed = false;
+    }
+
+    /**
+     * 打开或创建frontier。目录中已有检查点时，布隆过滤器的参数以检查点为准。
+     *
+     * @param directory     存储目录
+     * @param expectedUrls  预计见到的URL数
+     * @param fpp           去重的期望误判率
+     * @param maxBloomBytes 布隆过滤器位数组的大小上限，不超过2GB
+     * @return frontier，使用完毕后需要close
+     * @throws IOException
+     */
+    public static MappedCrawlFrontier open(Path directory, long expectedUrls, double fpp, long maxBloomBytes) throws IOException {
+        return open(directory, expectedUrls, fpp, maxBloomBytes, 64 << 20, 10000);
+    }
+
+    /**
+     * @param segmentSize 段文件大小，单条URL记录不能超过它
+     * @param windowSize  堆内读取窗口的记录数
+     */
+    public static MappedCrawlFrontier open(Path directory, long expectedUrls, double fpp, long maxBloomBytes, int segmentSize, int windowSize) throws IOException {
+        Files.createDirectories(directory);
+        Path meta = directory.resolve(META);
+        MappedCrawlFrontier frontier;
+        if (Files.exists(meta)) {
+            try (DataInputStream in = new DataInputStream(Files.newInputStream(meta))) {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION)
+                    throw new IOException("Not a frontier checkpoint: " + meta);
+                // 参数按从左到右的顺序读取：段大小、位数、散列函数个数、插入数
+                frontier = new MappedCrawlFrontier(directory, in.readInt(), windowSize, in.readLong(), in.readInt(), in.readLong());
+                frontier.writeIndex = in.readLong();
+                frontier.writeSegment = in.readInt();
+                frontier.writeOffset = in.readInt();
+                frontier.readIndex = in.readLong();
+                frontier.readSegment = in.readInt();
+                frontier.readOffset = in.readInt();
+            }
+            frontier.recover();
+        } else {
+            if (expectedUrls <= 0 || fpp <= 0 || fpp >= 1 || maxBloomBytes < 8)
+                throw new IllegalArgumentException("invalid bloom filter parameters");
+            // 按long对齐，单个映射不超过2GB
+            long bytes = Math.min((BloomFilter.optimalBitCount(expectedUrls, fpp) + 63) >>> 6 << 3, Math.min(maxBloomBytes, Integer.MAX_VALUE) & ~7L);
+            long bits = bytes * 8;
+            frontier = new MappedCrawlFrontier(directory, segmentSize, windowSize, bits, BloomFilter.optimalHashCount(expectedUrls, bits), 0);
+            frontier.checkpoint();
+        }
+        return frontier;
+    }
+
+    private Path segmentPath(int segment) {
+        return this.directory.resolve(String.format("queue-%08d.seg", segment));
+    }
+
+    private MappedByteBuffer segment(int segment) throws IOException {
+        MappedByteBuffer buffer = this.segments.get(segment);
+        if (buffer == null) {
+            try (FileChannel channel = FileChannel.open(this.segmentPath(segment), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, this.segmentSize);
+            }
+            this.segments.put(segment, buffer);
+        }
+        return buffer;
+    }
+
+    /**
+     * 检查点之后追加的记录仍在段文件中，从检查点的写位置向后扫描找回
+     */
+    private void recover() throws IOException {
+        while (true) {
+            MappedByteBuffer buffer = this.segment(this.writeSegment);
+            int length = this.writeOffset + 4 <= this.segmentSize ? buffer.getInt(this.writeOffset) : SEGMENT_END;
+            if (length == SEGMENT_END) {
+                if (!Files.exists(this.segmentPath(this.writeSegment + 1))) break;
+                this.writeSegment++;
+                this.writeOffset = 0;
+            } else if (length > 0 && this.writeOffset + RECORD_HEADER + length <= this.segmentSize) {
+                this.writeOffset += RECORD_HEADER + length;
+                this.writeIndex++;
+            } else
+                break; // 未写完的记录，长度最后写入，进程崩溃时为0
+        }
+    }
+
+    @Override
+    public synchronized boolean offer(String url, int priority) {
+        String normalized = CrawlFrontier.normalize(url);
+        if (normalized == null) return false;
+        byte[] bytes = normalized.getBytes(StandardCharsets.UTF_8);
+        if (RECORD_HEADER + bytes.length + 4 > this.segmentSize)
+            throw new IllegalArgumentException("URL longer than segment size: " + normalized);
+        if (!this.seen.put(normalized)) return false;
+
+        try {
+            if (this.writeOffset + RECORD_HEADER + bytes.length + 4 > this.segmentSize) {
+                this.segment(this.writeSegment + 1);
+                this.segment(this.writeSegment).putInt(this.writeOffset, SEGMENT_END);
+                this.writeSegment++;
+                this.writeOffset = 0;
+            }
+            MappedByteBuffer buffer = this.segment(this.writeSegment);
+            ByteBuffer record = buffer.duplicate();
+            record.position(this.writeOffset + 4);
+            record.putInt(priority);
+            record.put(bytes);
+            // 最后写入长度，进程崩溃后记录要么完整要么长度为0；不保证落盘的顺序，见类注释
+            buffer.putInt(this.writeOffset, bytes.length);
+            this.writeOffset += RECORD_HEADER + bytes.length;
+            this.writeIndex++;
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot append to frontier " + this.directory, e);
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized int offerAll(Collection<String> urls, int priority) {
+        return CrawlFrontier.super.offerAll(urls, priority);
+    }
+
+    /**
+     * 窗口不足一半时从段文件中读入更多记录
+     */
+    private void fillWindow() throws IOException {
+        if (this.window.size() >= this.windowSize / 2) return;
+        while (this.window.size() < this.windowSize && this.readIndex < this.writeIndex) {
+            MappedByteBuffer buffer = this.segment(this.readSegment);
+            int length = buffer.getInt(this.readOffset);
+            if (length == SEGMENT_END) {
+                this.readSegment++;
+                this.readOffset = 0;
+                continue;
+            }
+            ByteBuffer record = buffer.duplicate();
+            record.position(this.readOffset + 4);
+            int priority = record.getInt();
+            byte[] bytes = new byte[length];
+            record.get(bytes);
+            this.window.add(new String(bytes, StandardCharsets.UTF_8), priority, this.readIndex);
+            this.windowPositions.put(this.readIndex, new long[]{this.readSegment, this.readOffset});
+            this.readOffset += RECORD_HEADER + length;
+            this.readIndex++;
+        }
+    }
+
+    @Override
+    public synchronized String poll() {
+        try {
+            this.fillWindow();
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot read frontier " + this.directory, e);
+        }
+        HostQueues.Item item = this.window.poll();
+        if (item == null) return null;
+        this.windowPositions.remove(item.sequence);
+        return item.url;
+    }
+
+    @Override
+    public synchronized int size() {
+        return (int) Math.min(Integer.MAX_VALUE, this.writeIndex - this.readIndex + this.window.size());
+    }
+
+    @Override
+    public synchronized boolean seen(String url) {
+        String normalized = CrawlFrontier.normalize(url);
+        return normalized != null && this.seen.mightContain(normalized);
+    }
+
+    /**
+     * 将段文件与布隆过滤器刷到磁盘，再原子替换检查点文件；删除已全部取出的段文件
+     *
+     * @throws IOException
+     */
+    public synchronized void checkpoint() throws IOException {
+        if (this.closed) return;
+        // 窗口中未取出的最早记录之前的内容都已取出
+        long committedIndex = this.readIndex;
+        int committedSegment = this.readSegment, committedOffset = this.readOffset;
+        if (!this.windowPositions.isEmpty()) {
+            Map.Entry<Long, long[]> first = this.windowPositions.firstEntry();
+            committedIndex = first.getKey();
+            committedSegment = (int) first.getValue()[0];
+            committedOffset = (int) first.getValue()[1];
+        }
+
+        for (MappedByteBuffer buffer : this.segments.values())
+            buffer.force();
+        this.bloomBuffer.force();
+
+        Path temp = this.directory.resolve(META + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            DataOutputStream out = new DataOutputStream(Channels.newOutputStream(channel));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(this.segmentSize);
+            out.writeLong(this.seen.bitCount());
+            out.writeInt(this.seen.hashCount());
+            out.writeLong(this.seen.insertions());
+            out.writeLong(this.writeIndex);
+            out.writeInt(this.writeSegment);
+            out.writeInt(this.writeOffset);
+            out.writeLong(committedIndex);
+            out.writeInt(committedSegment);
+            out.writeInt(committedOffset);
+            out.flush();
+            channel.force(true);
+        }
+        Files.move(temp, this.directory.resolve(META), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        for (Iterator<Map.Entry<Integer, MappedByteBuffer>> iterator = this.segments.entrySet().iterator(); iterator.hasNext(); ) {
+            int segment = iterator.next().getKey();
+            if (segment < committedSegment) {
+                iterator.remove();
+                Files.deleteIfExists(this.segmentPath(segment));
+            }
+        }
+    }
+
+    /**
+     * 定期执行检查点
+     *
+     * @param interval 间隔，毫秒
+     */
+    public synchronized void checkpointEvery(long interval) {
+        if (this.checkpointTask != null) this.checkpointTask.cancel(false);
+        this.checkpointTask = timer.scheduleWithFixedDelay(() -> {
+            try {
+                MappedCrawlFrontier.this.checkpoint();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return 布隆过滤器当前的理论误判率
+     */
+    public synchronized double expectedFpp() {
+        return this.seen.expectedFpp();
+    }
+
+    /**
+     * 执行最后一次检查点并停止定期检查点
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (this.checkpointTask != null) this.checkpointTask.cancel(false);
+        this.checkpoint();
+        this.closed = true;
+        this.segments.clear();
+    }
+}
@@ -0,0 +1,176 @@
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * application/x-www-form-urlencoded格式的查询字符串编解码，结果与URLEncoder/URLDecoder(UTF-8)一致。<br/>
+ * 单遍扫描，编码结果写入每个线程复用的字节缓冲区，不为每个键值创建中间字符串；
+ * 解码保留参数的顺序与重复的键。
+ */
+public final class QueryString {
+    private static final byte[] HEX = "0123456789ABCDEF".getBytes(StandardCharsets.US_ASCII);
+    private static final int MAX_RETAINED = 64 * 1024; // 超过则不保留在线程中
+    private static final boolean[] UNRESERVED = new boolean[128];
+
+    static {
+        for (char c = 'a'; c <= 'z'; c++) UNRESERVED[c] = true;
+        for (char c = 'A'; c <= 'Z'; c++) UNRESERVED[c] = true;
+        for (char c = '0'; c <= '9'; c++) UNRESERVED[c] = true;
+        UNRESERVED['.'] = UNRESERVED['-'] = UNRESERVED['*'] = UNRESERVED['_'] = true;
+    }
+
+    private static final ThreadLocal<byte[]> buffers = ThreadLocal.withInitial(() -> new byte[1024]);
+
+    private QueryString() {
+    }
+
+    /**
+     * 编码键值对，每个键值对后都带&amp;，与HttpRequester原有的格式一致
+     *
+     * @param args {"key1":"value1","key2":"value2"}，值为null时编码为空字符串
+     * @return key1=value1&amp;key2=value2&amp;
+     */
+    public static String encode(Map<String, String> args) {
+        return encode(args.entrySet());
+    }
+
+    /**
+     * 编码键值对，可以包含重复的键
+     *
+     * @param pairs 按顺序编码的键值对
+     * @return key1=value1&amp;key1=value2&amp;
+     */
+    public static String encode(Iterable<? extends Map.Entry<String, String>> pairs) {
+        byte[] buffer = buffers.get();
+        int length = 0;
+        for (Map.Entry<String, String> pair : pairs) {
+            String key = pair.getKey(), value = pair.getValue();
+            // 每个字符最多编码为4个UTF-8字节，即12个字符
+            int worst = ((key.length() + (value == null ? 0 : value.length())) * 12) + 2;
+            if (length + worst > buffer.length)
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + worst));
+            length = append(buffer, length, key);
+            buffer[length++] = '=';
+            if (value != null) length = append(buffer, length, value);
+            buffer[length++] = '&';
+        }
+        if (buffer.length <= MAX_RETAINED) buffers.set(buffer);
+        return new String(buffer, 0, length, StandardCharsets.ISO_8859_1);
+    }
+
+    private static int append(byte[] buffer, int length, String s) {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 128) {
+                if (UNRESERVED[c]) buffer[length++] = (byte) c;
+                else if (c == ' ') buffer[length++] = '+';
+                else length = percent(buffer, length, c);
+            } else if (c < 0x800) {
+                length = percent(buffer, length, 0xC0 | (c >> 6));
+                length = percent(buffer, length, 0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, s.charAt(++i));
+                length = percent(buffer, length, 0xF0 | (codePoint >> 18));
+                length = percent(buffer, length, 0x80 | ((codePoint >> 12) & 0x3F));
+                length = percent(buffer, length, 0x80 | ((codePoint >> 6) & 0x3F));
+                length = percent(buffer, length, 0x80 | (codePoint & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                length = percent(buffer, length, '?'); // 与String.getBytes对不成对代理的处理一致
+            } else {
+                length = percent(buffer, length, 0xE0 | (c >> 12));
+                length = percent(buffer, length, 0x80 | ((c >> 6) & 0x3F));
+                length = percent(buffer, length, 0x80 | (c & 0x3F));
+            }
+        }
+        return length;
+    }
+
+    private static int percent(byte[] buffer, int length, int b) {
+        buffer[length++] = '%';
+        buffer[length++] = HEX[(b >> 4) & 0xF];
+        buffer[length++] = HEX[b & 0xF];
+        return length;
+    }
+
+    /**
+     * 解码查询字符串，保留顺序与重复的键，没有=的参数值为空字符串，空的参数被忽略
+     *
+     * @param query key1=value1&amp;key1=value2，可以带开头的?
+     * @return 键值对
+     * @throws IllegalArgumentException %后不是两位16进制数
+     */
+    public static List<Map.Entry<String, String>> decode(String query) {
+        List<Map.Entry<String, String>> pairs = new ArrayList<Map.Entry<String, String>>();
+        int start = query.startsWith("?") ? 1 : 0;
+        int length = query.length();
+        while (start < length) {
+            int end = query.indexOf('&', start);
+            if (end == -1) end = length;
+            if (end > start) {
+                int equals = start;
+                while (equals < end && query.charAt(equals) != '=') equals++;
+                String key = decodeComponent(query, start, equals);
+                String value = equals < end ? decodeComponent(query, equals + 1, end) : "";
+                pairs.add(new AbstractMap.SimpleImmutableEntry<String, String>(key, value));
+            }
+            start = end + 1;
+        }
+        return pairs;
+    }
+
+    /**
+     * @return 键 -> 按出现顺序的全部值，键按第一次出现的顺序
+     */
+    public static Map<String, List<String>> decodeToMap(String query) {
+        Map<String, List<String>> map = new LinkedHashMap<String, List<String>>();
+        for (Map.Entry<String, String> pair : decode(query)) {
+            List<String> values = map.get(pair.getKey());
+            if (values == null) {
+                values = new ArrayList<String>(1);
+                map.put(pair.getKey(), values);
+            }
+            values.add(pair.getValue());
+        }
+        return map;
+    }
+
+    /**
+     * 解码query[start, end)，没有需要解码的字符时直接截取
+     */
+    static String decodeComponent(String query, int start, int end) {
+        int i = start;
+        while (i < end && query.charAt(i) != '%' && query.charAt(i) != '+') i++;
+        if (i == end) return query.substring(start, end);
+
+        byte[] buffer = buffers.get();
+        if (buffer.length < end - start) buffer = new byte[end - start];
+        StringBuilder result = null; // 只有出现非ASCII字符时才使用
+        int length = 0;
+        for (i = start; i < end; i++) {
+            char c = query.charAt(i);
+            if (c == '%') {
+                if (i + 2 >= end)
+                    throw new IllegalArgumentException("Incomplete escape at " + i + ": " + query);
+                int high = Character.digit(query.charAt(i + 1), 16), low = Character.digit(query.charAt(i + 2), 16);
+                if (high < 0 || low < 0)
+                    throw new IllegalArgumentException("Illegal escape at " + i + ": " + query);
+                buffer[length++] = (byte) ((high << 4) | low);
+                i += 2;
+            } else if (c < 128) {
+                buffer[length++] = (byte) (c == '+' ? ' ' : c);
+            } else {
+                // 未编码的非ASCII字符，先把之前的字节解码
+                if (result == null) result = new StringBuilder(end - start);
+                result.append(new String(buffer, 0, length, StandardCharsets.UTF_8)).append(c);
+                length = 0;
+            }
+        }
+        if (buffer.length <= MAX_RETAINED) buffers.set(buffer);
+        String decoded = new String(buffer, 0, length, StandardCharsets.UTF_8);
+        return result == null ? decoded : result.append(decoded).toString();
+    }
+}
@@ -0,0 +1,249 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * 流式的请求正文，配合HttpRequester.doRequest发送。<br/>
+ * 长度已知时使用定长流式模式，未知时使用chunked传输编码，HttpURLConnection不会在内存中缓冲整个正文，
+ * 上传大文件只占用一个固定大小的缓冲区。
+ */
+public abstract class RequestBody {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * @return Content-Type，null则不设置
+     */
+    public abstract String contentType();
+
+    /**
+     * @return 正文长度，未知时为-1，使用chunked传输编码
+     */
+    public abstract long contentLength();
+
+    /**
+     * 写出全部正文
+     *
+     * @param out 连接的输出流，不要关闭
+     * @throws IOException
+     */
+    public abstract void writeTo(OutputStream out) throws IOException;
+
+    /**
+     * @return 是否可以多次写出，不可重复的正文不会被重试
+     */
+    public boolean isRepeatable() {
+        return true;
+    }
+
+    public static RequestBody of(byte[] bytes, String contentType) {
+        return of(ByteBuffer.wrap(bytes), contentType);
+    }
+
+    /**
+     * @param buffer 从position到limit的内容，不会改变buffer的位置，可以是direct buffer
+     */
+    public static RequestBody of(final ByteBuffer buffer, final String contentType) {
+        return new RequestBody() {
+            @Override
+            public String contentType() {
+                return contentType;
+            }
+
+            @Override
+            public long contentLength() {
+                return buffer.remaining();
+            }
+
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                ByteBuffer source = buffer.duplicate();
+                if (source.hasArray()) {
+                    out.write(source.array(), source.arrayOffset() + source.position(), source.remaining());
+                    return;
+                }
+                byte[] bytes = new byte[Math.min(BUFFER_SIZE, source.remaining())];
+                while (source.hasRemaining()) {
+                    int n = Math.min(bytes.length, source.remaining());
+                    source.get(bytes, 0, n);
+                    out.write(bytes, 0, n);
+                }
+            }
+        };
+    }
+
+    /**
+     * @param path 文件，每次写出时重新打开
+     */
+    public static RequestBody of(final Path path, final String contentType) throws IOException {
+        final long length = Files.size(path);
+        return new RequestBody() {
+            @Override
+            public String contentType() {
+                return contentType;
+            }
+
+            @Override
+            public long contentLength() {
+                return length;
+            }
+
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                try (InputStream in = Files.newInputStream(path)) {
+                    copy(in, out);
+                }
+            }
+        };
+    }
+
+    /**
+     * @param in     输入流，写出后关闭，只能发送一次
+     * @param length 长度，未知时为-1
+     */
+    public static RequestBody of(final InputStream in, final long length, final String contentType) {
+        return new RequestBody() {
+            @Override
+            public String contentType() {
+                return contentType;
+            }
+
+            @Override
+            public long contentLength() {
+                return length;
+            }
+
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                try {
+                    copy(in, out);
+                } finally {
+                    in.close();
+                }
+            }
+
+            @Override
+            public boolean isRepeatable() {
+                return false;
+            }
+        };
+    }
+
+    static long copy(InputStream in, OutputStream out) throws IOException {
+        byte[] bytes = new byte[BUFFER_SIZE];
+        long copied = 0;
+        int n;
+        while ((n = in.read(bytes)) != -1) {
+            out.write(bytes, 0, n);
+            copied += n;
+        }
+        return copied;
+    }
+
+    /**
+     * multipart/form-data正文，各部分依次流式写出。全部部分长度已知时总长度也已知，使用定长流式模式
+     */
+    public static class Multipart extends RequestBody {
+        private static class Part {
+            private final byte[] header;
+            private final RequestBody body;
+
+            private Part(byte[] header, RequestBody body) {
+                this.header = header;
+                this.body = body;
+            }
+        }
+
+        private final String boundary;
+        private final List<Part> parts;
+
+        public Multipart() {
+            this.boundary = "----forDream" + Long.toHexString(ThreadLocalRandom.current().nextLong()) + Long.toHexString(System.nanoTime());
+            this.parts = new ArrayList<Part>();
+        }
+
+        /**
+         * 添加文本字段
+         */
+        public Multipart addField(String name, String value) {
+            return this.addPart(name, null, of(value.getBytes(StandardCharsets.UTF_8), null));
+        }
+
+        /**
+         * 添加文件
+         *
+         * @param contentType 文件类型，null则为application/octet-stream
+         */
+        public Multipart addFile(String name, Path path, String contentType) throws IOException {
+            return this.addPart(name, path.getFileName().toString(),
+                    of(path, contentType == null ? "application/octet-stream" : contentType));
+        }
+
+        /**
+         * 添加任意正文作为一个部分
+         *
+         * @param filename 文件名，null则不是文件
+         */
+        public Multipart addPart(String name, String filename, RequestBody body) {
+            StringBuilder header = new StringBuilder();
+            header.append("--").append(this.boundary).append("\r\n");
+            header.append("Content-Disposition: form-data; name=\"").append(escape(name)).append('"');
+            if (filename != null)
+                header.append("; filename=\"").append(escape(filename)).append('"');
+            header.append("\r\n");
+            if (body.contentType() != null)
+                header.append("Content-Type: ").append(body.contentType()).append("\r\n");
+            header.append("\r\n");
+            this.parts.add(new Part(header.toString().getBytes(StandardCharsets.UTF_8), body));
+            return this;
+        }
+
+        private static String escape(String value) {
+            return value.replace("\"", "%22").replace("\r", "%0D").replace("\n", "%0A");
+        }
+
+        private byte[] closing() {
+            return ("--" + this.boundary + "--\r\n").getBytes(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public String contentType() {
+            return "multipart/form-data; boundary=" + this.boundary;
+        }
+
+        @Override
+        public long contentLength() {
+            long length = this.closing().length;
+            for (Part part : this.parts) {
+                long bodyLength = part.body.contentLength();
+                if (bodyLength < 0) return -1;
+                length += part.header.length + bodyLength + 2;
+            }
+            return length;
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            for (Part part : this.parts) {
+                out.write(part.header);
+                part.body.writeTo(out);
+                out.write('\r');
+                out.write('\n');
+            }
+            out.write(this.closing());
+        }
+
+        @Override
+        public boolean isRepeatable() {
+            for (Part part : this.parts)
+                if (!part.body.isRepeatable()) return false;
+            return true;
+        }
+    }
+}
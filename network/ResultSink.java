@@ -0,0 +1,396 @@
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 爬取结果的有界批量输出：处理器线程把结果放入有界队列，由一个写线程成批取出写入，写完一批或队列为空时才刷新（组提交）。<br/>
+ * 写入跟不上时队列写满，put阻塞处理器线程，从而让抓取放慢（背压）。写入出错（包括运行时异常）后put与close抛出以它为cause的IOException。
+ *
+ * @param <T> 结果类型
+ */
+public class ResultSink<T> implements Closeable {
+    public interface Writer<T> extends Closeable {
+        /**
+         * 写入一批结果，不必立即刷新
+         */
+        void write(List<T> batch) throws IOException;
+
+        /**
+         * 把已写入的结果刷新到存储
+         */
+        void flush() throws IOException;
+    }
+
+    private final ArrayBlockingQueue<T> queue;
+    private final Writer<T> writer;
+    private final int maxBatch;
+    private final long maxDelay;
+    private final Thread thread;
+    private final AtomicInteger producers; // 正在put或offer的线程数，写线程等它们放完才退出
+    private volatile boolean closed;
+    private volatile Throwable failure;
+    private long written;
+    private long batches;
+    private long flushes;
+
+    /**
+     * @param writer   结果的写入器，由sink负责关闭
+     * @param capacity 队列容量，队列满时put阻塞
+     * @param maxBatch 每批最多写入的结果数
+     * @param maxDelay 有结果未刷新时最长等待的毫秒数，队列一直不空时也会按此间隔刷新
+     */
+    public ResultSink(Writer<T> writer, int capacity, int maxBatch, long maxDelay) {
+        if (capacity < 1 || maxBatch < 1 || maxDelay < 0)
+            throw new IllegalArgumentException("invalid sink limits");
+        this.queue = new ArrayBlockingQueue<T>(capacity);
+        this.writer = writer;
+        this.maxBatch = maxBatch;
+        this.maxDelay = maxDelay;
+        this.producers = new AtomicInteger();
+        this.closed = false;
+        this.thread = new Thread(this::drain, "ResultSink-writer");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    public ResultSink(Writer<T> writer) {
+        this(writer, 8192, 512, 1000);
+    }
+
+    /**
+     * 放入一个结果，队列满时阻塞直到写线程腾出空间
+     *
+     * @param result 结果
+     * @throws IOException 写入器已出错，或等待时被中断
+     */
+    public void put(T result) throws IOException {
+        this.producers.incrementAndGet();
+        try {
+            this.check();
+            while (!this.queue.offer(result, 100, TimeUnit.MILLISECONDS))
+                this.check();
+            if (this.failure != null) // 写线程已停止，放入的结果不会被写出
+                throw new IOException("Result sink writer failed", this.failure);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for result sink");
+        } finally {
+            this.producers.decrementAndGet();
+        }
+    }
+
+    /**
+     * 在限定时间内放入一个结果
+     *
+     * @param timeout 等待的毫秒数
+     * @return 队列一直是满的则返回false
+     * @throws IOException 写入器已出错，或等待时被中断
+     */
+    public boolean offer(T result, long timeout) throws IOException {
+        this.producers.incrementAndGet();
+        try {
+            this.check();
+            return this.queue.offer(result, timeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for result sink");
+        } finally {
+            this.producers.decrementAndGet();
+        }
+    }
+
+    private void check() throws IOException {
+        if (this.failure != null)
+            throw new IOException("Result sink writer failed", this.failure);
+        if (this.closed)
+            throw new IllegalStateException("Result sink is closed");
+    }
+
+    private void drain() {
+        List<T> batch = new ArrayList<T>(this.maxBatch);
+        long dirtySince = 0; // 最早未刷新的批次的写入时间，0表示没有未刷新的结果
+        try {
+            while (true) {
+                long wait = dirtySince == 0 ? 100 : Math.max(0, dirtySince + this.maxDelay - System.currentTimeMillis());
+                T first = this.queue.poll(wait, TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    this.queue.drainTo(batch, this.maxBatch - 1);
+                    this.writer.write(batch);
+                    synchronized (this) {
+                        this.written += batch.size();
+                        this.batches++;
+                    }
+                    batch.clear();
+                    if (dirtySince == 0) dirtySince = System.currentTimeMillis();
+                }
+                // 队列已空或达到最长等待时间时组提交
+                if (dirtySince != 0 && (this.queue.isEmpty() || System.currentTimeMillis() - dirtySince >= this.maxDelay)) {
+                    this.writer.flush();
+                    synchronized (this) {
+                        this.flushes++;
+                    }
+                    dirtySince = 0;
+                }
+                // 先看到closed，再看到没有进行中的put，之后的put都会因closed而失败，不会丢失结果
+                if (this.closed && this.producers.get() == 0 && this.queue.isEmpty() && dirtySince == 0) break;
+            }
+        } catch (InterruptedException e) {
+            this.failure = new InterruptedIOException("Result sink writer interrupted");
+        } catch (Throwable e) {
+            this.failure = e;
+            this.queue.clear(); // 唤醒等待中的put
+        }
+    }
+
+    /**
+     * 写完队列中剩余的结果，刷新并关闭写入器
+     *
+     * @throws IOException 写入器出错
+     */
+    @Override
+    public void close() throws IOException {
+        if (this.closed) return;
+        this.closed = true;
+        try {
+            this.thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while closing result sink");
+        } finally {
+            this.writer.close();
+        }
+        if (this.failure != null)
+            throw new IOException("Result sink writer failed", this.failure);
+    }
+
+    /**
+     * @return 等待写入的结果数
+     */
+    public int pending() {
+        return this.queue.size();
+    }
+
+    /**
+     * @return 已写入的结果数
+     */
+    public synchronized long written() {
+        return this.written;
+    }
+
+    /**
+     * @return 已写入的批次数
+     */
+    public synchronized long batches() {
+        return this.batches;
+    }
+
+    /**
+     * @return 已刷新的次数
+     */
+    public synchronized long flushes() {
+        return this.flushes;
+    }
+
+    /**
+     * 每行一个JSON对象的文件，追加写入
+     *
+     * @param path 文件
+     * @param sync 刷新时是否同步到磁盘
+     * @return 写入器，结果的值可以是null、Number、Boolean、Map、Iterable，其他类型按字符串输出
+     * @throws IOException
+     */
+    public static Writer<Map<String, ?>> ndjson(Path path, boolean sync) throws IOException {
+        return new FileWriter<Map<String, ?>>(path, sync) {
+            private final StringBuilder line = new StringBuilder(256);
+
+            @Override
+            void write(BufferedWriter out, Map<String, ?> record) throws IOException {
+                this.line.setLength(0);
+                appendJson(this.line, record);
+                this.line.append('\n');
+                out.append(this.line);
+            }
+        };
+    }
+
+    /**
+     * CSV文件，新文件先写入表头，追加写入
+     *
+     * @param path    文件
+     * @param sync    刷新时是否同步到磁盘
+     * @param columns 列名，即结果中的键
+     * @return 写入器
+     * @throws IOException
+     */
+    public static Writer<Map<String, ?>> csv(Path path, boolean sync, String... columns) throws IOException {
+        boolean header = !path.toFile().exists() || path.toFile().length() == 0;
+        FileWriter<Map<String, ?>> writer = new FileWriter<Map<String, ?>>(path, sync) {
+            private final StringBuilder line = new StringBuilder(256);
+
+            @Override
+            void write(BufferedWriter out, Map<String, ?> record) throws IOException {
+                this.line.setLength(0);
+                for (int i = 0; i < columns.length; i++) {
+                    if (i > 0) this.line.append(',');
+                    appendCsv(this.line, record.get(columns[i]));
+                }
+                this.line.append("\r\n");
+                out.append(this.line);
+            }
+        };
+        if (header) {
+            StringBuilder line = new StringBuilder();
+            for (int i = 0; i < columns.length; i++) {
+                if (i > 0) line.append(',');
+                appendCsv(line, columns[i]);
+            }
+            writer.out.append(line).append("\r\n");
+        }
+        return writer;
+    }
+
+    /**
+     * 保存在内存中，主要用于测试
+     */
+    public static class Memory<T> implements Writer<T> {
+        private final List<T> results = new ArrayList<T>();
+
+        @Override
+        public synchronized void write(List<T> batch) {
+            this.results.addAll(batch);
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+
+        /**
+         * @return 已写入结果的副本
+         */
+        public synchronized List<T> results() {
+            return Collections.unmodifiableList(new ArrayList<T>(this.results));
+        }
+    }
+
+    private abstract static class FileWriter<T> implements Writer<T> {
+        private final FileOutputStream stream;
+        private final BufferedWriter out;
+        private final boolean sync;
+
+        private FileWriter(Path path, boolean sync) throws IOException {
+            this.stream = new FileOutputStream(path.toFile(), true);
+            this.out = new BufferedWriter(new OutputStreamWriter(this.stream, StandardCharsets.UTF_8), 64 * 1024);
+            this.sync = sync;
+        }
+
+        abstract void write(BufferedWriter out, T record) throws IOException;
+
+        @Override
+        public void write(List<T> batch) throws IOException {
+            for (T record : batch)
+                this.write(this.out, record);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            this.out.flush();
+            if (this.sync) this.stream.getFD().sync();
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.out.close();
+        }
+    }
+
+    static void appendJson(StringBuilder builder, Object value) {
+        if (value == null || value instanceof Number || value instanceof Boolean) {
+            builder.append(value);
+        } else if (value instanceof Map) {
+            builder.append('{');
+            boolean first = true;
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                if (!first) builder.append(',');
+                first = false;
+                appendJson(builder, String.valueOf(entry.getKey()));
+                builder.append(':');
+                appendJson(builder, entry.getValue());
+            }
+            builder.append('}');
+        } else if (value instanceof Iterable) {
+            builder.append('[');
+            boolean first = true;
+            for (Object item : (Iterable<?>) value) {
+                if (!first) builder.append(',');
+                first = false;
+                appendJson(builder, item);
+            }
+            builder.append(']');
+        } else {
+            String string = value.toString();
+            builder.append('"');
+            for (int i = 0; i < string.length(); i++) {
+                char c = string.charAt(i);
+                switch (c) {
+                    case '"':
+                        builder.append("\\\"");
+                        break;
+                    case '\\':
+                        builder.append("\\\\");
+                        break;
+                    case '\n':
+                        builder.append("\\n");
+                        break;
+                    case '\r':
+                        builder.append("\\r");
+                        break;
+                    case '\t':
+                        builder.append("\\t");
+                        break;
+                    default:
+                        if (c < 0x20) builder.append(String.format("\\u%04x", (int) c));
+                        else builder.append(c);
+                }
+            }
+            builder.append('"');
+        }
+    }
+
+    static void appendCsv(StringBuilder builder, Object value) {
+        if (value == null) return;
+        String string = value.toString();
+        boolean quote = false;
+        for (int i = 0; i < string.length() && !quote; i++) {
+            char c = string.charAt(i);
+            quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+        }
+        if (!quote) {
+            builder.append(string);
+            return;
+        }
+        builder.append('"');
+        for (int i = 0; i < string.length(); i++) {
+            char c = string.charAt(i);
+            if (c == '"') builder.append('"');
+            builder.append(c);
+        }
+        builder.append('"');
+    }
+}
@@ -0,0 +1,432 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * HttpRequester的重试策略。<br/>
+ * 幂等方法在IO异常或可重试的响应代码时重试，非幂等方法只在连接未建立时重试；
+ * 重试间隔为带完全抖动的指数退避，服务器给出Retry-After时至少等待该时间；
+ * 重试预算限制重试占请求的比例，避免下游故障时重试放大流量。<br/>
+ * 可选的对冲请求：幂等请求在该主机响应时间的百分位（例如p95）内未返回时再发一个相同的请求，取先返回的响应；
+ * 主请求始终在调用线程上执行，对冲请求同样计入重试预算。线程安全。
+ */
+public class RetryPolicy {
+    /**
+     * 一次请求
+     */
+    public interface Attempt {
+        HttpRequester.HttpResponse run() throws IOException;
+
+        /**
+         * 在调用线程上调用，返回由对冲线程代替调用线程执行的同一请求，
+         * 调用线程的状态（例如按线程隔离的Cookie）需要在这里带给对冲线程。默认返回自身
+         */
+        default Attempt forHedge() {
+            return this;
+        }
+
+        /**
+         * 对冲请求先返回时在对冲线程上调用，使thread上进行中的run尽快以IOException结束。默认不中止，等它返回后关闭
+         */
+        default void abort(Thread thread) {
+        }
+    }
+
+    private static final Set<String> IDEMPOTENT_METHODS = new HashSet<String>(Arrays.asList("GET", "HEAD", "OPTIONS", "PUT", "DELETE", "TRACE"));
+    private static final int MIN_HEDGE_SAMPLES = 20;
+    private static final int MAX_LATENCY_HOSTS = 256; // 每个主机的直方图约8KB
+
+    private static final ScheduledExecutorService hedgeTimer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "RetryPolicy-hedge-timer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static final ExecutorService hedgeExecutor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "RetryPolicy-hedge");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final int maxAttempts;
+    private final long baseDelay;
+    private final long maxDelay;
+    private Set<Integer> retryStatuses;
+    private long maxRetryAfter;
+    private double budgetRatio;
+    private double budgetMax;
+    private double budgetTokens;
+    private double hedgePercentile;
+    private final ConcurrentMap<String, HttpMetrics.Histogram> latencies;
+    private long retries;
+    private long budgetExhausted;
+    private long hedges;
+    private long hedgeWins;
+
+    /**
+     * @param maxAttempts 最多尝试次数，包括第一次
+     * @param baseDelay   第一次重试的最大退避，毫秒，之后每次翻倍
+     * @param maxDelay    单次退避的上限，毫秒
+     */
+    public RetryPolicy(int maxAttempts, long baseDelay, long maxDelay) {
+        if (maxAttempts < 1 || baseDelay < 0 || maxDelay < baseDelay)
+            throw new IllegalArgumentException("invalid retry limits");
+        this.maxAttempts = maxAttempts;
+        this.baseDelay = baseDelay;
+        this.maxDelay = maxDelay;
+        this.retryStatuses = new HashSet<Integer>(Arrays.asList(408, 429, 500, 502, 503, 504));
+        this.maxRetryAfter = 60000;
+        this.budgetRatio = 0.1;
+        this.budgetMax = 10;
+        this.budgetTokens = this.budgetMax;
+        this.hedgePercentile = 0;
+        this.latencies = new ConcurrentHashMap<String, HttpMetrics.Histogram>();
+    }
+
+    /**
+     * 3次尝试，退避100毫秒起，最长5秒
+     */
+    public RetryPolicy() {
+        this(3, 100, 5000);
+    }
+
+    /**
+     * 设置需要重试的响应代码，默认为408, 429, 500, 502, 503, 504
+     */
+    public synchronized RetryPolicy retryOn(int... statuses) {
+        Set<Integer> set = new HashSet<Integer>();
+        for (int status : statuses)
+            set.add(status);
+        this.retryStatuses = set;
+        return this;
+    }
+
+    /**
+     * @param maxRetryAfter Retry-After超过该毫秒数时不再重试，直接返回响应，默认60秒
+     */
+    public synchronized RetryPolicy maxRetryAfter(long maxRetryAfter) {
+        this.maxRetryAfter = maxRetryAfter;
+        return this;
+    }
+
+    /**
+     * 设置重试预算：每个请求存入ratio个令牌，每次重试取出一个，令牌不足时不重试
+     *
+     * @param ratio     允许的重试占请求的比例，默认0.1
+     * @param maxTokens 令牌上限，即允许的突发重试数，默认10
+     */
+    public synchronized RetryPolicy budget(double ratio, double maxTokens) {
+        this.budgetRatio = ratio;
+        this.budgetMax = maxTokens;
+        this.budgetTokens = maxTokens;
+        return this;
+    }
+
+    /**
+     * 开启对冲请求，只对幂等方法生效；每个主机积累足够的响应时间样本后才开始对冲，预算不足时不对冲
+     *
+     * @param percentile 响应时间的百分位，例如95，0则关闭对冲
+     */
+    public synchronized RetryPolicy hedge(double percentile) {
+        this.hedgePercentile = percentile;
+        return this;
+    }
+
+    public static boolean isIdempotent(String method) {
+        return IDEMPOTENT_METHODS.contains(method.toUpperCase());
+    }
+
+    /**
+     * 按策略执行请求，可重试的响应代码在重试次数用完后原样返回
+     *
+     * @param url     请求的目标url，用于按主机统计响应时间
+     * @param method  请求的方法
+     * @param attempt 一次请求，对冲时其forHedge的结果在另一个线程上与它并发执行
+     * @return 响应
+     * @throws IOException 最后一次尝试的异常
+     */
+    public HttpRequester.HttpResponse execute(URL url, String method, Attempt attempt) throws IOException {
+        boolean idempotent = isIdempotent(method);
+        synchronized (this) {
+            this.budgetTokens = Math.min(this.budgetMax, this.budgetTokens + this.budgetRatio);
+        }
+        for (int attemptNumber = 1; ; attemptNumber++) {
+            HttpRequester.HttpResponse response;
+            try {
+                response = idempotent ? this.hedged(url.getHost(), attempt) : attempt.run();
+            } catch (IOException e) {
+                if (e instanceof InterruptedIOException && !(e instanceof SocketTimeoutException)) throw e;
+                // 非幂等请求只在请求未发出时重试
+                boolean retryable = idempotent ? !(e instanceof UnknownHostException) : (e instanceof ConnectException || e instanceof NoRouteToHostException);
+                if (!retryable || attemptNumber >= this.maxAttempts || !this.acquireRetry()) throw e;
+                this.sleep(this.backoff(attemptNumber));
+                continue;
+            }
+
+            int responseCode = response.getResponseCode();
+            if (!this.shouldRetryStatus(responseCode) || (!idempotent && responseCode != 429 && responseCode != 503))
+                return response; // 非幂等请求只在服务器明确拒绝处理时重试
+            long delay = this.backoff(attemptNumber);
+            long retryAfter = retryAfterOf(HttpRequester.headerOf(response.getResponseHeaders(), "Retry-After"));
+            if (retryAfter > this.maxRetryAfterMillis() || attemptNumber >= this.maxAttempts || !this.acquireRetry())
+                return response;
+            if (response.getResponse() != null) response.getResponse().close();
+            this.sleep(Math.max(delay, retryAfter));
+        }
+    }
+
+    private synchronized boolean shouldRetryStatus(int responseCode) {
+        return this.retryStatuses.contains(responseCode);
+    }
+
+    private synchronized long maxRetryAfterMillis() {
+        return this.maxRetryAfter;
+    }
+
+    private synchronized boolean acquireRetry() {
+        if (this.budgetTokens < 1) {
+            this.budgetExhausted++;
+            return false;
+        }
+        this.budgetTokens -= 1;
+        this.retries++;
+        return true;
+    }
+
+    /**
+     * 对冲请求与重试一样从预算中取出一个令牌
+     */
+    private synchronized boolean acquireHedge() {
+        if (this.budgetTokens < 1) {
+            this.budgetExhausted++;
+            return false;
+        }
+        this.budgetTokens -= 1;
+        this.hedges++;
+        return true;
+    }
+
+    /**
+     * 完全抖动：[0, min(maxDelay, baseDelay * 2^(n-1))]内均匀随机
+     */
+    long backoff(int attemptNumber) {
+        long ceiling = this.baseDelay << Math.min(attemptNumber - 1, 30);
+        if (ceiling <= 0 || ceiling > this.maxDelay) ceiling = this.maxDelay;
+        return ceiling == 0 ? 0 : ThreadLocalRandom.current().nextLong(ceiling + 1);
+    }
+
+    private void sleep(long millis) throws InterruptedIOException {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to retry");
+        }
+    }
+
+    /**
+     * @param value Retry-After，秒数或HTTP日期
+     * @return 毫秒，没有或无法解析时为0
+     */
+    static long retryAfterOf(String value) {
+        if (value == null) return 0;
+        value = value.trim();
+        try {
+            return Math.max(0, Long.parseLong(value) * 1000);
+        } catch (NumberFormatException e) {
+            try {
+                long date = ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+                return Math.max(0, date - System.currentTimeMillis());
+            } catch (DateTimeParseException ignored) {
+                return 0;
+            }
+        }
+    }
+
+    private HttpMetrics.Histogram latency(String host) {
+        HttpMetrics.Histogram histogram = this.latencies.get(host);
+        if (histogram == null) {
+            // 超过上限的主机共用一个直方图，以它们的合并分布决定对冲延迟
+            if (this.latencies.size() >= MAX_LATENCY_HOSTS) host = HttpMetrics.OTHER;
+            HttpMetrics.Histogram created = new HttpMetrics.Histogram();
+            histogram = this.latencies.putIfAbsent(host, created);
+            if (histogram == null) histogram = created;
+        }
+        return histogram;
+    }
+
+    /**
+     * 主请求在调用线程上执行，对冲延迟内未返回时由对冲线程代替调用线程再发一个，取先返回的响应。
+     * 对冲请求与重试共用预算；对冲请求先返回时中止主请求，落后的一方返回后关闭其正文
+     */
+    private HttpRequester.HttpResponse hedged(String host, Attempt attempt) throws IOException {
+        HttpMetrics.Histogram latency = this.latency(host);
+        double percentile;
+        synchronized (this) {
+            percentile = this.hedgePercentile;
+        }
+        long start = System.nanoTime();
+        if (percentile <= 0 || latency.count() < MIN_HEDGE_SAMPLES) {
+            HttpRequester.HttpResponse response = attempt.run();
+            latency.record((System.nanoTime() - start) / 1000);
+            return response;
+        }
+
+        final Hedge hedge = new Hedge(attempt, Thread.currentThread());
+        ScheduledFuture<?> launch = hedgeTimer.schedule(() -> {
+            if (hedge.state.get() == RUNNING && this.acquireHedge()) {
+                hedge.launched = true;
+                hedgeExecutor.execute(hedge);
+            }
+        }, latency.percentile(percentile), TimeUnit.MICROSECONDS);
+
+        HttpRequester.HttpResponse response;
+        try {
+            response = attempt.run();
+        } catch (RuntimeException | Error e) {
+            launch.cancel(false);
+            hedge.state.compareAndSet(RUNNING, PRIMARY_WON);
+            throw e;
+        } catch (IOException e) {
+            launch.cancel(false);
+            // 被对冲请求中止，或主请求失败而对冲请求已发出：等待对冲请求
+            if (hedge.state.get() == HEDGE_WON || (hedge.launched && hedge.state.get() == RUNNING)) {
+                HttpRequester.HttpResponse hedged = hedge.await(e);
+                latency.record((System.nanoTime() - start) / 1000);
+                return hedged;
+            }
+            hedge.state.compareAndSet(RUNNING, PRIMARY_WON); // 未发出的对冲请求不再发出
+            throw e;
+        }
+        if (hedge.state.compareAndSet(RUNNING, PRIMARY_WON)) {
+            launch.cancel(false);
+            latency.record((System.nanoTime() - start) / 1000);
+            return response;
+        }
+        // 对冲请求先返回，但中止来得太晚，主请求仍然返回了
+        if (response.getResponse() != null) response.getResponse().close();
+        return hedge.await(null);
+    }
+
+    private static final int RUNNING = 0;
+    private static final int PRIMARY_WON = 1;
+    private static final int HEDGE_WON = 2;
+
+    /**
+     * 对冲请求，在对冲线程上执行。先返回时中止调用线程上的主请求，否则关闭自己的响应
+     */
+    private class Hedge implements Runnable {
+        private final Attempt primary;
+        private final Attempt attempt;
+        private final Thread caller;
+        private final AtomicInteger state;
+        private final CompletableFuture<HttpRequester.HttpResponse> result;
+        private volatile boolean launched;
+
+        private Hedge(Attempt primary, Thread caller) {
+            this.primary = primary;
+            this.attempt = primary.forHedge(); // 在调用线程上取得调用者的Cookie等状态
+            this.caller = caller;
+            this.state = new AtomicInteger(RUNNING);
+            this.result = new CompletableFuture<HttpRequester.HttpResponse>();
+        }
+
+        @Override
+        public void run() {
+            try {
+                HttpRequester.HttpResponse response = this.attempt.run();
+                if (this.state.compareAndSet(RUNNING, HEDGE_WON)) {
+                    synchronized (RetryPolicy.this) {
+                        RetryPolicy.this.hedgeWins++;
+                    }
+                    this.primary.abort(this.caller);
+                    this.result.complete(response);
+                } else {
+                    if (response.getResponse() != null) response.getResponse().close();
+                    this.result.complete(null);
+                }
+            } catch (Throwable e) {
+                this.result.completeExceptionally(e);
+            }
+        }
+
+        /**
+         * @param primaryFailure 主请求的异常，对冲请求也失败时抛出它
+         */
+        private HttpRequester.HttpResponse await(IOException primaryFailure) throws IOException {
+            try {
+                return this.result.get();
+            } catch (InterruptedException e) {
+                this.result.thenAccept(response -> {
+                    if (response != null && response.getResponse() != null) {
+                        try {
+                            response.getResponse().close();
+                        } catch (IOException ignored) {
+                        }
+                    }
+                });
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for response");
+            } catch (ExecutionException e) {
+                if (primaryFailure != null) throw primaryFailure;
+                throw asIOException(e.getCause());
+            }
+        }
+    }
+
+    private static IOException asIOException(Throwable cause) {
+        if (cause instanceof IOException) return (IOException) cause;
+        if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+        if (cause instanceof Error) throw (Error) cause;
+        return new IOException(cause);
+    }
+
+    /**
+     * @return 已执行的重试次数
+     */
+    public synchronized long retries() {
+        return this.retries;
+    }
+
+    /**
+     * @return 因预算不足放弃的重试次数
+     */
+    public synchronized long budgetExhausted() {
+        return this.budgetExhausted;
+    }
+
+    /**
+     * @return 发出的对冲请求数
+     */
+    public synchronized long hedges() {
+        return this.hedges;
+    }
+
+    /**
+     * @return 对冲请求先返回的次数
+     */
+    public synchronized long hedgeWins() {
+        return this.hedgeWins;
+    }
+}
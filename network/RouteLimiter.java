@@ -0,0 +1,136 @@
+import java.io.IOException;
+import java.net.URL;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * HttpRequester可选的按路由(scheme://host:port)并发请求限制，默认不启用<br/>
+ * 本类不是连接池，不持有socket：连接的keep-alive复用、空闲连接数与空闲回收完全由JDK的KeepAliveCache负责，
+ * 空闲连接数由系统属性http.maxConnections控制（需在首次连接前由应用自行设置），HttpURLConnection不提供复用率统计。<br/>
+ * 1. 每个路由最多同时有maxPerRoute个请求处于发送请求、等待响应头的阶段，超出则等待；<br/>
+ * 2. 收到响应头（或请求失败）时即归还，不等待响应正文被读完或关闭，未关闭的响应不会阻塞后续请求；<br/>
+ * 3. 统计取得许可的次数与需要等待的次数。
+ */
+public class RouteLimiter {
+    /**
+     * 一次请求的并发许可，收到响应头或请求失败时必须调用release
+     */
+    public static class Permit {
+        private final Route route;
+        private final AtomicBoolean released;
+
+        private Permit(Route route) {
+            this.route = route;
+            this.released = new AtomicBoolean(false);
+        }
+
+        /**
+         * 归还许可，重复调用无效果
+         */
+        public void release() {
+            if (this.released.compareAndSet(false, true))
+                this.route.permits.release();
+        }
+    }
+
+    private static class Route {
+        private final Semaphore permits;
+
+        private Route(int maxPerRoute) {
+            this.permits = new Semaphore(maxPerRoute, true);
+        }
+    }
+
+    private final int maxPerRoute;
+    private final ConcurrentMap<String, Route> routes;
+    private final AtomicLong acquired;
+    private final AtomicLong waits;
+
+    /**
+     * @param maxPerRoute 每个路由最多同时进行的请求数
+     */
+    public RouteLimiter(int maxPerRoute) {
+        if (maxPerRoute <= 0)
+            throw new IllegalArgumentException("invalid maxPerRoute: " + maxPerRoute);
+        this.maxPerRoute = maxPerRoute;
+        this.routes = new ConcurrentHashMap<String, Route>();
+        this.acquired = new AtomicLong();
+        this.waits = new AtomicLong();
+    }
+
+    private static String routeOf(URL url) {
+        int port = url.getPort() == -1 ? url.getDefaultPort() : url.getPort();
+        return url.getProtocol().toLowerCase() + "://" + url.getHost().toLowerCase() + ":" + port;
+    }
+
+    /**
+     * 取得一个并发许可，若该路由进行中的请求已满则等待
+     *
+     * @param url     请求目标
+     * @param timeout 等待的最长时间，毫秒，0表示无限等待
+     * @return 许可凭据
+     * @throws IOException 等待超时或被中断
+     */
+    public Permit acquire(URL url, long timeout) throws IOException {
+        String key = routeOf(url);
+        Route route = this.routes.get(key);
+        if (route == null) {
+            Route created = new Route(this.maxPerRoute);
+            route = this.routes.putIfAbsent(key, created);
+            if (route == null) route = created;
+        }
+
+        if (!route.permits.tryAcquire()) {
+            this.waits.incrementAndGet();
+            try {
+                if (timeout <= 0)
+                    route.permits.acquire();
+                else if (!route.permits.tryAcquire(timeout, TimeUnit.MILLISECONDS))
+                    throw new IOException("Too many concurrent requests to " + key);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for a request slot to " + key, e);
+            }
+        }
+        this.acquired.incrementAndGet();
+        return new Permit(route);
+    }
+
+    /**
+     * @return 累计取得的许可数，即经过本类的请求数
+     */
+    public long acquired() {
+        return this.acquired.get();
+    }
+
+    /**
+     * @return 取得许可时因路由已满而等待的次数
+     */
+    public long waits() {
+        return this.waits.get();
+    }
+
+    /**
+     * @return 当前所有路由进行中的请求数
+     */
+    public int inFlight() {
+        int count = 0;
+        for (Route route : this.routes.values())
+            count += this.maxPerRoute - route.permits.availablePermits();
+        return count;
+    }
+
+    public int getMaxPerRoute() {
+        return maxPerRoute;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("RouteLimiter[maxPerRoute=%d, acquired=%d, waits=%d, inFlight=%d]",
+                maxPerRoute, acquired(), waits(), inFlight());
+    }
+}
@@ -0,0 +1,469 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 多进程分片的frontier：按主机的一致性散列把主机分配给N个工作进程，
+ * 每个进程只抓取自己的主机，主机的限速与去重状态都在所属进程中，
+ * 发现的其他主机的URL成批经socket转发给所属进程。<br/>
+ * 每个进程使用相同的节点列表构造，节点的下标即分片号；增删节点时只有约1/N的主机改变归属。
+ * 连接断开时重连并重发未写出的一批，重复的URL由所属进程的去重过滤；超过MAX_URL_BYTES的URL不转发。线程安全。
+ */
+public class ShardedFrontier implements CrawlFrontier, Closeable {
+    private static final int VIRTUAL_NODES = 160;
+    private static final int BATCH_SIZE = 512;
+    private static final int QUEUE_CAPACITY = 1 << 16;
+    private static final long RECONNECT_DELAY = 100;
+    private static final int MAX_URL_BYTES = 1 << 20;
+
+    /**
+     * 带虚拟节点的一致性散列环，每个节点在环上有多个点，主机归属于顺时针方向的第一个点
+     */
+    public static final class HashRing {
+        private final long[] points;
+        private final int[] owners;
+        private final int nodes;
+
+        /**
+         * @param nodes        节点名，例如"127.0.0.1:7001"，各进程必须使用相同的名字与顺序
+         * @param virtualNodes 每个节点的虚拟节点数，越多分布越均匀
+         */
+        public HashRing(List<String> nodes, int virtualNodes) {
+            if (nodes.isEmpty() || virtualNodes < 1)
+                throw new IllegalArgumentException("ring needs at least one node and one virtual node");
+            this.nodes = nodes.size();
+            long[] points = new long[nodes.size() * virtualNodes];
+            int count = 0;
+            for (int node = 0; node < nodes.size(); node++) {
+                for (int v = 0; v < virtualNodes; v++)
+                    points[count++] = BloomFilter.hash64(nodes.get(node) + "#" + v);
+            }
+            // 按点排序，同时带上节点号
+            Integer[] order = new Integer[points.length];
+            for (int i = 0; i < order.length; i++) order[i] = i;
+            Arrays.sort(order, (a, b) -> Long.compare(points[a], points[b]));
+            this.points = new long[points.length];
+            this.owners = new int[points.length];
+            for (int i = 0; i < order.length; i++) {
+                this.points[i] = points[order[i]];
+                this.owners[i] = order[i] / virtualNodes;
+            }
+        }
+
+        public HashRing(List<String> nodes) {
+            this(nodes, VIRTUAL_NODES);
+        }
+
+        /**
+         * @param host 主机，例如CrawlFrontier.hostOf的结果
+         * @return 所属节点的下标
+         */
+        public int shardOf(String host) {
+            long hash = BloomFilter.hash64(host);
+            int index = Arrays.binarySearch(this.points, hash);
+            if (index < 0) index = -index - 1;
+            return this.owners[index == this.points.length ? 0 : index];
+        }
+
+        public int nodes() {
+            return this.nodes;
+        }
+    }
+
+    private static final class Forward {
+        private final byte[] url; // UTF-8
+        private final int priority;
+
+        private Forward(byte[] url, int priority) {
+            this.url = url;
+            this.priority = priority;
+        }
+    }
+
+    /**
+     * 到一个对端节点的转发：有界队列加一个发送线程，队列满时offer阻塞（背压）
+     */
+    private final class Peer implements Runnable {
+        private final InetSocketAddress address;
+        private final LinkedBlockingQueue<Forward> queue;
+        private final Thread thread;
+        private Socket socket;
+        private DataOutputStream out;
+
+        private Peer(int shard, InetSocketAddress address) {
+            this.address = address;
+            this.queue = new LinkedBlockingQueue<Forward>(QUEUE_CAPACITY);
+            this.thread = new Thread(this, "ShardedFrontier-" + ShardedFrontier.this.shard + "-to-" + shard);
+            this.thread.setDaemon(true);
+        }
+
+        private void enqueue(Forward forward) {
+            ShardedFrontier.this.pending.incrementAndGet();
+            try {
+                this.queue.put(forward);
+            } catch (InterruptedException e) {
+                ShardedFrontier.this.pending.decrementAndGet();
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public void run() {
+            List<Forward> batch = new ArrayList<Forward>(BATCH_SIZE);
+            while (!ShardedFrontier.this.closed) {
+                try {
+                    if (batch.isEmpty()) {
+                        Forward first = this.queue.poll(RECONNECT_DELAY, TimeUnit.MILLISECONDS);
+                        if (first == null) continue;
+                        batch.add(first);
+                        this.queue.drainTo(batch, BATCH_SIZE - 1);
+                    }
+                    this.send(batch);
+                    ShardedFrontier.this.pending.addAndGet(-batch.size());
+                    ShardedFrontier.this.forwarded.add(batch.size());
+                    batch.clear();
+                } catch (InterruptedException e) {
+                    return;
+                } catch (IOException e) {
+                    // 对端未启动或已断开，保留这一批稍后重发
+                    this.disconnect();
+                    try {
+                        Thread.sleep(RECONNECT_DELAY);
+                    } catch (InterruptedException interrupted) {
+                        return;
+                    }
+                } catch (RuntimeException e) {
+                    // 不是传输错误，重发也会同样失败：丢弃这一批，断开连接使对端丢弃可能写了一半的批
+                    e.printStackTrace();
+                    this.disconnect();
+                    ShardedFrontier.this.pending.addAndGet(-batch.size());
+                    ShardedFrontier.this.dropped.add(batch.size());
+                    batch.clear();
+                }
+            }
+        }
+
+        /**
+         * 一批：[int 数量]，每个URL为[int 优先级][int 字节数][UTF-8 URL]
+         */
+        private void send(List<Forward> batch) throws IOException {
+            if (this.socket == null) {
+                Socket socket = new Socket();
+                socket.setTcpNoDelay(true);
+                socket.connect(this.address, 1000);
+                this.socket = socket;
+                this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 64 * 1024));
+            }
+            this.out.writeInt(batch.size());
+            for (Forward forward : batch) {
+                this.out.writeInt(forward.priority);
+                this.out.writeInt(forward.url.length);
+                this.out.write(forward.url);
+            }
+            this.out.flush();
+        }
+
+        private void disconnect() {
+            if (this.socket == null) return;
+            try {
+                this.socket.close();
+            } catch (IOException ignored) {
+            }
+            this.socket = null;
+            this.out = null;
+        }
+    }
+
+    private final int shard;
+    private final HashRing ring;
+    private final CrawlFrontier local;
+    private final Peer[] peers;
+    private final ServerSocket server;
+    private final List<Socket> accepted;
+    private final AtomicLong pending;
+    private final LongAdder forwarded;
+    private final LongAdder received;
+    private final LongAdder dropped;
+    private volatile boolean closed;
+
+    /**
+     * 在nodes.get(shard)上监听其他节点转发来的URL
+     *
+     * @param shard 本节点的下标
+     * @param nodes 全部节点的地址，各进程使用相同的列表
+     * @param local 本节点的frontier，保存本节点主机的URL与去重状态
+     * @throws IOException 监听失败
+     */
+    public ShardedFrontier(int shard, List<InetSocketAddress> nodes, CrawlFrontier local) throws IOException {
+        if (shard < 0 || shard >= nodes.size())
+            throw new IllegalArgumentException("shard " + shard + " out of " + nodes.size() + " nodes");
+        List<String> names = new ArrayList<String>(nodes.size());
+        for (InetSocketAddress node : nodes)
+            names.add(node.getHostString() + ":" + node.getPort());
+        this.shard = shard;
+        this.ring = new HashRing(names);
+        this.local = local;
+        this.pending = new AtomicLong();
+        this.forwarded = new LongAdder();
+        this.received = new LongAdder();
+        this.dropped = new LongAdder();
+        this.accepted = Collections.synchronizedList(new ArrayList<Socket>());
+        this.server = new ServerSocket();
+        this.server.setReuseAddress(true);
+        this.server.bind(nodes.get(shard));
+        this.peers = new Peer[nodes.size()];
+        for (int i = 0; i < nodes.size(); i++) {
+            if (i == shard) continue;
+            this.peers[i] = new Peer(i, nodes.get(i));
+            this.peers[i].thread.start();
+        }
+        Thread acceptor = new Thread(this::accept, "ShardedFrontier-" + shard + "-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    private void accept() {
+        while (!this.closed) {
+            try {
+                final Socket socket = this.server.accept();
+                this.accepted.add(socket);
+                Thread reader = new Thread(() -> ShardedFrontier.this.receive(socket), "ShardedFrontier-" + this.shard + "-receive");
+                reader.setDaemon(true);
+                reader.start();
+            } catch (IOException e) {
+                if (this.closed) return;
+            }
+        }
+    }
+
+    private void receive(Socket socket) {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024))) {
+            while (!this.closed) {
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    int priority = in.readInt();
+                    int length = in.readInt();
+                    if (length < 0 || length > MAX_URL_BYTES) throw new IOException("Invalid URL length: " + length);
+                    byte[] url = new byte[length];
+                    in.readFully(url);
+                    this.local.offer(new String(url, StandardCharsets.UTF_8), priority);
+                }
+                this.received.add(count);
+            }
+        } catch (EOFException | SocketException e) {
+            // 对端关闭
+        } catch (IOException e) {
+            if (!this.closed) e.printStackTrace();
+        } finally {
+            this.accepted.remove(socket);
+        }
+    }
+
+    /**
+     * 本节点的主机直接加入本地frontier，其他主机的URL转发给所属节点
+     *
+     * @return 本地新加入返回true；转发的URL返回true，是否重复由所属节点判断；过长而不转发的URL返回false
+     */
+    @Override
+    public boolean offer(String url, int priority) {
+        String normalized = CrawlFrontier.normalize(url);
+        if (normalized == null) return false;
+        int owner = this.ring.shardOf(CrawlFrontier.hostOf(normalized));
+        if (owner == this.shard) return this.local.offer(normalized, priority);
+        return this.forward(owner, normalized, priority);
+    }
+
+    private boolean forward(int owner, String url, int priority) {
+        byte[] bytes = url.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > MAX_URL_BYTES) {
+            this.dropped.increment();
+            return false;
+        }
+        this.peers[owner].enqueue(new Forward(bytes, priority));
+        return true;
+    }
+
+    @Override
+    public int offerAll(Collection<String> urls, int priority) {
+        List<String> mine = new ArrayList<String>(urls.size());
+        int added = 0;
+        for (String url : urls) {
+            String normalized = CrawlFrontier.normalize(url);
+            if (normalized == null) continue;
+            int owner = this.ring.shardOf(CrawlFrontier.hostOf(normalized));
+            if (owner == this.shard) {
+                mine.add(normalized);
+            } else if (this.forward(owner, normalized, priority)) {
+                added++;
+            }
+        }
+        return mine.isEmpty() ? added : added + this.local.offerAll(mine, priority);
+    }
+
+    @Override
+    public String poll() {
+        return this.local.poll();
+    }
+
+    /**
+     * @return 本节点待抓取的URL数
+     */
+    @Override
+    public int size() {
+        return this.local.size();
+    }
+
+    /**
+     * @return 本节点的主机查本地去重状态，其他节点的主机总是false
+     */
+    @Override
+    public boolean seen(String url) {
+        String normalized = CrawlFrontier.normalize(url);
+        return normalized != null && this.isLocal(normalized) && this.local.seen(normalized);
+    }
+
+    /**
+     * @param url 绝对URL
+     * @return URL的主机是否属于本节点
+     */
+    public boolean isLocal(String url) {
+        String normalized = CrawlFrontier.normalize(url);
+        return normalized != null && this.ring.shardOf(CrawlFrontier.hostOf(normalized)) == this.shard;
+    }
+
+    public HashRing ring() {
+        return this.ring;
+    }
+
+    public int shard() {
+        return this.shard;
+    }
+
+    /**
+     * @return 等待转发的URL数
+     */
+    public long pending() {
+        return this.pending.get();
+    }
+
+    /**
+     * @return 已转发给其他节点的URL数
+     */
+    public long forwarded() {
+        return this.forwarded.sum();
+    }
+
+    /**
+     * @return 从其他节点收到的URL数
+     */
+    public long received() {
+        return this.received.sum();
+    }
+
+    /**
+     * @return 过长或发送时出现非传输错误而未转发的URL数
+     */
+    public long dropped() {
+        return this.dropped.sum();
+    }
+
+    /**
+     * 等待转发队列发送完毕
+     *
+     * @param timeout 毫秒
+     * @return 是否全部发送
+     */
+    public boolean flush(long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (this.pending.get() > 0) {
+            if (System.currentTimeMillis() >= deadline) return false;
+            Thread.sleep(10);
+        }
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.closed = true;
+        this.server.close();
+        for (Peer peer : this.peers) {
+            if (peer == null) continue;
+            peer.thread.interrupt();
+            peer.disconnect();
+        }
+        synchronized (this.accepted) {
+            for (Socket socket : this.accepted) socket.close();
+        }
+    }
+
+    /**
+     * 工作进程：抓取本节点的主机并提取链接，其他主机的链接转发给所属进程，空闲一段时间后退出。
+     * 每抓取一个URL输出一行"FETCHED url"
+     * <pre>
+     * java ShardedFrontier 0 127.0.0.1:7001,127.0.0.1:7002 5000 http://example.com/
+     * </pre>
+     *
+     * @param args 分片号 节点列表 空闲退出的毫秒数 [种子URL...]
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 3) {
+            System.err.println("usage: ShardedFrontier <shard> <host:port,host:port,...> <idleMillis> [seed urls...]");
+            System.exit(2);
+        }
+        int shard = Integer.parseInt(args[0]);
+        List<InetSocketAddress> nodes = new ArrayList<InetSocketAddress>();
+        for (String node : args[1].split(",")) {
+            int colon = node.lastIndexOf(':');
+            nodes.add(new InetSocketAddress(node.substring(0, colon), Integer.parseInt(node.substring(colon + 1))));
+        }
+        long idleMillis = Long.parseLong(args[2]);
+
+        try (ShardedFrontier frontier = new ShardedFrontier(shard, nodes, new CrawlFrontier.InMemory(10000000, 0.001, 64 << 20))) {
+            for (int i = 3; i < args.length; i++)
+                frontier.offer(args[i], 0);
+            Spider spider = null;
+            long idleSince = System.currentTimeMillis(), lastReceived = 0;
+            while (true) {
+                String next = frontier.poll();
+                if (next == null) {
+                    long received = frontier.received();
+                    if (received != lastReceived || frontier.pending() > 0) {
+                        lastReceived = received;
+                        idleSince = System.currentTimeMillis();
+                    } else if (System.currentTimeMillis() - idleSince >= idleMillis) {
+                        break;
+                    }
+                    Thread.sleep(20);
+                    continue;
+                }
+                spider = spider == null ? Spider.newHost(next).frontier(frontier) : spider.changeHost(next);
+                try {
+                    spider.linkRequest("GET", 0, 64);
+                    System.out.println("FETCHED " + next);
+                } catch (IOException e) {
+                    System.out.println("FAILED " + next + " " + e);
+                }
+                idleSince = System.currentTimeMillis();
+            }
+            frontier.flush(idleMillis);
+        }
+    }
+}
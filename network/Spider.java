@@ -1,11 +1,25 @@
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
 import java.net.MalformedURLException;
 import java.net.Proxy;
+import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.MatchResult;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -32,6 +46,30 @@ public class Spider {
         int doHandler(int responseCode, Map<String, List<String>> responseHeaders, String responseStream, Matcher matcher);
     }
 
+    public interface ResultHandler<T> extends SpiderHandler {
+        /**
+         * 把响应转换为结果
+         *
+         * @param responseCode    响应代码
+         * @param responseHeaders 响应头
+         * @param responseStream  响应正文
+         * @return 结果，null则不输出
+         */
+        T doHandler(int responseCode, Map<String, List<String>> responseHeaders, InputStream responseStream) throws IOException;
+    }
+
+    public interface MatchHandler extends SpiderHandler {
+        /**
+         * 处理响应正文中的一个匹配
+         *
+         * @param responseCode    响应代码
+         * @param responseHeaders 响应头
+         * @param match           匹配结果，位置相对于整个正文
+         * @return 返回false则停止匹配，不再读取剩余正文
+         */
+        boolean doHandler(int responseCode, Map<String, List<String>> responseHeaders, MatchResult match);
+    }
+
     public interface FlagHandler extends SpiderHandler {
         /**
          * 根据处理标志进行操作
@@ -42,6 +80,118 @@ public class Spider {
         int doHandler(int flagValue);
     }
 
+    /**
+     * 不可变的请求描述，用于batch：同一个Spider并发执行多个请求时，各请求的主机、参数与结果互不影响
+     */
+    public static final class RequestSpec {
+        private final URL url;
+        private final String method;
+        private final Map<String, String> parameters;
+        private final Map<String, String> headers;
+        private final RequestHandler handler;
+
+        private RequestSpec(URL url, String method, Map<String, String> parameters, Map<String, String> headers, RequestHandler handler) {
+            this.url = url;
+            this.method = method;
+            this.parameters = parameters;
+            this.headers = headers;
+            this.handler = handler;
+        }
+
+        /**
+         * @param url     请求的目标url
+         * @param method  请求的方法
+         * @param handler 处理响应，返回值记入BatchResult
+         */
+        public static RequestSpec of(URL url, String method, RequestHandler handler) {
+            if (url == null || method == null || handler == null)
+                throw new NullPointerException("url, method and handler are required");
+            return new RequestSpec(url, method, null, null, handler);
+        }
+
+        public static RequestSpec of(String url, String method, RequestHandler handler) throws MalformedURLException {
+            return of(new URL(url), method, handler);
+        }
+
+        /**
+         * @param parameters 请求参数，复制一份；不设置则使用Spider的请求参数
+         * @return 新的请求描述
+         */
+        public RequestSpec parameters(Map<String, String> parameters) {
+            return new RequestSpec(this.url, this.method, copyOf(parameters), this.headers, this.handler);
+        }
+
+        /**
+         * @param headers 请求头，复制一份；不设置则使用Spider的请求头
+         * @return 新的请求描述
+         */
+        public RequestSpec headers(Map<String, String> headers) {
+            return new RequestSpec(this.url, this.method, this.parameters, copyOf(headers), this.handler);
+        }
+
+        private static Map<String, String> copyOf(Map<String, String> map) {
+            return map == null ? null : Collections.unmodifiableMap(new HashMap<String, String>(map));
+        }
+
+        public URL url() {
+            return this.url;
+        }
+
+        public String method() {
+            return this.method;
+        }
+
+        @Override
+        public String toString() {
+            return this.method + " " + this.url;
+        }
+    }
+
+    /**
+     * batch的结果，按请求的顺序保存处理器的返回值或异常
+     */
+    public static final class BatchResult {
+        private final int[] values;
+        private final IOException[] errors;
+        private int failures;
+
+        private BatchResult(int size) {
+            this.values = new int[size];
+            this.errors = new IOException[size];
+        }
+
+        public int size() {
+            return this.values.length;
+        }
+
+        /**
+         * @return 第index个请求处理器的返回值，失败时为0
+         */
+        public int value(int index) {
+            return this.values[index];
+        }
+
+        /**
+         * @return 第index个请求的异常，成功时为null
+         */
+        public IOException error(int index) {
+            return this.errors[index];
+        }
+
+        public int failures() {
+            return this.failures;
+        }
+
+        /**
+         * @return 成功请求的处理器返回值之和
+         */
+        public long sum() {
+            long sum = 0;
+            for (int value : this.values) sum += value;
+            return sum;
+        }
+    }
+
     private interface InnerRunnable {
         void run0() throws IOException;
     }
@@ -71,12 +221,34 @@ public class Spider {
     private Proxy proxy;
     private int connectTimeout;
     private int readTimeout;
+    private ExecutorService executor;
+    private SpiderScheduler scheduler;
+    private CrawlFrontier frontier;
 
-    private static ForkJoinPool forkJoinPool;
+    private static ExecutorService defaultExecutor;
+
+    private static final int BATCH_PARALLELISM = 32;
+    private static final int PATTERN_CACHE_SIZE = 256;
+    private static final Map<String, Pattern> patternCache = new ConcurrentHashMap<String, Pattern>();
 
     static {
-        forkJoinPool = new ForkJoinPool();
-        Runtime.getRuntime().addShutdownHook(new Thread(() -> forkJoinPool.shutdown()));
+        defaultExecutor = newDefaultExecutor();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> defaultExecutor.shutdown()));
+    }
+
+    /**
+     * JDK 21及以上每个异步请求使用一个虚拟线程，阻塞IO不会占满有限的工作线程；
+     * 更低版本的JDK回退到ForkJoinPool
+     *
+     * @return 默认的异步执行器
+     */
+    private static ExecutorService newDefaultExecutor() {
+        try {
+            return (ExecutorService) Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return new ForkJoinPool();
+        }
     }
 
     public static Spider newHost(URL host) {
@@ -95,6 +267,7 @@ public class Spider {
         this.proxy = null;
         this.connectTimeout = 10000;
         this.readTimeout = 10000;
+        this.executor = defaultExecutor;
     }
 
     public Spider requestValue(FlagHandler handler) {
@@ -182,6 +355,78 @@ public class Spider {
         return this;
     }
 
+    /**
+     * 设置异步请求使用的执行器，默认为所有Spider共享的执行器（JDK 21及以上为虚拟线程）
+     *
+     * @param executor 由调用者负责关闭
+     * @return
+     */
+    public Spider executor(ExecutorService executor) {
+        this.executor = executor == null ? defaultExecutor : executor;
+        return this;
+    }
+
+    /**
+     * @return 获得当前异步请求使用的执行器
+     */
+    public ExecutorService executor() {
+        return this.executor;
+    }
+
+    /**
+     * 设置按主机限速的调度器，多个Spider可以共享同一个调度器
+     *
+     * @param scheduler null则不限速
+     * @return
+     */
+    public Spider scheduler(SpiderScheduler scheduler) {
+        this.scheduler = scheduler;
+        return this;
+    }
+
+    /**
+     * @return 获得当前的调度器
+     */
+    public SpiderScheduler scheduler() {
+        return this.scheduler;
+    }
+
+    /**
+     * 设置URL边界，crawl从中取出URL，处理器可以通过frontier()提交新发现的URL
+     *
+     * @param frontier 例如new CrawlFrontier.InMemory(100000000, 0.001, 256 << 20)
+     * @return
+     */
+    public Spider frontier(CrawlFrontier frontier) {
+        this.frontier = frontier;
+        return this;
+    }
+
+    /**
+     * @return 获得当前的URL边界
+     */
+    public CrawlFrontier frontier() {
+        return this.frontier;
+    }
+
+    /**
+     * 设置请求指标，统计各阶段耗时（处理器耗时包含处理器读取正文的时间）、响应代码与字节数
+     *
+     * @param metrics null则不统计
+     * @return
+     */
+    public Spider metrics(HttpMetrics metrics) {
+        this.requester.setMetrics(metrics);
+        return this;
+    }
+
+    /**
+     * @return 获得当前的请求指标
+     */
+    public HttpMetrics metrics() {
+        return this.requester.getMetrics();
+    }
+
     /**
      * do nothing
      */
@@ -197,29 +442,402 @@ public class Spider {
         return this.request("POST", handler);
     }
 
-    private Spider request0(String method, RequestHandler handler) throws IOException {
-        HttpRequester.HttpResponse response = this.requester.doRequest(host, method, this.requestParameters, this.requestHeaders, this.connectTimeout, this.readTimeout, this.proxy, true);
-        this.requestReturnValue = handler.doHandler(response.getResponseCode(), response.getResponseHeaders(), response.getResponse());
-        if (response.getResponse() != null)
-            response.getResponse().close();
+    private Spider request0(URL host, String method, RequestHandler handler) throws IOException {
+        this.requestReturnValue = this.execute(host, method, this.requestParameters, this.requestHeaders, handler);
         return this;
     }
 
+    /**
+     * 执行一个请求，不读写Spider的可变字段（除了只读的设置）
+     *
+     * @return 处理器的返回值
+     */
+    private int execute(URL host, String method, Map<String, String> parameters, Map<String, String> headers, RequestHandler handler) throws IOException {
+        HttpRequester.HttpResponse response = this.requester.doRequest(host, method, parameters, headers, this.connectTimeout, this.readTimeout, this.proxy, true);
+        HttpMetrics metrics = this.requester.getMetrics();
+        long start = System.nanoTime();
+        try {
+            return handler.doHandler(response.getResponseCode(), response.getResponseHeaders(), response.getResponse());
+        } finally {
+            if (metrics != null)
+                metrics.handler(host.getHost(), System.nanoTime() - start);
+            if (response.getResponse() != null)
+                response.getResponse().close();
+        }
+    }
+
+    /**
+     * 并发执行一批请求并等待全部完成，不使用也不修改Spider的host、asyn与requestValue，
+     * 可以在多个线程中对同一个Spider调用。<br/>
+     * 最多parallelism个工作任务（其中一个在调用线程上）按下标依次领取请求，结果直接写入数组，
+     * 除请求描述本身外不为每个请求创建任务或Future；设置了调度器时每个请求作为一个任务经调度器限速。<br/>
+     * 按完成的请求数等待，executor繁忙、有界或拒绝任务时调用线程独自完成全部请求，不等待未开始的工作任务。
+     *
+     * @param specs       请求描述
+     * @param parallelism 最多同时执行的请求数
+     * @return 按请求顺序的处理器返回值与异常
+     * @throws IOException 等待时被中断
+     */
+    public BatchResult batch(final List<RequestSpec> specs, int parallelism) throws IOException {
+        final BatchResult result = new BatchResult(specs.size());
+        if (specs.isEmpty()) return result;
+        // 只读一次共享的参数与请求头，之后changeHost或setRequestHeaders不影响这一批
+        final Map<String, String> parameters = this.requestParameters, headers = this.requestHeaders;
+        final SpiderScheduler scheduler = this.scheduler;
+        final int workers = Math.max(1, Math.min(parallelism, specs.size()));
+        final CountDownLatch done = new CountDownLatch(specs.size());
+        final AtomicInteger next = new AtomicInteger();
+        Runnable worker = () -> {
+            int index;
+            while ((index = next.getAndIncrement()) < specs.size()) {
+                try {
+                    Spider.this.executeSpec(specs.get(index), index, parameters, headers, result);
+                } finally {
+                    done.countDown();
+                }
+            }
+        };
+        if (scheduler != null) {
+            // 调度器按主机限速，每个任务只执行自己的请求
+            for (int i = 0; i < specs.size(); i++) {
+                final int index = i;
+                scheduler.submit(specs.get(index).url.getHost(), this.executor, () -> {
+                    try {
+                        Spider.this.executeSpec(specs.get(index), index, parameters, headers, result);
+                    } finally {
+                        done.countDown();
+                    }
+                }, e -> {
+                    result.errors[index] = new IOException("Executor rejected " + specs.get(index), e);
+                    done.countDown();
+                });
+            }
+        } else {
+            for (int i = 1; i < workers; i++) {
+                try {
+                    this.executor.execute(worker);
+                } catch (RejectedExecutionException e) {
+                    break; // 剩下的请求由调用线程执行
+                }
+            }
+            worker.run(); // 调用线程也作为一个工作任务，领完请求后只等待已被领取的请求
+        }
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for batch", e);
+        }
+        int failures = 0;
+        for (IOException error : result.errors)
+            if (error != null) failures++;
+        result.failures = failures;
+        return result;
+    }
+
+    public BatchResult batch(List<RequestSpec> specs) throws IOException {
+        return this.batch(specs, BATCH_PARALLELISM);
+    }
+
+    private void executeSpec(RequestSpec spec, int index, Map<String, String> parameters, Map<String, String> headers, BatchResult result) {
+        try {
+            result.values[index] = this.execute(spec.url, spec.method, spec.parameters == null ? parameters : spec.parameters,
+                    spec.headers == null ? headers : spec.headers, spec.handler);
+        } catch (IOException e) {
+            result.errors[index] = e;
+        } catch (RuntimeException e) {
+            result.errors[index] = new IOException(spec + ": " + e, e);
+        }
+    }
+
     public Spider request(String method, RequestHandler handler) throws IOException {
+        final URL host = this.host; // 异步请求执行时host可能已被changeHost修改
+        if (this.scheduler != null)
+            return this.scheduledRequest(host, method, handler);
         if (this.isAsyn())
-            forkJoinPool.submit(() -> Spider.this.request0(method, handler));
+            this.executor.submit(() -> Spider.this.request0(host, method, handler));
         else
-            return this.request0(method, handler);
+            return this.request0(host, method, handler);
+        return this;
+    }
+
+    /**
+     * 经过调度器限速的请求，同步请求在调用线程上等待完成
+     */
+    private Spider scheduledRequest(URL host, String method, RequestHandler handler) throws IOException {
+        boolean asyn = this.isAsyn();
+        final IOException[] exception = new IOException[1];
+        final CountDownLatch done = new CountDownLatch(1);
+        this.scheduler.submit(host.getHost(), this.executor, () -> {
+            try {
+                Spider.this.request0(host, method, handler);
+            } catch (IOException e) {
+                if (asyn) e.printStackTrace();
+                else exception[0] = e;
+            } finally {
+                done.countDown();
+            }
+        }, e -> {
+            if (asyn) e.printStackTrace();
+            else exception[0] = new IOException("Executor rejected request to " + host, e);
+            done.countDown();
+        });
+        if (!asyn) {
+            try {
+                done.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for " + host, e);
+            }
+            if (exception[0] != null) throw exception[0];
+        }
+        return this;
+    }
+
+    /**
+     * 依次从URL边界中取出URL并请求，直到边界为空或达到请求数上限
+     *
+     * @param method      请求的方法
+     * @param handler     处理响应，可以向frontier()提交新发现的URL
+     * @param maxRequests 最多请求的URL数
+     * @return
+     * @throws IOException
+     */
+    public Spider crawl(String method, RequestHandler handler, int maxRequests) throws IOException {
+        if (this.frontier == null)
+            throw new IllegalStateException("Set a frontier before crawling");
+        String next;
+        for (int count = 0; count < maxRequests && (next = this.frontier.poll()) != null; count++)
+            this.changeHost(next).request(method, handler);
+        return this;
+    }
+
+    /**
+     * 请求并把处理器返回的结果放入sink，由sink的写线程成批写出；sink写满时阻塞当前请求线程。
+     * 有结果输出时请求的返回值为1，否则为0
+     *
+     * @param method  请求的方法
+     * @param handler 把响应转换为结果
+     * @param sink    结果的输出，多个Spider可以共享同一个sink
+     * @return
+     * @throws IOException
+     */
+    public <T> Spider sinkRequest(String method, ResultHandler<T> handler, ResultSink<T> sink) throws IOException {
+        this.request(method, (responseCode, responseHeaders, responseStream) -> {
+            T result = handler.doHandler(responseCode, responseHeaders, responseStream);
+            if (result == null) return 0;
+            sink.put(result);
+            return 1;
+        });
+        return this;
+    }
+
+    /**
+     * 请求当前host，从HTML响应中流式提取链接并按批提交到URL边界，新加入的链接数作为请求的返回值。
+     * 在crawl的处理器中可以直接使用LinkExtractor达到同样的效果
+     *
+     * @param method    请求的方法
+     * @param priority  新链接的优先级
+     * @param batchSize 每批提交的链接数
+     * @return
+     * @throws IOException
+     */
+    public Spider linkRequest(String method, int priority, int batchSize) throws IOException {
+        if (this.frontier == null)
+            throw new IllegalStateException("Set a frontier before extracting links");
+        final URL host = this.host;
+        final CrawlFrontier frontier = this.frontier;
+        this.request(method, (responseCode, responseHeaders, responseStream) -> {
+            if (responseStream == null) return 0;
+            String contentType = HttpRequester.headerOf(responseHeaders, "Content-Type");
+            if (contentType != null && !contentType.toLowerCase().contains("html")) return 0;
+            Charset charset = responseStream instanceof HttpRequester.HttpInputStream
+                    ? ((HttpRequester.HttpInputStream) responseStream).getCharset() : Charset.defaultCharset();
+            try {
+                return new LinkExtractor().extract(responseStream, charset, host.toURI(), frontier, priority, batchSize);
+            } catch (URISyntaxException e) {
+                throw new IOException("Invalid page URL " + host, e);
+            }
+        });
         return this;
     }
 
     public Spider regexRequest(String method, String pattern, RegexRequestHandler handler) throws IOException {
+        return this.regexRequest(method, pattern, 0, handler);
+    }
+
+    /**
+     * @param flags Pattern.compile的标志，例如Pattern.CASE_INSENSITIVE
+     */
+    public Spider regexRequest(String method, String pattern, int flags, RegexRequestHandler handler) throws IOException {
+        Pattern p = compile(pattern, flags);
         this.request(method, (responseCode, responseHeaders, responseStream) -> {
-            Pattern p = Pattern.compile(pattern);
             String response = responseStream.toString();
             Matcher matcher = p.matcher(response);
             return handler.doHandler(responseCode, responseHeaders, response, matcher);
         });
         return this;
     }
+
+    /**
+     * 在解码后的响应正文上逐块增量匹配，不把整个正文构造成字符串，匹配数作为请求的返回值
+     *
+     * @param method  请求的方法
+     * @param pattern 预编译的正则表达式，单个匹配的长度不能超过StreamMatcher.DEFAULT_WINDOW
+     * @param handler 处理每个匹配
+     * @return
+     * @throws IOException
+     */
+    public Spider regexRequest(String method, Pattern pattern, MatchHandler handler) throws IOException {
+        this.request(method, (responseCode, responseHeaders, responseStream) -> {
+            if (responseStream == null) return 0;
+            Charset charset = responseStream instanceof HttpRequester.HttpInputStream
+                    ? ((HttpRequester.HttpInputStream) responseStream).getCharset() : Charset.defaultCharset();
+            return new StreamMatcher(pattern, StreamMatcher.DEFAULT_WINDOW).match(new InputStreamReader(responseStream, charset),
+                    match -> handler.doHandler(responseCode, responseHeaders, match));
+        });
+        return this;
+    }
+
+    /**
+     * 编译正则表达式，结果按(表达式, 标志)缓存，缓存满时随机淘汰
+     */
+    static Pattern compile(String pattern, int flags) {
+        String key = flags + ":" + pattern;
+        Pattern p = patternCache.get(key);
+        if (p == null) {
+            p = Pattern.compile(pattern, flags);
+            if (patternCache.size() >= PATTERN_CACHE_SIZE) {
+                Iterator<String> iterator = patternCache.keySet().iterator();
+                if (iterator.hasNext()) {
+                    iterator.next();
+                    iterator.remove();
+                }
+            }
+            patternCache.put(key, p);
+        }
+        return p;
+    }
+
+    /**
+     * 在字符流上增量匹配：缓冲区只保留尚未确定的部分，最多window个字符。<br/>
+     * 匹配触及缓冲区末尾时（可能随后续输入变化）先读入更多字符再确定；
+     * 后向断言与^只能看到缓冲区内的字符。
+     */
+    static class StreamMatcher {
+        static final int DEFAULT_WINDOW = 64 * 1024;
+
+        interface Callback {
+            boolean onMatch(MatchResult match);
+        }
+
+        /**
+         * 位置相对于整个流的匹配结果
+         */
+        private static class OffsetMatchResult implements MatchResult {
+            private final MatchResult match;
+            private final long offset;
+
+            private OffsetMatchResult(MatchResult match, long offset) {
+                this.match = match;
+                this.offset = offset;
+            }
+
+            @Override
+            public int start() {
+                return (int) (this.match.start() + this.offset);
+            }
+
+            @Override
+            public int start(int group) {
+                int start = this.match.start(group);
+                return start == -1 ? -1 : (int) (start + this.offset);
+            }
+
+            @Override
+            public int end() {
+                return (int) (this.match.end() + this.offset);
+            }
+
+            @Override
+            public int end(int group) {
+                int end = this.match.end(group);
+                return end == -1 ? -1 : (int) (end + this.offset);
+            }
+
+            @Override
+            public String group() {
+                return this.match.group();
+            }
+
+            @Override
+            public String group(int group) {
+                return this.match.group(group);
+            }
+
+            @Override
+            public int groupCount() {
+                return this.match.groupCount();
+            }
+        }
+
+        private final Pattern pattern;
+        private final int window;
+
+        StreamMatcher(Pattern pattern, int window) {
+            this.pattern = pattern;
+            this.window = window;
+        }
+
+        /**
+         * @return 匹配数
+         */
+        int match(Reader reader, Callback callback) throws IOException {
+            StringBuilder buffer = new StringBuilder();
+            char[] chunk = new char[8192];
+            Matcher matcher = this.pattern.matcher(buffer);
+            long offset = 0; // buffer[0]在流中的位置
+            int from = 0; // 下次查找的起点
+            int searched = 0; // 上次查找时buffer的长度
+            int count = 0;
+            boolean eof = false;
+            while (!eof) {
+                int n = reader.read(chunk);
+                if (n < 0) eof = true;
+                else buffer.append(chunk, 0, n);
+                // 每次查找会从from重新扫描至多window个字符，攒够window个新字符再查找，总扫描量与流长度成线性
+                if (!eof && buffer.length() - searched < this.window) continue;
+
+                matcher.reset();
+                matcher.useTransparentBounds(true).useAnchoringBounds(false);
+                matcher.region(from, buffer.length());
+                while (matcher.find()) {
+                    if (matcher.hitEnd() && !eof) {
+                        from = matcher.start();
+                        break;
+                    }
+                    count++;
+                    if (!callback.onMatch(new OffsetMatchResult(matcher.toMatchResult(), offset)))
+                        return count;
+                    from = matcher.end() == matcher.start() ? matcher.end() + 1 : matcher.end();
+                    if (from > buffer.length()) break;
+                    matcher.region(from, buffer.length());
+                }
+                if (!matcher.hitEnd() || from > buffer.length())
+                    from = buffer.length(); // 没有进行中的匹配
+                else
+                    from = Math.max(from, buffer.length() - this.window); // 更早开始的匹配会超过window
+
+                // 丢弃已确定的部分，不确定的部分最多保留window个字符
+                int discard = Math.min(buffer.length(), Math.max(from, buffer.length() - this.window));
+                if (discard > 0) {
+                    buffer.delete(0, discard);
+                    offset += discard;
+                    from = Math.max(0, from - discard);
+                }
+                searched = buffer.length();
+            }
+            return count;
+        }
+    }
 }
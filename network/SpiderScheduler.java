@@ -0,0 +1,210 @@
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Spider的按主机限速调度器。<br/>
+ * 每个主机一个令牌桶和一个等待队列，同时限制每个主机和全局的并发请求数；
+ * 请求在各主机之间轮转分发，令牌不足时由定时器在令牌补足时再次分发，不会让工作线程sleep等待。
+ */
+public class SpiderScheduler {
+    private static class HostState {
+        private final ArrayDeque<Runnable> queue;
+        private double tokens;
+        private long lastRefill;
+        private int active;
+
+        private HostState(double tokens) {
+            this.queue = new ArrayDeque<Runnable>();
+            this.tokens = tokens;
+            this.lastRefill = System.nanoTime();
+            this.active = 0;
+        }
+    }
+
+    private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "SpiderScheduler-timer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final double permitsPerSecond;
+    private final double burst;
+    private final int maxPerHost;
+    private final int maxGlobal;
+    private final Map<String, HostState> hosts;
+    private final ArrayDeque<HostState> ready; // 有等待请求的主机，按轮转顺序
+    private int globalActive;
+    private long wakeUpAt; // 已安排的定时分发时间，0表示没有
+    private int sweepThreshold; // 主机数达到该值时清理空闲主机
+
+    /**
+     * @param permitsPerSecond 每个主机每秒允许发出的请求数
+     * @param burst            每个主机令牌桶的容量，即允许的突发请求数
+     * @param maxPerHost       每个主机最大并发请求数
+     * @param maxGlobal        全局最大并发请求数
+     */
+    public SpiderScheduler(double permitsPerSecond, int burst, int maxPerHost, int maxGlobal) {
+        if (permitsPerSecond <= 0 || burst < 1 || maxPerHost < 1 || maxGlobal < 1)
+            throw new IllegalArgumentException("invalid scheduler limits");
+        this.permitsPerSecond = permitsPerSecond;
+        this.burst = burst;
+        this.maxPerHost = maxPerHost;
+        this.maxGlobal = maxGlobal;
+        this.hosts = new HashMap<String, HostState>();
+        this.ready = new ArrayDeque<HostState>();
+        this.globalActive = 0;
+        this.wakeUpAt = 0;
+        this.sweepThreshold = 1024;
+    }
+
+    /**
+     * 提交一个请求，满足限速条件后在executor上执行，执行器拒绝时打印异常
+     *
+     * @param host     请求的主机，限速与并发按此分组
+     * @param executor 执行请求的执行器
+     * @param task     请求任务
+     */
+    public void submit(String host, Executor executor, Runnable task) {
+        this.submit(host, executor, task, Throwable::printStackTrace);
+    }
+
+    /**
+     * 提交一个请求，满足限速条件后在executor上执行
+     *
+     * @param host     请求的主机，限速与并发按此分组
+     * @param executor 执行请求的执行器
+     * @param task     请求任务
+     * @param rejected 执行器拒绝时在分发线程上调用，此时task不会执行，调用者应在这里结束该请求
+     */
+    public void submit(String host, Executor executor, Runnable task, Consumer<RejectedExecutionException> rejected) {
+        synchronized (this) {
+            if (this.hosts.size() >= this.sweepThreshold)
+                this.sweep();
+            HostState state = this.hosts.get(host);
+            if (state == null) {
+                state = new HostState(this.burst);
+                this.hosts.put(host, state);
+            }
+            if (state.queue.isEmpty())
+                this.ready.addLast(state);
+            state.queue.addLast(() -> {
+                try {
+                    executor.execute(() -> {
+                        try {
+                            task.run();
+                        } finally {
+                            this.complete(host);
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    this.complete(host);
+                    rejected.accept(e);
+                }
+            });
+        }
+        this.dispatch();
+    }
+
+    private void complete(String host) {
+        synchronized (this) {
+            HostState state = this.hosts.get(host);
+            state.active--;
+            this.globalActive--;
+        }
+        this.dispatch();
+    }
+
+    /**
+     * 清理令牌已补满的空闲主机，重新创建与保留等价
+     */
+    private void sweep() {
+        long now = System.nanoTime();
+        for (Iterator<HostState> iterator = this.hosts.values().iterator(); iterator.hasNext(); ) {
+            HostState state = iterator.next();
+            if (state.active > 0 || !state.queue.isEmpty()) continue;
+            this.refill(state, now);
+            if (state.tokens >= this.burst) iterator.remove();
+        }
+        this.sweepThreshold = Math.max(1024, this.hosts.size() * 2);
+    }
+
+    private void refill(HostState state, long now) {
+        state.tokens = Math.min(this.burst, state.tokens + (now - state.lastRefill) * this.permitsPerSecond / 1e9);
+        state.lastRefill = now;
+    }
+
+    /**
+     * 在各主机之间轮转，每轮每个主机最多分发一个请求，直到没有可以分发的请求
+     */
+    private void dispatch() {
+        ArrayDeque<Runnable> runnable = new ArrayDeque<Runnable>();
+        synchronized (this) {
+            long now = System.nanoTime();
+            long nextWakeUp = Long.MAX_VALUE;
+            boolean progress = true;
+            while (progress && this.globalActive < this.maxGlobal) {
+                progress = false;
+                for (Iterator<HostState> iterator = this.ready.iterator(); iterator.hasNext() && this.globalActive < this.maxGlobal; ) {
+                    HostState state = iterator.next();
+                    if (state.active >= this.maxPerHost) continue; // 等待该主机的请求完成
+                    this.refill(state, now);
+                    if (state.tokens < 1) {
+                        nextWakeUp = Math.min(nextWakeUp, now + (long) ((1 - state.tokens) * 1e9 / this.permitsPerSecond));
+                        continue;
+                    }
+                    state.tokens -= 1;
+                    state.active++;
+                    this.globalActive++;
+                    runnable.add(state.queue.pollFirst());
+                    if (state.queue.isEmpty()) iterator.remove();
+                    progress = true;
+                }
+            }
+            // 轮转：下一次从本次未分发的主机开始
+            if (!runnable.isEmpty() && this.ready.size() > 1)
+                this.ready.addLast(this.ready.pollFirst());
+
+            if (nextWakeUp != Long.MAX_VALUE && (this.wakeUpAt == 0 || nextWakeUp < this.wakeUpAt)) {
+                this.wakeUpAt = nextWakeUp;
+                timer.schedule(() -> {
+                    synchronized (SpiderScheduler.this) {
+                        SpiderScheduler.this.wakeUpAt = 0;
+                    }
+                    SpiderScheduler.this.dispatch();
+                }, nextWakeUp - now, TimeUnit.NANOSECONDS);
+            }
+        }
+        for (Runnable task : runnable) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * @return 等待中的请求数
+     */
+    public synchronized int pending() {
+        int count = 0;
+        for (HostState state : this.ready)
+            count += state.queue.size();
+        return count;
+    }
+
+    /**
+     * @return 正在执行的请求数
+     */
+    public synchronized int active() {
+        return this.globalActive;
+    }
+}